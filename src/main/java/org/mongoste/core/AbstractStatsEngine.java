@@ -17,10 +17,27 @@ package org.mongoste.core;
 
 import org.apache.commons.lang.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.mongoste.model.StatAction;
+import org.mongoste.model.StatCounter;
+import org.mongoste.model.StatEvent;
 import org.mongoste.query.DefaultQuery;
 import org.mongoste.query.Query;
+import org.mongoste.query.QueryBatch;
+import org.mongoste.query.QueryProfile;
+import org.mongoste.query.QueryCache;
+import org.mongoste.query.QueryException;
+import org.mongoste.query.ResultVisitor;
 
 /**
  * Base class for all engines
@@ -30,12 +47,332 @@ public abstract class AbstractStatsEngine implements StatsEngine {
     static final String DOT_STR                = ".";
     static final char DOT_CHR                  = '.';
     static final char DOT_CHR_REPLACE          = '_';
+    protected static final int DEFAULT_BATCH_THREADS = 8;
 
-    private TimeScope timeScopePrecision;
+    private volatile TimeScope timeScopePrecision;
+    private volatile QueryCache queryCache;
+    private int batchThreads = DEFAULT_BATCH_THREADS;
+    private ExecutorService batchExecutor;
+
+    /**
+     * Releases engine resources: stops the batch queries pool
+     * @throws StatsEngineException
+     */
+    @Override
+    public void shutDown() throws StatsEngineException {
+        stopBatchExecutor();
+    }
+
+    /**
+     * Handles a batch of events one by one. Engines should override it
+     * with a grouped implementation.
+     * @param events Events to handle
+     * @return rejected events with their cause, empty if all were handled
+     * @throws StatsEngineException
+     */
+    @Override
+    public Map<StatEvent,StatsEngineException> handleEvents(Collection<StatEvent> events) throws StatsEngineException {
+        Map<StatEvent,StatsEngineException> rejected = new LinkedHashMap<StatEvent,StatsEngineException>();
+        for(StatEvent event : events) {
+            try {
+                handleEvent(event);
+            }catch(StatsEngineException ex) {
+                rejected.put(event, ex);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Subscribes a backpressure aware ingester with default settings
+     * to the publisher
+     * @param publisher Events publisher
+     * @return the subscribed ingester
+     * @throws StatsEngineException
+     * @see EventIngester
+     */
+    @Override
+    public EventIngester ingest(EventFlow.Publisher<StatEvent> publisher) throws StatsEngineException {
+        EventIngester ingester = new EventIngester(this);
+        publisher.subscribe(ingester);
+        return ingester;
+    }
+
+    /**
+     * Visits the materialized actions. Engines should override it with a
+     * streaming implementation.
+     * @param query Query
+     * @param visitor Visitor of the actions
+     * @return continuation token or <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    @Override
+    public String visitActions(Query query, ResultVisitor<StatAction> visitor) throws StatsEngineException {
+        return visit(getActions(query), query, visitor);
+    }
+
+    /**
+     * Visits the materialized target stats. Engines should override it with a
+     * streaming implementation.
+     * @param query Query
+     * @param visitor Visitor of the counters, named by action
+     * @return continuation token or <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    @Override
+    public String visitTargetStats(Query query, ResultVisitor<StatCounter> visitor) throws StatsEngineException {
+        List<StatCounter> counters = new ArrayList<StatCounter>();
+        for(StatAction action : getTargetStats(query)) {
+            for(StatCounter counter : action.getTargets()) {
+                counters.add(counter);
+            }
+        }
+        return visit(counters, query, visitor);
+    }
+
+    /**
+     * Visits results from the position given by the continuation token
+     */
+    private <T> String visit(List<T> results, Query query, ResultVisitor<? super T> visitor) throws StatsEngineException {
+        int from = 0;
+        if(query.getContinuation() != null) {
+            try {
+                from = Integer.parseInt(query.getContinuation());
+            }catch(NumberFormatException ex) {
+                throw new QueryException("Invalid continuation token " + query.getContinuation(), ex);
+            }
+        }
+        Integer limit = query.getMaxResults();
+        int visited = 0;
+        for(int i = from; i < results.size(); i++) {
+            if(limit != null && visited == limit) {
+                return String.valueOf(i);
+            }
+            visited++;
+            if(!visitor.visit(results.get(i))) {
+                return i + 1 < results.size() ? String.valueOf(i + 1) : null;
+            }
+        }
+        return null;
+    }
 
     @Override
     public Query createQuery() {
-        return new DefaultQuery(this);
+        return new DefaultQuery(this, queryCache);
+    }
+
+    /**
+     * Executes the queries of a batch. Identical queries run once and the
+     * rest run concurrently, so the batch takes about its slowest query.
+     * Query errors are set to their results.
+     * @param batch Queries to execute
+     * @throws StatsEngineException if the batch was interrupted
+     */
+    @Override
+    public void executeBatch(QueryBatch batch) throws StatsEngineException {
+        Map<String,List<QueryBatch.Result<?>>> groups = new LinkedHashMap<String,List<QueryBatch.Result<?>>>();
+        for(QueryBatch.Result<?> result : batch.getResults()) {
+            if(result.isDone()) {
+                continue;
+            }
+            String key = result.getKey();
+            List<QueryBatch.Result<?>> group = groups.get(key);
+            if(group == null) {
+                groups.put(key, group = new ArrayList<QueryBatch.Result<?>>());
+            }
+            group.add(result);
+        }
+        List<Runnable> tasks = createBatchTasks(new ArrayList<List<QueryBatch.Result<?>>>(groups.values()));
+        if(tasks.size() == 1) {
+            tasks.get(0).run();
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        ExecutorService executor = getBatchExecutor();
+        try {
+            for(Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for(Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new StatsEngineException("Batch interrupted", ex);
+        } catch(ExecutionException ex) {
+            throw new StatsEngineException("Batch task failed", ex.getCause());
+        }
+    }
+
+    /**
+     * Engines counting distinct values should override it
+     * @param query Query
+     * @param key Distinct key
+     * @return distinct values count
+     * @throws StatsEngineException always
+     */
+    @Override
+    public long getDistinctCount(Query query, String key) throws StatsEngineException {
+        throw new StatsEngineException("Distinct counts not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Profiles the total time and results of a query method. Engines add
+     * the profile of their store scans.
+     * @param query Query to profile
+     * @param method Query method
+     * @return execution profile
+     * @throws StatsEngineException
+     */
+    @Override
+    public QueryProfile explain(Query query, QueryBatch.Method method) throws StatsEngineException {
+        QueryProfile profile = new QueryProfile(method.getName());
+        long t = System.currentTimeMillis();
+        Object result = execute(query, method);
+        profile.setTotalMillis(System.currentTimeMillis() - t);
+        if(result instanceof Map) {
+            profile.setResults(((Map<?,?>) result).size());
+        } else if(result instanceof Collection) {
+            profile.setResults(((Collection<?>) result).size());
+        }
+        return profile;
+    }
+
+    /**
+     * Runs a query method without the results cache
+     */
+    protected Object execute(Query query, QueryBatch.Method method) throws StatsEngineException {
+        switch(method) {
+            case ACTIONS:
+                return getActions(query);
+            case TOP_TARGETS:
+                return getTopTargets(query);
+            case TARGET_ACTION_COUNT:
+                return getTargetActionCount(query);
+            default:
+                return getTargetStats(query);
+        }
+    }
+
+    /**
+     * Creates the tasks executing groups of identical batch queries. Engines
+     * may override it to run several groups with a shared scan.
+     * @param groups Groups of identical queries
+     * @return tasks setting the results of all the groups
+     */
+    protected List<Runnable> createBatchTasks(List<List<QueryBatch.Result<?>>> groups) {
+        List<Runnable> tasks = new ArrayList<Runnable>(groups.size());
+        for(final List<QueryBatch.Result<?>> group : groups) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        complete(group, group.get(0).execute());
+                    }catch(StatsEngineException ex) {
+                        fail(group, ex);
+                    }catch(RuntimeException ex) {
+                        fail(group, new StatsEngineException("Batch query failed", ex));
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Sets the value of identical batch queries
+     */
+    protected static void complete(List<QueryBatch.Result<?>> group, Object value) {
+        for(QueryBatch.Result<?> result : group) {
+            result.complete(value);
+        }
+    }
+
+    /**
+     * Sets the error of identical batch queries
+     */
+    protected static void fail(List<QueryBatch.Result<?>> group, StatsEngineException error) {
+        for(QueryBatch.Result<?> result : group) {
+            result.fail(error);
+        }
+    }
+
+    /**
+     * @param batchThreads Max batch queries run concurrently
+     */
+    public synchronized void setBatchThreads(int batchThreads) {
+        if(batchThreads <= 0) {
+            throw new IllegalArgumentException("batch threads must be positive");
+        }
+        this.batchThreads = batchThreads;
+        stopBatchExecutor();
+    }
+
+    public synchronized int getBatchThreads() {
+        return batchThreads;
+    }
+
+    private synchronized ExecutorService getBatchExecutor() {
+        if(batchExecutor == null) {
+            batchExecutor = Executors.newFixedThreadPool(batchThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mongoste-batch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return batchExecutor;
+    }
+
+    private synchronized void stopBatchExecutor() {
+        if(batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+    }
+
+    /**
+     * Sets the query results cache
+     * @param queryCache Cache, <code>null</code> to disable it
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Invalidates the cached results a handled event may change
+     * @param event Handled event
+     */
+    protected void invalidateQueryCache(StatEvent event) {
+        QueryCache cache = queryCache;
+        if(cache != null) {
+            cache.invalidate(event);
+        }
+    }
+
+    /**
+     * Invalidates the cached results of a client
+     * @param clientId Client id, <code>null</code> for all the clients
+     */
+    protected void invalidateQueryCache(String clientId) {
+        QueryCache cache = queryCache;
+        if(cache == null) {
+            return;
+        }
+        if(clientId == null) {
+            cache.clear();
+        } else {
+            cache.invalidate(clientId);
+        }
     }
 
 
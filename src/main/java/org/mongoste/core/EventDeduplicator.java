@@ -0,0 +1,112 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time bounded in-process detector of retried events, by client supplied
+ * event id.
+ * <p>
+ * Keeps the most recent ids with the time they were recorded. Checking and
+ * recording an id is a single step, so of concurrent retries only the first
+ * is accepted. Ids evicted from the cache are left to the store unique index.
+ * @author mrmx
+ */
+public class EventDeduplicator {
+    private final long window;
+    private final int maxRecent;
+    private final Map<String,Long> recent;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param window Milliseconds an id is remembered
+     * @param maxRecent Max ids remembered
+     */
+    public EventDeduplicator(long window, int maxRecent) {
+        if(window <= 0 || maxRecent <= 0) {
+            throw new IllegalArgumentException("window and maxRecent must be positive");
+        }
+        this.window = window;
+        this.maxRecent = maxRecent;
+        this.recent = new LinkedHashMap<String,Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return size() > EventDeduplicator.this.maxRecent;
+            }
+        };
+    }
+
+    /**
+     * Records the id of an event unless it was recently recorded
+     * @param event Event to check
+     * @return <code>true</code> if the event id was recently recorded, so the
+     * event is a duplicate and was not recorded again
+     */
+    public boolean checkAndAdd(StatEvent event) {
+        String id = getId(event);
+        if(id == null) {
+            return false;
+        }
+        long now = currentTimeMillis();
+        synchronized(this) {
+            Long added = recent.get(id);
+            if(added != null && now - added < window) {
+                duplicates.incrementAndGet();
+                return true;
+            }
+            recent.put(id, now);
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the id of an event recorded by {@link #checkAndAdd(StatEvent)}
+     * that could not be handled, so it can be retried
+     * @param event Event not handled
+     */
+    public void remove(StatEvent event) {
+        String id = getId(event);
+        if(id == null) {
+            return;
+        }
+        synchronized(this) {
+            recent.remove(id);
+        }
+    }
+
+    /**
+     * @return events reported as duplicated
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private String getId(StatEvent event) {
+        if(event.getEventId() == null) {
+            return null;
+        }
+        return event.getClientId() + '\u0000' + event.getEventId();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+/**
+ * Demand driven publisher/subscriber contracts, following the reactive
+ * streams semantics: a subscriber only receives as many items as it has
+ * requested through its subscription.
+ * @author mrmx
+ */
+public final class EventFlow {
+
+    private EventFlow() {
+    }
+
+    /**
+     * Producer of items sent on subscriber demand
+     * @param <T> item type
+     */
+    public interface Publisher<T> {
+        /**
+         * Adds a subscriber. The publisher must call
+         * {@link Subscriber#onSubscribe(Subscription)} before any item.
+         * @param subscriber Subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receiver of items. Calls are serialized by the publisher.
+     * @param <T> item type
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and a subscriber
+     */
+    public interface Subscription {
+        /**
+         * Adds <code>n</code> items to the subscriber demand
+         * @param n items, must be positive
+         */
+        void request(long n);
+
+        /**
+         * Stops sending items
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backpressure aware event subscriber.
+ * <p>
+ * Groups received events in batches handed to
+ * {@link StatsEngine#handleEvents(java.util.Collection)} by at most
+ * <code>maxInFlight</code> workers. Demand is only signaled upstream when a
+ * batch is done, so the publisher never gets ahead of the engine by more than
+ * <code>batchSize * maxInFlight</code> events.
+ * @author mrmx
+ */
+public class EventIngester implements EventFlow.Subscriber<StatEvent> {
+    private static Logger log = LoggerFactory.getLogger(EventIngester.class);
+
+    public static final int DEFAULT_BATCH_SIZE  = 500;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_MAX_DELAY  = 1000L;
+
+    private final StatsEngine statsEngine;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final long maxDelay;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile EventFlow.Subscription subscription;
+    private volatile Throwable error;
+    private List<StatEvent> batch;
+    private boolean completed;
+
+    public EventIngester(StatsEngine statsEngine) {
+        this(statsEngine, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param statsEngine Engine to feed
+     * @param batchSize Events per batch
+     * @param maxInFlight Max batches being handled at once
+     * @param maxDelay Max milliseconds a partial batch waits before being handled
+     */
+    public EventIngester(StatsEngine statsEngine, int batchSize, int maxInFlight, long maxDelay) {
+        if(batchSize <= 0 || maxInFlight <= 0 || maxDelay <= 0) {
+            throw new IllegalArgumentException("batchSize, maxInFlight and maxDelay must be positive");
+        }
+        this.statsEngine = statsEngine;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.maxDelay = maxDelay;
+        this.batch = new ArrayList<StatEvent>(batchSize);
+        this.workers = Executors.newFixedThreadPool(maxInFlight, new DaemonThreadFactory("mongoste-ingest"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mongoste-ingest-flush"));
+    }
+
+    @Override
+    public void onSubscribe(EventFlow.Subscription subscription) {
+        if(this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                submit(drainBatch(false));
+            }
+        }, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+        request((long)batchSize * maxInFlight);
+    }
+
+    @Override
+    public void onNext(StatEvent event) {
+        demand.decrementAndGet();
+        List<StatEvent> full = null;
+        synchronized(this) {
+            batch.add(event);
+            if(batch.size() >= batchSize) {
+                full = batch;
+                batch = new ArrayList<StatEvent>(batchSize);
+            }
+        }
+        submit(full);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        log.error("Event publisher failed",throwable);
+        error = throwable;
+        complete();
+    }
+
+    @Override
+    public void onComplete() {
+        complete();
+    }
+
+    /**
+     * Cancels the subscription and stops after handling the buffered events
+     */
+    public void cancel() {
+        EventFlow.Subscription current = subscription;
+        if(current != null) {
+            current.cancel();
+        }
+        complete();
+    }
+
+    /**
+     * Waits until the publisher completes and all the events are handled
+     * @param timeout Max time to wait
+     * @param unit Time unit
+     * @return <code>true</code> if done, <code>false</code> on timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * @return the error signaled by the publisher, if any
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return events requested upstream and not yet received
+     */
+    public long getDemand() {
+        return demand.get();
+    }
+
+    /**
+     * @return batches being handled by the engine
+     */
+    public int getInFlightBatches() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return events received and waiting for a batch slot
+     */
+    public synchronized int getBufferedEvents() {
+        return batch.size();
+    }
+
+    /**
+     * @return events handled by the engine
+     */
+    public long getHandledEvents() {
+        return handled.get();
+    }
+
+    /**
+     * @return events rejected by the engine
+     */
+    public long getRejectedEvents() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[demand:"+getDemand()+",inFlight:"+getInFlightBatches()
+                +",buffered:"+getBufferedEvents()+",handled:"+getHandledEvents()+",rejected:"+getRejectedEvents()+"]";
+    }
+
+    private void complete() {
+        synchronized(this) {
+            if(completed) {
+                return;
+            }
+            completed = true;
+        }
+        flusher.shutdown();
+        submit(drainBatch(true));
+        workers.shutdown();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        },"mongoste-ingest-done").start();
+    }
+
+    private synchronized List<StatEvent> drainBatch(boolean force) {
+        if(batch.isEmpty() || (!force && completed)) {
+            return null;
+        }
+        List<StatEvent> partial = batch;
+        batch = new ArrayList<StatEvent>(batchSize);
+        return partial;
+    }
+
+    private void submit(final List<StatEvent> events) {
+        if(events == null) {
+            return;
+        }
+        inFlight.incrementAndGet();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Map<StatEvent,StatsEngineException> failed = statsEngine.handleEvents(events);
+                    handled.addAndGet(events.size() - failed.size());
+                    rejected.addAndGet(failed.size());
+                }catch(RuntimeException ex) {
+                    log.error("Handling batch of "+events.size()+" events",ex);
+                    rejected.addAndGet(events.size());
+                } finally {
+                    inFlight.decrementAndGet();
+                    //Batch slot is free again: ask for more
+                    request(events.size());
+                }
+            }
+        };
+        try {
+            workers.execute(task);
+        }catch(RejectedExecutionException ex) {
+            //Late batch after completion
+            task.run();
+        }
+    }
+
+    private void request(long n) {
+        EventFlow.Subscription current = subscription;
+        boolean stopped;
+        synchronized(this) {
+            stopped = completed;
+        }
+        if(current != null && !stopped) {
+            demand.addAndGet(n);
+            current.request(n);
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only write-ahead log of events.
+ * <p>
+ * Events are appended to segment files (<code>events-&lt;seq&gt;.log</code>)
+ * as <code>[length][crc32][serialized event]</code> records. Segments are
+ * rotated by size; sealed segments are replayed in order through an
+ * {@link Applier} and deleted once applied. The applied offset of the segment
+ * being replayed is kept in a <code>.ckp</code> side file so a crash only
+ * replays the last unconfirmed batch. Segments with unreadable records are
+ * kept aside renamed to <code>.corrupt</code> once their readable records
+ * are applied.
+ * @author mrmx
+ */
+public class EventLog {
+    private static Logger log = LoggerFactory.getLogger(EventLog.class);
+
+    private static final String SEGMENT_PREFIX     = "events-";
+    private static final String SEGMENT_SUFFIX     = ".log";
+    private static final String CHECKPOINT_SUFFIX  = ".ckp";
+    private static final String CORRUPT_SUFFIX     = ".corrupt";
+    private static final int RECORD_HEADER_SIZE    = 4 + 8;
+
+    /**
+     * Receives replayed events
+     */
+    public interface Applier {
+        /**
+         * Applies a batch of logged events. Must be idempotent: after a crash
+         * the last batch of a segment may be applied twice.
+         * @param batchId Batch id, the same when the batch is applied again:
+         * segment, offset and checksum of its records
+         * @param events Events to apply
+         * @throws StatsEngineException if the batch could not be applied
+         * and must be retried later
+         */
+        void apply(String batchId, List<StatEvent> events) throws StatsEngineException;
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final boolean sync;
+    private final int batchSize;
+    private long sequence;
+    private File segment;
+    private RandomAccessFile segmentFile;
+    private FileChannel channel;
+    private final Object replayLock = new Object();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    /**
+     * @param dir Segments directory
+     * @param segmentSize Rotation size in bytes
+     * @param sync <code>true</code> to force every append to disk
+     * @param batchSize Max events per applied batch
+     */
+    public EventLog(File dir, long segmentSize, boolean sync, int batchSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.batchSize = batchSize;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return bytes of unreadable records left in corrupt segments
+     */
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    /**
+     * Opens the log starting a new segment. Existing segments are left
+     * sealed for replay.
+     * @throws StatsEngineException
+     */
+    public synchronized void open() throws StatsEngineException {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new StatsEngineException("Can not create event log dir " + dir);
+        }
+        for(File sealed : listSegments()) {
+            sequence = Math.max(sequence, getSequence(sealed));
+        }
+        log.info("Opening event log {} with {} sealed segments",dir,listSegments().size());
+        openSegment();
+    }
+
+    /**
+     * Appends an event to the current segment
+     * @param event Event to log
+     * @throws StatsEngineException
+     */
+    public void append(StatEvent event) throws StatsEngineException {
+        byte [] payload = serialize(event);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        synchronized(this) {
+            if(channel == null) {
+                throw new StatsEngineException("Event log is closed");
+            }
+            try {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if(sync) {
+                    channel.force(false);
+                }
+                if(channel.position() >= segmentSize) {
+                    rotate();
+                }
+            } catch (IOException ex) {
+                throw new StatsEngineException("Appending event to " + segment, ex);
+            }
+        }
+    }
+
+    /**
+     * Seals the current segment, if not empty, and starts a new one
+     * @throws StatsEngineException
+     */
+    public synchronized void rotate() throws StatsEngineException {
+        try {
+            if(channel == null || channel.position() == 0) {
+                return;
+            }
+            channel.force(true);
+        } catch (IOException ex) {
+            throw new StatsEngineException("Sealing segment " + segment, ex);
+        }
+        closeSegment();
+        openSegment();
+    }
+
+    /**
+     * Replays all the sealed segments in order through the applier, deleting
+     * each one when fully applied, or moving it aside when corrupt
+     * @param applier Events applier
+     * @return replayed events
+     * @throws StatsEngineException if the applier fails: the failing batch
+     * stays in the log
+     */
+    public long replay(Applier applier) throws StatsEngineException {
+        synchronized(replayLock) {
+            long replayed = 0;
+            for(File sealed : listSegments()) {
+                replayed += replay(sealed, applier);
+            }
+            return replayed;
+        }
+    }
+
+    /**
+     * Closes the current segment
+     */
+    public synchronized void close() {
+        closeSegment();
+    }
+
+    private long replay(File sealed, Applier applier) throws StatsEngineException {
+        File checkpoint = getCheckpointFile(sealed);
+        long offset = readCheckpoint(checkpoint);
+        long replayed = 0;
+        long skipped = 0;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(sealed, "r");
+            FileChannel in = file.getChannel();
+            long size = in.size();
+            if(offset > 0) {
+                log.info("Resuming segment {} from offset {}",sealed.getName(),offset);
+            }
+            in.position(offset);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            List<StatEvent> batch = new ArrayList<StatEvent>(batchSize);
+            long batchOffset = offset;
+            CRC32 batchCrc = new CRC32();
+            while(in.position() < size) {
+                header.clear();
+                if(!readFully(in, header)) {
+                    log.warn("Truncated record header at {}:{}",sealed.getName(),in.position());
+                    skipped = size - in.position() + header.position();
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                long checksum = header.getLong();
+                if(length <= 0 || in.position() + length > size) {
+                    log.warn("Truncated record at {}:{}",sealed.getName(),in.position());
+                    skipped = size - in.position() + RECORD_HEADER_SIZE;
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(in, payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if(crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch at {}:{}, skipping rest of segment",sealed.getName(),in.position());
+                    skipped = size - in.position() + length + RECORD_HEADER_SIZE;
+                    break;
+                }
+                batch.add(deserialize(payload.array()));
+                batchCrc.update(payload.array());
+                if(batch.size() >= batchSize) {
+                    applier.apply(getBatchId(sealed, batchOffset, batchCrc), batch);
+                    replayed += batch.size();
+                    batch.clear();
+                    batchOffset = in.position();
+                    batchCrc.reset();
+                    writeCheckpoint(checkpoint, batchOffset);
+                }
+            }
+            if(!batch.isEmpty()) {
+                applier.apply(getBatchId(sealed, batchOffset, batchCrc), batch);
+                replayed += batch.size();
+            }
+        } catch (IOException ex) {
+            throw new StatsEngineException("Replaying segment " + sealed, ex);
+        } finally {
+            closeQuietly(file);
+        }
+        if(skipped > 0) {
+            File corrupt = new File(dir, sealed.getName() + CORRUPT_SUFFIX);
+            if(!sealed.renameTo(corrupt)) {
+                throw new StatsEngineException("Can not move aside corrupt segment " + sealed);
+            }
+            skippedBytes.addAndGet(skipped);
+            log.error("Skipped {} unreadable bytes of segment {}, kept as {}",new Object[] {skipped,sealed.getName(),corrupt.getName()});
+        } else if(!sealed.delete()) {
+            throw new StatsEngineException("Can not delete applied segment " + sealed);
+        }
+        checkpoint.delete();
+        log.debug("Applied segment {}: {} events",sealed.getName(),replayed);
+        return replayed;
+    }
+
+    private void openSegment() throws StatsEngineException {
+        segment = new File(dir, SEGMENT_PREFIX + String.format("%016d", ++sequence) + SEGMENT_SUFFIX);
+        try {
+            segmentFile = new RandomAccessFile(segment, "rw");
+            channel = segmentFile.getChannel();
+            channel.position(channel.size());
+        } catch (IOException ex) {
+            throw new StatsEngineException("Opening segment " + segment, ex);
+        }
+    }
+
+    private void closeSegment() {
+        if(channel == null) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } catch (IOException ex) {
+            log.error("Forcing segment "+segment,ex);
+        }
+        closeQuietly(segmentFile);
+        channel = null;
+        segmentFile = null;
+        if(segment.length() == 0) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Lists sealed segments ordered by sequence
+     */
+    private List<File> listSegments() {
+        File [] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<File> segments = new ArrayList<File>();
+        if(files == null) {
+            return segments;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long s1 = getSequence(f1);
+                long s2 = getSequence(f2);
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+        for(File file : files) {
+            synchronized(this) {
+                if(file.equals(segment) && channel != null) {
+                    continue;
+                }
+            }
+            segments.add(file);
+        }
+        return segments;
+    }
+
+    private long getSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }catch(NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Batch ids include the records checksum: segment sequences restart
+     * once the log is emptied
+     */
+    private String getBatchId(File segment, long offset, CRC32 crc) {
+        return segment.getName() + ":" + offset + ":" + Long.toHexString(crc.getValue());
+    }
+
+    private File getCheckpointFile(File segment) {
+        return new File(dir, segment.getName() + CHECKPOINT_SUFFIX);
+    }
+
+    private long readCheckpoint(File checkpoint) throws StatsEngineException {
+        if(!checkpoint.exists()) {
+            return 0;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(checkpoint, "r");
+            return file.length() >= 8 ? file.readLong() : 0;
+        } catch (IOException ex) {
+            throw new StatsEngineException("Reading checkpoint " + checkpoint, ex);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private void writeCheckpoint(File checkpoint, long offset) throws StatsEngineException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(checkpoint, "rw");
+            file.seek(0);
+            file.writeLong(offset);
+            file.getChannel().force(false);
+        } catch (IOException ex) {
+            throw new StatsEngineException("Writing checkpoint " + checkpoint, ex);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(in.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeQuietly(RandomAccessFile file) {
+        if(file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException ex) {
+            log.warn("Closing "+file,ex);
+        }
+    }
+
+    private byte [] serialize(StatEvent event) throws StatsEngineException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(event);
+            out.close();
+        } catch (IOException ex) {
+            throw new StatsEngineException("Serializing event " + event, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private StatEvent deserialize(byte [] payload) throws StatsEngineException {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+            return (StatEvent) in.readObject();
+        } catch (Exception ex) {
+            throw new StatsEngineException("Deserializing event", ex);
+        }
+    }
+}
@@ -19,17 +19,24 @@ import org.mongoste.model.StatEvent;
 import org.mongoste.model.StatAction;
 import org.mongoste.model.StatCounter;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import org.mongoste.query.Query;
+import org.mongoste.query.QueryBatch;
+import org.mongoste.query.QueryProfile;
+import org.mongoste.query.ResultVisitor;
 
 /**
  * Stats engine interface
  */
 public interface StatsEngine {
     public void init(Properties properties) throws StatsEngineException;
+    public void shutDown() throws StatsEngineException;
     public void handleEvent(StatEvent event) throws StatsEngineException;
+    public Map<StatEvent,StatsEngineException> handleEvents(Collection<StatEvent> events) throws StatsEngineException;
+    public EventIngester ingest(EventFlow.Publisher<StatEvent> publisher) throws StatsEngineException;
     public void setTimeScopePrecision(TimeScope precision) throws StatsEngineException;
     public TimeScope getTimeScopePrecision();
     public List<TimeScope> getSupportedTimeScopePrecision();
@@ -42,6 +49,11 @@ public interface StatsEngine {
     public List<StatCounter> getTopTargets(Query query) throws StatsEngineException;
     public Map<String,Long> getTargetActionCount(Query query) throws StatsEngineException;    
     public List<StatAction> getTargetStats(Query query) throws StatsEngineException;
+    public long getDistinctCount(Query query, String key) throws StatsEngineException;
+    public String visitActions(Query query, ResultVisitor<StatAction> visitor) throws StatsEngineException;
+    public String visitTargetStats(Query query, ResultVisitor<StatCounter> visitor) throws StatsEngineException;
+    public void executeBatch(QueryBatch batch) throws StatsEngineException;
+    public QueryProfile explain(Query query, QueryBatch.Method method) throws StatsEngineException;
 
     public void setTargetOwners(String clientId,String targetType,String target,List<String> owners) throws StatsEngineException;
     public void setTargetOwners(String clientId,String targetType,List<String> targets,List<String> owners) throws StatsEngineException;
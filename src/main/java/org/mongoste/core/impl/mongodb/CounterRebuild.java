@@ -0,0 +1,503 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import org.mongoste.core.StatsEngineException;
+import org.mongoste.core.TimeScope;
+import org.mongoste.model.StatEvent;
+import org.mongoste.util.DateUtil;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recomputes the targets, counters and actions collections from the raw
+ * events.
+ * <p>
+ * Monthly ranges of events are aggregated in memory by parallel workers and
+ * written to shadow collections (<code>&lt;name&gt;_rebuild</code>) with
+ * absolute values, so a range can be written again safely. Counters are then
+ * derived from the rebuilt targets and actions from the rebuilt counters.
+ * Finally each shadow collection is renamed over the live one. Finished
+ * steps are checkpointed: running an interrupted rebuild again resumes it.
+ * Rollups and the leaderboard are built again from the rebuilt targets.
+ * <p>
+ * The raw events must cover the whole targets history: the rebuild refuses
+ * to run without kept events, with targets older than the first retained
+ * event or with sketches, which are not rebuilt.
+ * <p>
+ * Events handled while rebuilding may be missed: pause ingestion, or log it
+ * with the event log, while rebuilding.
+ * @author mrmx
+ */
+public class CounterRebuild {
+    private static Logger log = LoggerFactory.getLogger(CounterRebuild.class);
+
+    static final String SHADOW_SUFFIX           = "_rebuild";
+    static final String COLLECTION_CHECKPOINTS  = "rebuild_checkpoints";
+    static final String STEP_COUNTERS           = "counters";
+    static final String STEP_ACTIONS            = "actions";
+    static final String STEP_SWAP               = "swap.";
+
+    private final MongoStatsEngine engine;
+    private final int threads;
+    private final TimeScope precision;
+    private volatile String phase = "idle";
+    private volatile int totalRanges;
+    private final AtomicInteger doneRanges = new AtomicInteger();
+    private final AtomicLong events = new AtomicLong();
+    private DBCollection checkpoints;
+
+    CounterRebuild(MongoStatsEngine engine, int threads, TimeScope precision) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.engine = engine;
+        this.threads = threads;
+        this.precision = precision;
+    }
+
+    /**
+     * Runs the rebuild, resuming a previous interrupted one
+     * @throws StatsEngineException
+     */
+    public void run() throws StatsEngineException {
+        long t = System.currentTimeMillis();
+        DB db = engine.getDB();
+        engine.flush();
+        try {
+            List<DBCollection> eventCollections = getEventCollections(db);
+            List<DateTime> months = getMonths(eventCollections);
+            checkHistory(db, months);
+            checkpoints = db.getCollection(COLLECTION_CHECKPOINTS);
+            DBCollection targets = db.getCollection(MongoStatsEngine.COLLECTION_TARGETS + SHADOW_SUFFIX);
+            DBCollection counters = db.getCollection(MongoStatsEngine.COLLECTION_COUNTERS + SHADOW_SUFFIX);
+            DBCollection actions = db.getCollection(MongoStatsEngine.COLLECTION_TARGET_ACTIONS + SHADOW_SUFFIX);
+            if(checkpoints.count() == 0) {
+                targets.drop();
+                counters.drop();
+                actions.drop();
+            } else {
+                log.info("Resuming rebuild with {} checkpoints",checkpoints.count());
+            }
+            phase = "targets";
+            rebuildTargets(eventCollections, months, targets);
+            if(!isCheckpoint(STEP_COUNTERS)) {
+                phase = "counters";
+                counters.drop();
+                rebuildCounters(targets, counters);
+                checkpoint(STEP_COUNTERS, counters.count());
+            }
+            if(!isCheckpoint(STEP_ACTIONS)) {
+                phase = "actions";
+                actions.drop();
+                rebuildActions(counters, actions);
+                checkpoint(STEP_ACTIONS, actions.count());
+            }
+            phase = "swap";
+            //Targets are rebuilt into counters: both empty or none
+            swap(db, targets, MongoStatsEngine.COLLECTION_TARGETS, getCheckpointCount(STEP_COUNTERS));
+            swap(db, counters, MongoStatsEngine.COLLECTION_COUNTERS, getCheckpointCount(STEP_COUNTERS));
+            swap(db, actions, MongoStatsEngine.COLLECTION_TARGET_ACTIONS, getCheckpointCount(STEP_ACTIONS));
+            engine.resetCollectionCache();
+            engine.setTimeScopePrecision(precision);
+            if(engine.isLeaderboard()) {
+                engine.buildLeaderboard();
+            }
+            if(engine.isRollups()) {
+                engine.buildRollups();
+            }
+            checkpoints.drop();
+            phase = "done";
+        }catch(MongoException ex) {
+            phase = "failed";
+            throw new StatsEngineException("rebuilding counters", ex);
+        }catch(StatsEngineException ex) {
+            phase = "failed";
+            throw ex;
+        }
+        log.info("Rebuilt counters from {} events in {}ms",events.get(),System.currentTimeMillis()-t);
+    }
+
+    /**
+     * @return current phase: idle, targets, counters, actions, swap, done or failed
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return monthly event ranges to aggregate
+     */
+    public int getTotalRanges() {
+        return totalRanges;
+    }
+
+    /**
+     * @return monthly event ranges aggregated, including resumed ones
+     */
+    public int getDoneRanges() {
+        return doneRanges.get();
+    }
+
+    /**
+     * @return raw events read
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[phase:"+phase+",ranges:"+getDoneRanges()+"/"+totalRanges+",events:"+getEvents()+"]";
+    }
+
+    private List<DBCollection> getEventCollections(DB db) {
+        List<DBCollection> eventCollections = new ArrayList<DBCollection>();
+        for(String name : db.getCollectionNames()) {
+            if(name.equals(MongoStatsEngine.COLLECTION_EVENTS) || name.startsWith(MongoStatsEngine.COLLECTION_EVENTS + "_")) {
+                eventCollections.add(db.getCollection(name));
+            }
+        }
+        return eventCollections;
+    }
+
+    /**
+     * Checks the live targets start no earlier than the raw events: older
+     * targets, dropped by retention or never saved, would be lost
+     */
+    private void checkHistory(DB db, List<DateTime> months) throws StatsEngineException {
+        if(!engine.isKeepEvents()) {
+            throw new StatsEngineException("Counters rebuild needs the raw events kept");
+        }
+        DBCursor dbc = db.getCollection(MongoStatsEngine.COLLECTION_TARGETS)
+                .find(new BasicDBObject(), new BasicDBObject(MongoStatsEngine.EVENT_DATE, 1))
+                .sort(new BasicDBObject(MongoStatsEngine.EVENT_DATE, 1)).limit(1);
+        try {
+            if(!dbc.hasNext()) {
+                return;
+            }
+            DateTime firstTarget = new DateTime(dbc.next().get(MongoStatsEngine.EVENT_DATE), DateTimeZone.UTC);
+            if(months.isEmpty() || firstTarget.isBefore(months.get(0))) {
+                throw new StatsEngineException("Targets start at " + firstTarget + " but raw events at "
+                        + (months.isEmpty() ? "none" : months.get(0)) + ": older counts would be lost");
+            }
+        } finally {
+            MongoUtil.close(dbc);
+        }
+    }
+
+    private void rebuildTargets(final List<DBCollection> eventCollections, List<DateTime> months,
+            final DBCollection targets) throws StatsEngineException {
+        totalRanges = months.size();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        try {
+            for(final DateTime month : months) {
+                final String rangeId = getRangeId(month);
+                if(isCheckpoint(rangeId)) {
+                    doneRanges.incrementAndGet();
+                    continue;
+                }
+                results.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long rangeEvents = rebuildRange(month, eventCollections, targets);
+                        checkpoint(rangeId, rangeEvents);
+                        log.info("Rebuilt range {}: {} events. {}",new Object[]{rangeId,rangeEvents,CounterRebuild.this});
+                        doneRanges.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StatsEngineException("Rebuild interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new StatsEngineException("Rebuilding targets", ex.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Aggregates a month of events and writes its targets documents
+     * @return range events
+     */
+    private long rebuildRange(DateTime month, List<DBCollection> eventCollections, DBCollection targets) throws StatsEngineException {
+        DBObject query = new BasicDBObject(MongoStatsEngine.EVENT_DATE,
+                new BasicDBObject("$gte", month.toDate()).append("$lt", month.plusMonths(1).toDate()));
+        Map<String,CounterUpdate> updates = new HashMap<String,CounterUpdate>();
+        Map<String,DBObject> ownersTags = new HashMap<String,DBObject>();
+        DBCollection liveCounters = engine.getCounterCollection();
+        long rangeEvents = 0;
+        for(DBCollection eventCollection : eventCollections) {
+            DBCursor dbc = eventCollection.find(query);
+            try {
+                while(dbc.hasNext()) {
+                    StatEvent event = toEvent(dbc.next());
+                    setOwnersTags(event, liveCounters, ownersTags);
+                    CounterUpdate update = engine.createRawTargetUpdate(event, precision);
+                    CounterUpdate previous = updates.get(update.getKey());
+                    if(previous == null) {
+                        updates.put(update.getKey(), update);
+                    } else {
+                        previous.merge(update);
+                    }
+                    rangeEvents++;
+                    events.incrementAndGet();
+                }
+            } finally {
+                MongoUtil.close(dbc);
+            }
+        }
+        for(CounterUpdate update : updates.values()) {
+            update.applyAbsolute(targets, WriteConcern.SAFE);
+        }
+        return rangeEvents;
+    }
+
+    private void rebuildCounters(DBCollection targets, DBCollection counters) throws StatsEngineException {
+        Map<String,CounterUpdate> updates = new HashMap<String,CounterUpdate>();
+        DBCollection liveCounters = engine.getCounterCollection();
+        Object now = DateUtil.getDateTimeUTC().toDate();
+        DBCursor dbc = targets.find();
+        try {
+            while(dbc.hasNext()) {
+                DBObject target = dbc.next();
+                BasicDBObject key = new BasicDBObject();
+                key.put(MongoStatsEngine.EVENT_CLIENT_ID, target.get(MongoStatsEngine.EVENT_CLIENT_ID));
+                key.put(MongoStatsEngine.EVENT_TARGET, target.get(MongoStatsEngine.EVENT_TARGET));
+                key.put(MongoStatsEngine.EVENT_TARGET_TYPE, target.get(MongoStatsEngine.EVENT_TARGET_TYPE));
+                if(engine.getCountersStripes() > 1) {
+                    key.put(MongoStatsEngine.FIELD_STRIPE, 0);
+                }
+                CounterUpdate update = engine.createKeyUpdate(liveCounters, key, false);
+                update.addToSet(MongoStatsEngine.EVENT_TARGET_OWNERS, (Collection<?>) target.get(MongoStatsEngine.EVENT_TARGET_OWNERS));
+                update.addToSet(MongoStatsEngine.EVENT_TARGET_TAGS, (Collection<?>) target.get(MongoStatsEngine.EVENT_TARGET_TAGS));
+                String actionKey = engine.dotPath(MongoStatsEngine.EVENT_ACTION, target.get(MongoStatsEngine.EVENT_ACTION));
+                update.set(engine.dotPath(actionKey, MongoStatsEngine.TOUCH_DATE), now);
+                update.inc(engine.dotPath(actionKey, MongoStatsEngine.FIELD_COUNT),
+                        ((Number) target.get(MongoStatsEngine.FIELD_COUNT)).longValue());
+                merge(updates, update);
+            }
+        } finally {
+            MongoUtil.close(dbc);
+        }
+        for(CounterUpdate update : updates.values()) {
+            update.applyAbsolute(counters, WriteConcern.SAFE);
+        }
+    }
+
+    private void rebuildActions(DBCollection counters, DBCollection actions) throws StatsEngineException {
+        Map<String,CounterUpdate> updates = new HashMap<String,CounterUpdate>();
+        DBCollection liveActions = engine.getTargetActionsCollection();
+        Object now = DateUtil.getDateTimeUTC().toDate();
+        DBCursor dbc = counters.find();
+        try {
+            while(dbc.hasNext()) {
+                DBObject counter = dbc.next();
+                DBObject actionCounters = (DBObject) counter.get(MongoStatsEngine.EVENT_ACTION);
+                for(String action : actionCounters.keySet()) {
+                    long count = ((Number)((DBObject) actionCounters.get(action)).get(MongoStatsEngine.FIELD_COUNT)).longValue();
+                    BasicDBObject key = new BasicDBObject();
+                    key.put(MongoStatsEngine.EVENT_CLIENT_ID, counter.get(MongoStatsEngine.EVENT_CLIENT_ID));
+                    key.put(MongoStatsEngine.EVENT_ACTION, action);
+                    if(engine.getActionsStripes() > 1) {
+                        key.put(MongoStatsEngine.FIELD_STRIPE, 0);
+                    }
+                    CounterUpdate update = engine.createKeyUpdate(liveActions, key, false);
+                    update.set(MongoStatsEngine.TOUCH_DATE, now);
+                    update.inc(MongoStatsEngine.FIELD_TOTAL, count);
+                    update.inc(engine.dotPath(MongoStatsEngine.ACTION_TARGET,
+                            counter.get(MongoStatsEngine.EVENT_TARGET_TYPE), MongoStatsEngine.FIELD_COUNT), count);
+                    merge(updates, update);
+                }
+            }
+        } finally {
+            MongoUtil.close(dbc);
+        }
+        for(CounterUpdate update : updates.values()) {
+            update.applyAbsolute(actions, WriteConcern.SAFE);
+        }
+    }
+
+    /**
+     * Renames a shadow collection over the live one, once: a resumed rebuild
+     * skips the swapped ones and refuses to swap a missing or empty shadow
+     * whose step rebuilt documents
+     * @param rebuilt Documents rebuilt by the shadow step
+     */
+    private void swap(DB db, DBCollection shadow, String name, long rebuilt) throws StatsEngineException {
+        String step = STEP_SWAP + name;
+        if(isCheckpoint(step)) {
+            log.info("{} already swapped into {}",shadow.getName(),name);
+            return;
+        }
+        if(rebuilt > 0 && (!db.collectionExists(shadow.getName()) || shadow.count() == 0)) {
+            throw new StatsEngineException("Rebuilt " + shadow.getName() + " is missing or empty: not swapped into " + name);
+        }
+        engine.ensureIndexes(shadow, name);
+        log.info("Swapping {} into {}",shadow.getName(),name);
+        shadow.rename(name, true);
+        checkpoint(step, rebuilt);
+    }
+
+    private void merge(Map<String,CounterUpdate> updates, CounterUpdate update) {
+        CounterUpdate previous = updates.get(update.getKey());
+        if(previous == null) {
+            updates.put(update.getKey(), update);
+        } else {
+            previous.merge(update);
+        }
+    }
+
+    private List<DateTime> getMonths(List<DBCollection> eventCollections) {
+        DateTime first = null;
+        DateTime last = null;
+        DBObject fields = new BasicDBObject(MongoStatsEngine.EVENT_DATE, 1);
+        for(DBCollection eventCollection : eventCollections) {
+            for(int order = -1; order <= 1; order += 2) {
+                DBCursor dbc = eventCollection.find(new BasicDBObject(), fields)
+                        .sort(new BasicDBObject(MongoStatsEngine.EVENT_DATE, order)).limit(1);
+                try {
+                    if(!dbc.hasNext()) {
+                        continue;
+                    }
+                    DateTime date = new DateTime(dbc.next().get(MongoStatsEngine.EVENT_DATE), DateTimeZone.UTC);
+                    first = first == null || date.isBefore(first) ? date : first;
+                    last = last == null || date.isAfter(last) ? date : last;
+                } finally {
+                    MongoUtil.close(dbc);
+                }
+            }
+        }
+        List<DateTime> months = new ArrayList<DateTime>();
+        if(first == null) {
+            return months;
+        }
+        DateTime month = DateUtil.buildUTCDate(first.getYear(), first.getMonthOfYear(), 1);
+        while(!month.isAfter(last)) {
+            months.add(month);
+            month = month.plusMonths(1);
+        }
+        return months;
+    }
+
+    private String getRangeId(DateTime month) {
+        return TimeScope.MONTHLY.getKey() + month.getYear() + "_" + month.getMonthOfYear();
+    }
+
+    private boolean isCheckpoint(String step) {
+        return checkpoints.findOne(new BasicDBObject(MongoStatsEngine.FIELD_ID, step)) != null;
+    }
+
+    private long getCheckpointCount(String step) {
+        DBObject checkpoint = checkpoints.findOne(new BasicDBObject(MongoStatsEngine.FIELD_ID, step));
+        return checkpoint == null ? 0 : ((Number) checkpoint.get(MongoStatsEngine.FIELD_COUNT)).longValue();
+    }
+
+    private void checkpoint(String step, long count) {
+        checkpoints.save(MongoUtil.createDoc(
+                MongoStatsEngine.FIELD_ID, step,
+                MongoStatsEngine.FIELD_COUNT, count,
+                MongoStatsEngine.TOUCH_DATE, DateUtil.getDateTimeUTC().toDate()
+        ), WriteConcern.SAFE);
+    }
+
+    private StatEvent toEvent(DBObject doc) {
+        StatEvent event = new StatEvent();
+        event.setClientId((String) doc.get(MongoStatsEngine.EVENT_CLIENT_ID));
+        event.setTarget((String) doc.get(MongoStatsEngine.EVENT_TARGET));
+        event.setTargetType((String) doc.get(MongoStatsEngine.EVENT_TARGET_TYPE));
+        event.setAction((String) doc.get(MongoStatsEngine.EVENT_ACTION));
+        event.setDateTime(new DateTime(doc.get(MongoStatsEngine.EVENT_DATE), DateTimeZone.UTC));
+        DBObject metadata = (DBObject) doc.get(MongoStatsEngine.EVENT_METADATA);
+        if(metadata != null) {
+            for(String metaKey : metadata.keySet()) {
+                Object value = metadata.get(metaKey);
+                if(MongoStatsEngine.METAKEY_IP.equals(metaKey)) {
+                    value = toDottedIp(value);
+                }
+                event.getMetadata().put(metaKey, value);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Reverts the numeric IPv4 stored in raw events so it is counted with
+     * the same key as the original event
+     */
+    private Object toDottedIp(Object value) {
+        try {
+            long ip = Long.parseLong(String.valueOf(value));
+            return (ip >> 24 & 0xFF) + "." + (ip >> 16 & 0xFF) + "." + (ip >> 8 & 0xFF) + "." + (ip & 0xFF);
+        }catch(NumberFormatException ex) {
+            return value;
+        }
+    }
+
+    /**
+     * Raw events do not keep owners and tags: they are taken from the live
+     * counters
+     */
+    @SuppressWarnings("unchecked")
+    private void setOwnersTags(StatEvent event, DBCollection liveCounters, Map<String,DBObject> cache) {
+        String key = event.getClientId() + '\u0000' + event.getTarget() + '\u0000' + event.getTargetType();
+        DBObject ownersTags = cache.get(key);
+        if(ownersTags == null) {
+            ownersTags = liveCounters.findOne(
+                    MongoUtil.createDoc(
+                        MongoStatsEngine.EVENT_CLIENT_ID, event.getClientId(),
+                        MongoStatsEngine.EVENT_TARGET, event.getTarget(),
+                        MongoStatsEngine.EVENT_TARGET_TYPE, event.getTargetType()),
+                    MongoUtil.createDoc(MongoStatsEngine.EVENT_TARGET_OWNERS, 1, MongoStatsEngine.EVENT_TARGET_TAGS, 1));
+            if(ownersTags == null) {
+                ownersTags = new BasicDBObject();
+            }
+            cache.put(key, ownersTags);
+        }
+        event.setTargetOwners((List<String>) ownersTags.get(MongoStatsEngine.EVENT_TARGET_OWNERS));
+        event.setTargetTags((List<String>) ownersTags.get(MongoStatsEngine.EVENT_TARGET_TAGS));
+    }
+}
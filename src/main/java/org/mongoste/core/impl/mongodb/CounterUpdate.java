@@ -0,0 +1,211 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Mergeable counter upsert: a query plus its pending $inc, $set and $addToSet
+ * paths. Updates sharing the same collection and query can be merged into
+ * a single round trip.
+ * @author mrmx
+ */
+class CounterUpdate {
+    /** Last logged batch applied to a document */
+    static final String FIELD_BATCH = "_b";
+
+    private final DBCollection collection;
+    private final DBObject query;
+    private final boolean multi;
+    private final Map<String,Long> incMap = new LinkedHashMap<String,Long>();
+    private final Map<String,Object> setMap = new LinkedHashMap<String,Object>();
+    private final Map<String,Set<Object>> addToSetMap = new LinkedHashMap<String,Set<Object>>();
+    private String key;
+
+    CounterUpdate(DBCollection collection, DBObject query, boolean multi) {
+        this.collection = collection;
+        this.query = query;
+        this.multi = multi;
+    }
+
+    DBCollection getCollection() {
+        return collection;
+    }
+
+    DBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * Merge key: updates with equal keys target the same document/s
+     * @return merge key
+     */
+    String getKey() {
+        if(key == null) {
+            key = collection.getFullName() + query;
+        }
+        return key;
+    }
+
+    CounterUpdate inc(String path, long value) {
+        Long count = incMap.get(path);
+        incMap.put(path, count == null ? value : count + value);
+        return this;
+    }
+
+    CounterUpdate set(String path, Object value) {
+        setMap.put(path, value);
+        return this;
+    }
+
+    CounterUpdate addToSet(String path, Collection<?> values) {
+        if(values == null) {
+            return this;
+        }
+        Set<Object> set = addToSetMap.get(path);
+        if(set == null) {
+            addToSetMap.put(path, set = new LinkedHashSet<Object>());
+        }
+        set.addAll(values);
+        return this;
+    }
+
+    /**
+     * Merges other update paths into this one. Increments are summed,
+     * set values are overwritten and addToSet values are appended.
+     * @param other Update to merge
+     * @return This update
+     */
+    CounterUpdate merge(CounterUpdate other) {
+        for(Entry<String,Long> entry : other.incMap.entrySet()) {
+            inc(entry.getKey(), entry.getValue());
+        }
+        setMap.putAll(other.setMap);
+        for(Entry<String,Set<Object>> entry : other.addToSetMap.entrySet()) {
+            addToSet(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    boolean isEmpty() {
+        return incMap.isEmpty() && setMap.isEmpty() && addToSetMap.isEmpty();
+    }
+
+    DBObject toUpdateDoc() {
+        return toUpdateDoc(false);
+    }
+
+    /**
+     * @param absolute <code>true</code> to set the increments as values
+     */
+    private DBObject toUpdateDoc(boolean absolute) {
+        BasicDBObject doc = new BasicDBObject();
+        if(!addToSetMap.isEmpty()) {
+            BasicDBObject addToSetDoc = new BasicDBObject();
+            for(Entry<String,Set<Object>> entry : addToSetMap.entrySet()) {
+                addToSetDoc.put(entry.getKey(), new BasicDBObject("$each", new ArrayList<Object>(entry.getValue())));
+            }
+            doc.put("$addToSet", addToSetDoc);
+        }
+        BasicDBObject setDoc = new BasicDBObject(setMap);
+        BasicDBObject incDoc = absolute ? setDoc : new BasicDBObject();
+        for(Entry<String,Long> entry : incMap.entrySet()) {
+            incDoc.put(entry.getKey(), toNumber(entry.getValue()));
+        }
+        if(!setDoc.isEmpty()) {
+            doc.put("$set", setDoc);
+        }
+        if(!absolute && !incDoc.isEmpty()) {
+            doc.put("$inc", incDoc);
+        }
+        return doc;
+    }
+
+    /**
+     * Keeps counters as 32 bit integers while they fit so merged updates
+     * store the same BSON types as single event updates
+     */
+    private static Number toNumber(long value) {
+        if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int)value;
+        }
+        return value;
+    }
+
+    WriteResult apply() {
+        return collection.update(query, toUpdateDoc(), true, multi);
+    }
+
+    WriteResult apply(WriteConcern writeConcern) {
+        return collection.update(query, toUpdateDoc(), true, multi, writeConcern);
+    }
+
+    /**
+     * Applies the update once per logged batch: the updated documents keep
+     * the id of the last batch applied to them, so applying the batch again
+     * skips them. Batches must be applied one after the other.
+     * @param batchId Logged batch id
+     * @return <code>true</code> if the update is applied, now or before
+     */
+    boolean applyOnce(String batchId) {
+        DBObject update = toUpdateDoc();
+        DBObject setDoc = (DBObject) update.get("$set");
+        if(setDoc == null) {
+            update.put("$set", setDoc = new BasicDBObject());
+        }
+        setDoc.put(FIELD_BATCH, batchId);
+        BasicDBObject guarded = new BasicDBObject(query.toMap());
+        guarded.put(FIELD_BATCH, new BasicDBObject("$ne", batchId));
+        if(collection.update(guarded, update, false, multi, WriteConcern.SAFE).getN() > 0) {
+            return true;
+        }
+        BasicDBObject applied = new BasicDBObject(query.toMap());
+        applied.put(FIELD_BATCH, batchId);
+        if(collection.findOne(applied) != null) {
+            return true;
+        }
+        return collection.update(query, update, true, multi, WriteConcern.SAFE).getN() > 0;
+    }
+
+    /**
+     * Applies the update to another collection, setting the increments as
+     * absolute values. Idempotent when the increments hold the whole
+     * document counts.
+     * @param target Collection to update
+     * @param writeConcern Write concern
+     * @return Write result
+     */
+    WriteResult applyAbsolute(DBCollection target, WriteConcern writeConcern) {
+        return target.update(query, toUpdateDoc(true), true, multi, writeConcern);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"["+getKey()+" "+toUpdateDoc()+"]";
+    }
+}
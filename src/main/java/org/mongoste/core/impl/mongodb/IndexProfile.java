@@ -0,0 +1,36 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+/**
+ * Defines the index sets of the engine collections
+ * @author mrmx
+ */
+public enum IndexProfile {
+    /**
+     * Only the unique indexes needed by upserts and duplicate detection plus
+     * one compound index per query shape
+     */
+    WRITE_HEAVY,
+    /**
+     * Write heavy indexes plus action, owners and tags filter indexes
+     */
+    QUERY_HEAVY,
+    /**
+     * Every key indexed
+     */
+    FULL
+}
@@ -0,0 +1,102 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the documents of several cursors sorted by the same order into a
+ * single sorted sequence, holding just the head document of each cursor.
+ * @author mrmx
+ */
+class MergedCursor implements Iterator<DBObject> {
+    private final List<DBCursor> cursors;
+    private final PriorityQueue<Head> heads;
+
+    /**
+     * Head document of a cursor
+     */
+    private static class Head {
+        private final DBCursor cursor;
+        private DBObject document;
+
+        Head(DBCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        boolean advance() {
+            document = cursor.hasNext() ? cursor.next() : null;
+            return document != null;
+        }
+    }
+
+    /**
+     * @param cursors Cursors sorted by <code>comparator</code>
+     * @param comparator Order of the cursors documents
+     */
+    MergedCursor(List<DBCursor> cursors, final Comparator<DBObject> comparator) {
+        this.cursors = cursors;
+        this.heads = new PriorityQueue<Head>(Math.max(1, cursors.size()), new Comparator<Head>() {
+            @Override
+            public int compare(Head h1, Head h2) {
+                return comparator.compare(h1.document, h2.document);
+            }
+        });
+        for(DBCursor cursor : cursors) {
+            Head head = new Head(cursor);
+            if(head.advance()) {
+                heads.add(head);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public DBObject next() {
+        Head head = heads.poll();
+        if(head == null) {
+            throw new NoSuchElementException();
+        }
+        DBObject document = head.document;
+        if(head.advance()) {
+            heads.add(head);
+        }
+        return document;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        heads.clear();
+        for(DBCursor cursor : cursors) {
+            MongoUtil.close(cursor);
+        }
+    }
+}
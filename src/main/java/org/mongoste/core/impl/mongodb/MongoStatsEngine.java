@@ -17,44 +17,81 @@ package org.mongoste.core.impl.mongodb;
 
 import org.mongoste.core.AbstractStatsEngine;
 import org.mongoste.core.DuplicateEventException;
+import org.mongoste.core.EventDeduplicator;
+import org.mongoste.core.EventLog;
 import org.mongoste.core.StatsEngineException;
 import org.mongoste.core.TimeScope;
 import org.mongoste.model.StatEvent;
 import org.mongoste.model.StatAction;
 import org.mongoste.model.StatCounter;
 import org.mongoste.util.DateUtil;
+import org.mongoste.util.DistinctSketch;
+import org.mongoste.util.HyperLogLog;
+import org.mongoste.util.RoaringBitmap;
+import org.mongoste.util.TopKSketch;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MapReduceCommand.OutputType;
 import com.mongodb.Mongo;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.MutableDateTime;
 import org.mongoste.query.Query;
+import org.mongoste.query.QueryBatch;
+import org.mongoste.query.QueryCache;
+import org.mongoste.query.QueryException;
+import org.mongoste.query.ResultPage;
+import org.mongoste.query.ResultVisitor;
 import org.mongoste.query.QueryField;
 import org.mongoste.query.QueryFilter;
+import org.mongoste.query.QueryOp;
+import org.mongoste.query.QueryProfile;
 
 /**
  * MongoDB stats engine implementation
@@ -65,9 +102,8 @@ public class MongoStatsEngine extends AbstractStatsEngine {
 
     private Mongo mongo;
     private DB db;
-    private DBCollection events;
-    private Map<String,DBCollection> collectionMap;
-    private Map<String,String> functionMap;
+    private ConcurrentMap<String,DBCollection> collectionMap;
+    private final ConcurrentMap<String,String> functionMap = new ConcurrentHashMap<String,String>();
     private static final DBObject EMPTY_DOC = new BasicDBObject();
     private static final int ERROR_DUPKEY 			= 11000;
     private static final int ERROR_DUPKEY_INSERT	= 11001;
@@ -83,10 +119,15 @@ public class MongoStatsEngine extends AbstractStatsEngine {
     protected static final String EVENT_TIMESTAMP     = "ts";
     protected static final String EVENT_DATE          = "dt";
     protected static final String EVENT_METADATA      = "meta";
+    protected static final String EVENT_ID            = "_ide";
+    /** Logged events saved but not counted yet */
+    protected static final String EVENT_PENDING       = "p";
     protected static final String TARGET_YEAR         = "y";
     protected static final String TARGET_MONTH        = "m";
     protected static final String TOUCH_DATE          = "t";
     protected static final String ACTION_TARGET       = "target";
+    protected static final String FIELD_ID            = "_id";
+    protected static final String FIELD_STRIPE        = "s";
 
     protected static final String FIELD_TOTAL         = "total";
     protected static final String FIELD_COUNT         = "count";
@@ -94,31 +135,143 @@ public class MongoStatsEngine extends AbstractStatsEngine {
     protected static final String FIELD_HOURS         = "hours";
     protected static final String FIELD_HOUR          = "hour";
     protected static final String FIELD_META          = "meta";
+    protected static final String FIELD_DISTINCT_KEY  = "key";
+    protected static final String FIELD_SCOPE         = "scope";
 
     protected static final String COLLECTION_EVENTS          = "events";
     protected static final String COLLECTION_TARGETS         = "targets";
     protected static final String COLLECTION_COUNTERS        = "counters";
     protected static final String COLLECTION_TARGET_ACTIONS  = "actions";
     protected static final String COLLECTION_STATS           = "rstats";
+    protected static final String COLLECTION_LEADERBOARD     = "leaderboard";
+    protected static final String COLLECTION_DISTINCTS       = "distincts";
+    protected static final String COLLECTION_TOP_TARGETS     = "toptargets";
+    protected static final String COLLECTION_ROLLUPS         = "rollups";
+    protected static final String COLLECTION_CHECKPOINTS     = "checkpoints";
 
     protected static final String FN_MAPPER_TARGETS      = "targetMapper";
     protected static final String FN_REDUCER_TARGETS     = "targetReducer";
     protected static final String FN_REDUCER_PLAIN       = "plainReducer";
 
     protected static final String METAKEY_IP             = "ip";
+    /** Distinct count key of the targets of an action */
+    public static final String DISTINCT_TARGETS          = "targets";
+
+    /** Key fields of the raw targets, counters and actions documents */
+    private static final String [] RAW_TARGET_KEY     = {EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION,EVENT_DATE,TARGET_YEAR,TARGET_MONTH};
+    private static final String [] TARGET_KEY         = {EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE};
+    private static final String [] TARGET_ACTIONS_KEY = {EVENT_CLIENT_ID,EVENT_ACTION};
 
     protected static final TimeScope DEFAULT_TIMESCOPE_PRECISION = TimeScope.DAILY;
+    protected static final long DEFAULT_WRITEBEHIND_DELAY = 1000L;
+    protected static final int DEFAULT_WRITEBEHIND_SIZE   = 10000;
+    protected static final long DEFAULT_WAL_SEGMENT_SIZE  = 64L * 1024 * 1024;
+    protected static final long DEFAULT_WAL_DELAY         = 1000L;
+    /** Targets touched this long before a stats build are mapped again by the next one */
+    protected static final long CHECKPOINT_OVERLAP        = 60 * 1000L;
+    protected static final int DEFAULT_WAL_BATCH          = 1000;
+    protected static final int PREALLOCATED_CACHE_SIZE    = 10000;
+    protected static final long DEFAULT_DEDUP_WINDOW      = 10 * 60 * 1000L;
+    protected static final int DEFAULT_DEDUP_SIZE         = 100000;
+    protected static final long DEFAULT_QUERY_CACHE_TTL   = 60 * 1000L;
+    protected static final int DEFAULT_PARTITION_THREADS  = 4;
+    protected static final int DEFAULT_DISTINCT_PRECISION = 12;
+    protected static final int DEFAULT_DISTINCT_SIZE      = 10000;
+    protected static final int DEFAULT_TOPK_CAPACITY      = 100;
+    protected static final int TOPK_WIDTH                 = 2048;
+    protected static final int TOPK_DEPTH                 = 4;
+    /** Buffered top targets sketches, 64KB each */
+    protected static final int TOPK_PENDING               = 100;
+    /** Stats documents inserted at once by the parallel builds */
+    protected static final int BUILD_BATCH                = 1000;
 
 	
     
     private boolean resetCollections = false; //For testing debug!!!!
-    private boolean countEvents = true;
-    private boolean keepEvents = true;
+    private volatile boolean countEvents = true;
+    private volatile boolean keepEvents = true;
+    private volatile TimeScope eventsPartition = TimeScope.GLOBAL;
+    private volatile TimeScope targetsPartition = TimeScope.GLOBAL;
+    private volatile int partitionThreads = DEFAULT_PARTITION_THREADS;
+    private ExecutorService partitionExecutor;
+    private final ThreadLocal<List<DBCursor>> profiledCursors = new ThreadLocal<List<DBCursor>>();
+    private volatile boolean hashedKeys = false;
+    private volatile IndexProfile indexProfile = IndexProfile.FULL;
+    private volatile boolean preallocate = false;
+    private volatile EventDeduplicator deduplicator;
+    private volatile boolean leaderboard;
+    private volatile boolean rollups;
+    private volatile int countersStripes = 1;
+    private volatile int actionsStripes = 1;
+    private volatile StripeMode stripeMode = StripeMode.THREAD;
+
+    /**
+     * How an increment picks its counter stripe
+     */
+    public static enum StripeMode {
+        /** By calling thread: concurrent callers write distinct documents */
+        THREAD,
+        /** By event target and date hash: replays hit the same stripe */
+        HASH
+    }
+
+    /**
+     * How the distinct values of the distinct metadata keys are counted
+     */
+    public static enum DistinctMode {
+        /** Counted by value in the raw targets <code>meta</code> maps */
+        NONE,
+        /** Fixed size HyperLogLog sketches */
+        HLL,
+        /** Exact roaring bitmaps for the IPv4 key, HyperLogLog for the rest */
+        BITMAP
+    }
+    private volatile DistinctMode distinctMode = DistinctMode.NONE;
+
+    /**
+     * How buildStats reduces the targets
+     */
+    public static enum BuildMode {
+        /** JavaScript map reduce run by the server */
+        MAP_REDUCE,
+        /** Targets streamed and reduced in parallel by this engine */
+        PARALLEL
+    }
+    private volatile BuildMode buildMode = BuildMode.MAP_REDUCE;
+    private volatile int buildThreads = Runtime.getRuntime().availableProcessors();
+    private final AtomicLong checkpointResets = new AtomicLong();
+    private volatile Set<String> distinctKeys = Collections.singleton(METAKEY_IP);
+    private volatile int distinctPrecision = DEFAULT_DISTINCT_PRECISION;
+    private volatile SketchStore distinctStore;
+    private volatile SketchStore topTargetsStore;
+    private volatile int topTargetsCapacity = DEFAULT_TOPK_CAPACITY;
+    //Access ordered: the targets of the current month stay cached
+    private final Map<Object,Boolean> preallocated = Collections.synchronizedMap(
+            new LinkedHashMap<Object,Boolean>(16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object,Boolean> eldest) {
+                    return size() > PREALLOCATED_CACHE_SIZE;
+                }
+            });
+    private boolean writeBehind = false;
+    private long writeBehindDelay = DEFAULT_WRITEBEHIND_DELAY;
+    private int writeBehindSize = DEFAULT_WRITEBEHIND_SIZE;
+    private volatile WriteBehindBuffer writeBehindBuffer;
+    private EventLog eventLog;
+    private Thread eventLogApplier;
+    private volatile boolean applyingEventLog;
 
     public MongoStatsEngine() {
     }
     
+    /**
+     * @param keepEvents <code>false</code> to count the events without
+     * saving them, not allowed with the event log
+     */
     public void setKeepEvents(boolean keepEvents) {
+        if(!keepEvents && eventLog != null) {
+            throw new IllegalStateException("The event log replay needs the raw events");
+        }
         this.keepEvents = keepEvents;
     }
 
@@ -126,6 +279,321 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         return keepEvents;
     }
 
+    /**
+     * Sets the raw events partitioning scope: events are saved in per period
+     * collections (for example <code>events_m2011_5</code> for MONTHLY) so
+     * old periods can be dropped as a whole
+     * @param eventsPartition partition scope, GLOBAL for a single collection
+     * @see #dropEventPartitions(DateTime)
+     */
+    public void setEventsPartition(TimeScope eventsPartition) {
+        if(eventsPartition == null) {
+            throw new IllegalArgumentException("null events partition");
+        }
+        this.eventsPartition = eventsPartition;
+    }
+
+    public TimeScope getEventsPartition() {
+        return eventsPartition;
+    }
+
+    /**
+     * Sets the raw targets partitioning scope: monthly targets documents are
+     * saved in per month or per year collections (for example
+     * <code>targets_m2011_5</code> for MONTHLY), so each collection indexes
+     * stay small and date ranged target stats only read the overlapping ones.
+     * Existing GLOBAL targets are not moved.
+     * @param targetsPartition GLOBAL, ANNUAL or MONTHLY
+     */
+    public void setTargetsPartition(TimeScope targetsPartition) {
+        if(targetsPartition != TimeScope.GLOBAL && targetsPartition != TimeScope.ANNUAL
+                && targetsPartition != TimeScope.MONTHLY) {
+            throw new IllegalArgumentException("Unsupported targets partition: " + targetsPartition);
+        }
+        this.targetsPartition = targetsPartition;
+    }
+
+    public TimeScope getTargetsPartition() {
+        return targetsPartition;
+    }
+
+    /**
+     * @param partitionThreads Max targets partitions queried in parallel
+     */
+    public synchronized void setPartitionThreads(int partitionThreads) {
+        if(partitionThreads <= 0) {
+            throw new IllegalArgumentException("partition threads must be positive");
+        }
+        this.partitionThreads = partitionThreads;
+        stopPartitionExecutor();
+    }
+
+    public int getPartitionThreads() {
+        return partitionThreads;
+    }
+
+    /**
+     * Enables or disables the hashed keys schema: targets, counters and
+     * actions documents get a hashed <code>_id</code> of their key fields so
+     * upserts match on the primary key and most secondary indexes are not
+     * needed. Existing data must be converted with {@link #migrateHashedKeys()}.
+     * @param hashedKeys <code>true</code> to use hashed keys
+     */
+    public void setHashedKeys(boolean hashedKeys) {
+        this.hashedKeys = hashedKeys;
+        if(collectionMap != null) {
+            //Indexes depend on the schema
+            collectionMap.clear();
+        }
+    }
+
+    public boolean isHashedKeys() {
+        return hashedKeys;
+    }
+
+    /**
+     * Sets the index profile of the events, targets, counters and actions
+     * collections. Indexes not needed by the profile are kept until
+     * {@link #getUnneededIndexes(boolean)} drops them.
+     * @param indexProfile Index profile
+     */
+    public void setIndexProfile(IndexProfile indexProfile) {
+        if(indexProfile == null) {
+            throw new IllegalArgumentException("null index profile");
+        }
+        this.indexProfile = indexProfile;
+        if(collectionMap != null) {
+            collectionMap.clear();
+        }
+    }
+
+    public IndexProfile getIndexProfile() {
+        return indexProfile;
+    }
+
+    /**
+     * Enables or disables the preallocation of monthly targets documents: the
+     * first event of a month creates the whole days (DAILY precision) or
+     * days and hours (HOURLY precision) counters skeleton so later increments
+     * update the document in place. With write-behind the skeletons are
+     * created on flush, before the buffered increments are written.
+     * @param preallocate <code>true</code> to preallocate
+     */
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    /**
+     * Enables or disables the leaderboard: one document per client, target
+     * type, action and target with its count, read by getTopTargets in index
+     * order and paged with continuation tokens. Existing counters are loaded
+     * with {@link #buildLeaderboard()}.
+     * @param leaderboard <code>true</code> to count and read the leaderboard
+     */
+    public void setLeaderboard(boolean leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
+    public boolean isLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Enables or disables the weekly and annual rollups: one document per
+     * target, action and week or year with its count. Target stats grouped
+     * by week read the weekly rollups of the whole weeks in the date range,
+     * and grouped by year or globally the annual rollups of the whole years,
+     * reading the targets documents only for the range edges. Existing
+     * targets are rolled up with {@link #buildRollups()}.
+     * @param rollups <code>true</code> to count and read the rollups
+     */
+    public void setRollups(boolean rollups) {
+        this.rollups = rollups;
+    }
+
+    public boolean isRollups() {
+        return rollups;
+    }
+
+    /**
+     * Sets the in-process detector of retried events. Events with an event
+     * id already handled recently are rejected before any database access.
+     * @param deduplicator Duplicated events detector, <code>null</code> to disable
+     */
+    public void setDeduplicator(EventDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public EventDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Sets the number of documents the increments of a target counters
+     * document are spread across. Reads merge the stripes.
+     * @param countersStripes Stripes, 1 to disable striping
+     */
+    public void setCountersStripes(int countersStripes) {
+        if(countersStripes < 1) {
+            throw new IllegalArgumentException("Invalid counters stripes: " + countersStripes);
+        }
+        this.countersStripes = countersStripes;
+        if(collectionMap != null) {
+            collectionMap.clear();
+        }
+    }
+
+    public int getCountersStripes() {
+        return countersStripes;
+    }
+
+    /**
+     * Sets the number of documents the increments of a client action
+     * document are spread across. Reads merge the stripes.
+     * @param actionsStripes Stripes, 1 to disable striping
+     */
+    public void setActionsStripes(int actionsStripes) {
+        if(actionsStripes < 1) {
+            throw new IllegalArgumentException("Invalid actions stripes: " + actionsStripes);
+        }
+        this.actionsStripes = actionsStripes;
+        if(collectionMap != null) {
+            collectionMap.clear();
+        }
+    }
+
+    public int getActionsStripes() {
+        return actionsStripes;
+    }
+
+    public void setStripeMode(StripeMode stripeMode) {
+        if(stripeMode == null) {
+            throw new IllegalArgumentException("null stripe mode");
+        }
+        this.stripeMode = stripeMode;
+    }
+
+    public StripeMode getStripeMode() {
+        return stripeMode;
+    }
+
+    /**
+     * Sets how distinct metadata values are counted. With a mode other than
+     * NONE the distinct keys are no longer counted by value in the raw
+     * targets: each action, target and time bucket keeps a sketch per key,
+     * and the distinct targets of each action are counted too. Unique
+     * counts are read with {@link #getDistinctCount(Query, String)}.
+     * @param distinctMode Distinct count mode
+     */
+    public void setDistinctMode(DistinctMode distinctMode) {
+        if(distinctMode == null) {
+            throw new IllegalArgumentException("null distinct mode");
+        }
+        this.distinctMode = distinctMode;
+        if(distinctMode == DistinctMode.NONE) {
+            distinctStore = null;
+        } else if(distinctStore == null) {
+            distinctStore = new SketchStore(this, COLLECTION_DISTINCTS, DEFAULT_DISTINCT_SIZE);
+        }
+    }
+
+    public DistinctMode getDistinctMode() {
+        return distinctMode;
+    }
+
+    /**
+     * Sets how the stats are built. Parallel builds keep the map reduce
+     * output, hold it in memory until written and take no server locks
+     * but the reads and writes.
+     * @param buildMode Stats build mode
+     */
+    public void setBuildMode(BuildMode buildMode) {
+        if(buildMode == null) {
+            throw new IllegalArgumentException("null build mode");
+        }
+        this.buildMode = buildMode;
+    }
+
+    public BuildMode getBuildMode() {
+        return buildMode;
+    }
+
+    /**
+     * @param buildThreads Threads reducing the targets of parallel builds
+     */
+    public void setBuildThreads(int buildThreads) {
+        if(buildThreads <= 0) {
+            throw new IllegalArgumentException("build threads must be positive");
+        }
+        this.buildThreads = buildThreads;
+    }
+
+    public int getBuildThreads() {
+        return buildThreads;
+    }
+
+    /**
+     * @param distinctKeys Metadata keys counted with sketches
+     */
+    public void setDistinctKeys(Collection<String> distinctKeys) {
+        this.distinctKeys = Collections.unmodifiableSet(new HashSet<String>(distinctKeys));
+    }
+
+    public Set<String> getDistinctKeys() {
+        return distinctKeys;
+    }
+
+    /**
+     * @param distinctPrecision HyperLogLog precision, 4 to 16: sketches take
+     * 2^precision bytes with a standard error of 1.04/sqrt(2^precision)
+     */
+    public void setDistinctPrecision(int distinctPrecision) {
+        new HyperLogLog(distinctPrecision);
+        this.distinctPrecision = distinctPrecision;
+    }
+
+    public int getDistinctPrecision() {
+        return distinctPrecision;
+    }
+
+    /**
+     * Enables or disables the daily top targets sketches: a Count-Min sketch
+     * with its heavy hitter candidates per client, target type, action and
+     * day. getTopTargets with a date range merges the days sketches instead
+     * of ranking the all time counters.
+     * @param topTargetsSketches <code>true</code> to count and read the sketches
+     */
+    public void setTopTargetsSketches(boolean topTargetsSketches) {
+        if(!topTargetsSketches) {
+            topTargetsStore = null;
+        } else if(topTargetsStore == null) {
+            topTargetsStore = new SketchStore(this, COLLECTION_TOP_TARGETS, TOPK_PENDING);
+        }
+    }
+
+    public boolean isTopTargetsSketches() {
+        return topTargetsStore != null;
+    }
+
+    /**
+     * @param topTargetsCapacity Heavy hitter candidates kept per sketch: date
+     * ranged top targets return at most this many targets
+     */
+    public void setTopTargetsCapacity(int topTargetsCapacity) {
+        if(topTargetsCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid top targets capacity: " + topTargetsCapacity);
+        }
+        this.topTargetsCapacity = topTargetsCapacity;
+    }
+
+    public int getTopTargetsCapacity() {
+        return topTargetsCapacity;
+    }
+
     public void setResetCollections(boolean resetCollections) {
         this.resetCollections = resetCollections;
     }
@@ -141,6 +609,51 @@ public class MongoStatsEngine extends AbstractStatsEngine {
     public boolean isCountEvents() {
         return countEvents;
     }
+
+    /**
+     * Enables or disables the write-behind mode: counter increments are
+     * coalesced in memory and flushed in the background. Duplicated events
+     * are only detected when their raw documents are flushed, so they are
+     * dropped uncounted instead of rejected with a
+     * {@link DuplicateEventException}.
+     * @param writeBehind <code>true</code> to enable write-behind
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        if(db != null) {
+            if(writeBehind) {
+                startWriteBehind();
+            } else {
+                stopWriteBehind();
+            }
+        }
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @param writeBehindDelay max milliseconds an increment is kept in memory
+     */
+    public void setWriteBehindDelay(long writeBehindDelay) {
+        this.writeBehindDelay = writeBehindDelay;
+    }
+
+    public long getWriteBehindDelay() {
+        return writeBehindDelay;
+    }
+
+    /**
+     * @param writeBehindSize max buffered events before forcing a flush
+     */
+    public void setWriteBehindSize(int writeBehindSize) {
+        this.writeBehindSize = writeBehindSize;
+    }
+
+    public int getWriteBehindSize() {
+        return writeBehindSize;
+    }
     
     @Override
     public void init(Properties properties) throws StatsEngineException {
@@ -161,14 +674,151 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         }
         setKeepEvents(Boolean.valueOf(properties.getProperty("events.keep", "true")));
         setCountEvents(Boolean.valueOf(properties.getProperty("events.count", "true")));
+        String partition = properties.getProperty("events.partition", TimeScope.GLOBAL.name());
+        try {
+            setEventsPartition(TimeScope.valueOf(partition.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid events partition: "+partition, ex);
+        }
+        partition = properties.getProperty("targets.partition", TimeScope.GLOBAL.name());
+        try {
+            setTargetsPartition(TimeScope.valueOf(partition.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid targets partition: "+partition, ex);
+        }
+        setPartitionThreads(Integer.parseInt(properties.getProperty("targets.partition.threads", String.valueOf(DEFAULT_PARTITION_THREADS))));
+        setBatchThreads(Integer.parseInt(properties.getProperty("batch.threads", String.valueOf(DEFAULT_BATCH_THREADS))));
         setTimeScopePrecision(properties.getProperty("precision", DEFAULT_TIMESCOPE_PRECISION.name()));
+        setWriteBehindDelay(Long.parseLong(properties.getProperty("writebehind.delay", String.valueOf(DEFAULT_WRITEBEHIND_DELAY))));
+        setWriteBehindSize(Integer.parseInt(properties.getProperty("writebehind.size", String.valueOf(DEFAULT_WRITEBEHIND_SIZE))));
+        setHashedKeys(Boolean.valueOf(properties.getProperty("keys.hashed", "false")));
+        setPreallocate(Boolean.valueOf(properties.getProperty("preallocate", "false")));
+        setLeaderboard(Boolean.valueOf(properties.getProperty("leaderboard", "false")));
+        setRollups(Boolean.valueOf(properties.getProperty("rollups", "false")));
+        setCountersStripes(Integer.parseInt(properties.getProperty("stripes.counters", "1")));
+        setActionsStripes(Integer.parseInt(properties.getProperty("stripes.actions", "1")));
+        String mode = properties.getProperty("stripes.mode", StripeMode.THREAD.name());
+        try {
+            setStripeMode(StripeMode.valueOf(mode.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid stripe mode: "+mode, ex);
+        }
+        if(Boolean.valueOf(properties.getProperty("dedup", "false"))) {
+            setDeduplicator(new EventDeduplicator(
+                    Long.parseLong(properties.getProperty("dedup.window", String.valueOf(DEFAULT_DEDUP_WINDOW))),
+                    Integer.parseInt(properties.getProperty("dedup.size", String.valueOf(DEFAULT_DEDUP_SIZE)))
+            ));
+        }
+        int cacheSize = Integer.parseInt(properties.getProperty("query.cache.size", "0"));
+        if(cacheSize > 0) {
+            setQueryCache(new QueryCache(cacheSize,
+                    Long.parseLong(properties.getProperty("query.cache.ttl", String.valueOf(DEFAULT_QUERY_CACHE_TTL)))));
+        }
+        setDistinctKeys(Arrays.asList(StringUtils.split(properties.getProperty("distinct.keys", METAKEY_IP), ", ")));
+        setDistinctPrecision(Integer.parseInt(properties.getProperty("distinct.precision", String.valueOf(DEFAULT_DISTINCT_PRECISION))));
+        mode = properties.getProperty("distinct.mode", DistinctMode.NONE.name());
+        try {
+            setDistinctMode(DistinctMode.valueOf(mode.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid distinct mode: "+mode, ex);
+        }
+        mode = properties.getProperty("build.mode", BuildMode.MAP_REDUCE.name());
+        try {
+            setBuildMode(BuildMode.valueOf(mode.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid build mode: "+mode, ex);
+        }
+        setBuildThreads(Integer.parseInt(properties.getProperty("build.threads", String.valueOf(buildThreads))));
+        setTopTargetsCapacity(Integer.parseInt(properties.getProperty("toptargets.capacity", String.valueOf(DEFAULT_TOPK_CAPACITY))));
+        setTopTargetsSketches(Boolean.valueOf(properties.getProperty("toptargets.sketches", "false")));
+        String profile = properties.getProperty("index.profile", IndexProfile.FULL.name());
+        try {
+            setIndexProfile(IndexProfile.valueOf(profile.trim().toUpperCase()));
+        }catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("Invalid index profile: "+profile, ex);
+        }
         initCollections();
         initFunctions();
+        setWriteBehind(Boolean.valueOf(properties.getProperty("writebehind", String.valueOf(writeBehind))));
+        String walDir = properties.getProperty("wal.dir");
+        if(StringUtils.isNotBlank(walDir)) {
+            initEventLog(new EventLog(new File(walDir),
+                    Long.parseLong(properties.getProperty("wal.segment.size", String.valueOf(DEFAULT_WAL_SEGMENT_SIZE))),
+                    Boolean.valueOf(properties.getProperty("wal.sync", "true")),
+                    Integer.parseInt(properties.getProperty("wal.batch", String.valueOf(DEFAULT_WAL_BATCH)))
+                ),
+                Long.parseLong(properties.getProperty("wal.delay", String.valueOf(DEFAULT_WAL_DELAY)))
+            );
+        }
+    }
+
+    @Override
+    public void shutDown() throws StatsEngineException {
+        log.info("Mongo Stats Engine shutdown");
+        stopEventLog();
+        stopWriteBehind();
+        stopPartitionExecutor();
+        for(SketchStore sketches : new SketchStore[] {distinctStore, topTargetsStore}) {
+            if(sketches == null) {
+                continue;
+            }
+            try {
+                sketches.flush();
+            }catch(StatsEngineException ex) {
+                log.error("Flushing sketches",ex);
+            }
+        }
+        super.shutDown();
+        if(mongo != null) {
+            mongo.close();
+        }
+    }
+
+    /**
+     * Flushes pending write-behind increments and sketches, if any
+     * @throws StatsEngineException
+     */
+    public void flush() throws StatsEngineException {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if(buffer != null) {
+            buffer.flush();
+        }
+        for(SketchStore sketches : new SketchStore[] {distinctStore, topTargetsStore}) {
+            if(sketches != null) {
+                sketches.flush();
+            }
+        }
     }
     
     @Override
     public void handleEvent(StatEvent event) throws StatsEngineException {
         checkEvent(event);
+        EventDeduplicator dedup = deduplicator;
+        if(dedup != null && dedup.checkAndAdd(event)) {
+            throw new DuplicateEventException("Duplicate event id " + event.getEventId());
+        }
+        try {
+            handleCheckedEvent(event);
+        }catch(RuntimeException ex) {
+            if(dedup != null) {
+                //Not handled: let it be retried
+                dedup.remove(event);
+            }
+            throw ex;
+        }
+        invalidateQueryCache(event);
+    }
+
+    private void handleCheckedEvent(StatEvent event) throws StatsEngineException {
+        if(eventLog != null) {
+            eventLog.append(event);
+            return;
+        }
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if(buffer != null) {
+            bufferEvent(buffer, event);
+            return;
+        }
         if(isKeepEvents()) {
             saveEvent(event);
         }
@@ -179,17 +829,174 @@ public class MongoStatsEngine extends AbstractStatsEngine {
                 countTarget(event);
                 //Count total actions/targets
                 countTargetActions(event);
+                if(leaderboard) {
+                    createLeaderboardUpdate(event).apply();
+                }
+                if(rollups) {
+                    for(CounterUpdate update : createRollupUpdates(event)) {
+                        update.apply();
+                    }
+                }
+                countSketches(event);
             } 
         }
     }
 
+    /**
+     * Handles a batch of events grouping their counter updates by target key:
+     * one upsert per targets, counters and actions document and a single
+     * batched insert for the raw events. Rejected events are reported
+     * without aborting the rest of the batch.
+     * @param events Events to handle
+     * @return rejected events with their cause, empty if all were handled
+     * @throws StatsEngineException
+     */
+    @Override
+    public Map<StatEvent,StatsEngineException> handleEvents(Collection<StatEvent> events) throws StatsEngineException {
+        Map<StatEvent,StatsEngineException> rejected = new LinkedHashMap<StatEvent,StatsEngineException>();
+        List<StatEvent> accepted = new ArrayList<StatEvent>(events.size());
+        EventDeduplicator dedup = deduplicator;
+        Set<String> batchIds = new HashSet<String>();
+        for(StatEvent event : events) {
+            try {
+                checkEvent(event);
+                if(event.getEventId() != null && !batchIds.add(event.getClientId() + '\u0000' + event.getEventId())
+                   || dedup != null && dedup.checkAndAdd(event)) {
+                    throw new DuplicateEventException("Duplicate event id " + event.getEventId());
+                }
+                accepted.add(event);
+            }catch(StatsEngineException ex) {
+                rejected.put(event, ex);
+            }
+        }
+        try {
+            handleCheckedEvents(accepted, rejected);
+        }catch(RuntimeException ex) {
+            if(dedup != null) {
+                for(StatEvent event : accepted) {
+                    dedup.remove(event);
+                }
+            }
+            throw ex;
+        }
+        for(StatEvent event : accepted) {
+            invalidateQueryCache(event);
+            if(dedup != null && rejected.containsKey(event)) {
+                //Not handled: let it be retried
+                dedup.remove(event);
+            }
+        }
+        return rejected;
+    }
+
+    private void handleCheckedEvents(List<StatEvent> accepted, Map<StatEvent,StatsEngineException> rejected) throws StatsEngineException {
+        if(eventLog != null) {
+            for(StatEvent event : accepted) {
+                eventLog.append(event);
+            }
+            return;
+        }
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if(buffer != null) {
+            for(StatEvent event : accepted) {
+                bufferEvent(buffer, event);
+            }
+            return;
+        }
+        processEvents(accepted, rejected, null, null);
+    }
+
+    /**
+     * Saves and counts a batch of checked events
+     * @param pending if not <code>null</code>, the events are saved marked as
+     * pending and unmarked once counted, receives the saved events ids
+     * @param batchId Logged batch id, if not <code>null</code> the counters
+     * are updated once per batch id
+     */
+    private Map<StatEvent,StatsEngineException> processEvents(List<StatEvent> accepted, Map<StatEvent,StatsEngineException> rejected,
+            Map<StatEvent,Object> pending, String batchId) throws StatsEngineException {
+        if(isKeepEvents()) {
+            accepted = saveEvents(accepted, rejected, pending);
+        }
+        if(countEvents && !accepted.isEmpty()) {
+            accepted = countRawTargets(accepted, rejected, batchId);
+            Map<String,CounterUpdate> updates = new LinkedHashMap<String,CounterUpdate>();
+            for(StatEvent event : accepted) {
+                mergeUpdate(updates, createTargetUpdate(event));
+                mergeUpdate(updates, createTargetActionsUpdate(event));
+                if(leaderboard) {
+                    mergeUpdate(updates, createLeaderboardUpdate(event));
+                }
+                if(rollups) {
+                    for(CounterUpdate update : createRollupUpdates(event)) {
+                        mergeUpdate(updates, update);
+                    }
+                }
+                countSketches(event);
+            }
+            for(CounterUpdate update : updates.values()) {
+                if(batchId == null) {
+                    update.apply();
+                } else {
+                    update.applyOnce(batchId);
+                }
+            }
+        }
+        if(pending != null) {
+            clearPending(accepted, pending);
+        }
+        return rejected;
+    }
+
+    /**
+     * Unmarks the pending events once all their counters are written
+     */
+    private void clearPending(List<StatEvent> counted, Map<StatEvent,Object> pending) throws StatsEngineException {
+        Map<DBCollection,List<Object>> ids = new LinkedHashMap<DBCollection,List<Object>>();
+        for(StatEvent event : counted) {
+            DBCollection events = getEventCollection(event);
+            List<Object> eventIds = ids.get(events);
+            if(eventIds == null) {
+                ids.put(events, eventIds = new ArrayList<Object>());
+            }
+            eventIds.add(pending.get(event));
+        }
+        for(Entry<DBCollection,List<Object>> entry : ids.entrySet()) {
+            entry.getKey().update(new BasicDBObject(FIELD_ID, new BasicDBObject("$in", entry.getValue())),
+                    new BasicDBObject("$unset", new BasicDBObject(EVENT_PENDING, 1)), false, true, WriteConcern.SAFE);
+        }
+    }
+
     @Override
     public List<TimeScope> getSupportedTimeScopePrecision() {
         return Arrays.asList(TimeScope.MONTHLY,TimeScope.DAILY,TimeScope.HOURLY);
     }
 
+    /**
+     * Builds the stats incrementally
+     * @see #buildStats(TimeScope, TimeScope, boolean)
+     */
     @Override
     public void buildStats(TimeScope scope,TimeScope groupBy) {
+        buildStats(scope, groupBy, true);
+    }
+
+    /**
+     * Map reduces the targets into the stats collection of a scope.
+     * <p>
+     * Incremental builds only map the targets documents touched since the
+     * checkpoint of the previous build of the same collection and grouping,
+     * merging their results into the collection. A monthly targets document
+     * holds the whole counts of the keys it maps to, so merged keys are
+     * replaced rather than added to, and documents mapped twice are
+     * harmless. Builds without a checkpoint replace the collection. Target
+     * owners and tags are part of the keys: changing them resets the
+     * checkpoints so the next builds are full.
+     * @param scope Stats collection scope
+     * @param groupBy Stats grouping, the engine precision by default
+     * @param incremental <code>false</code> to replace the whole collection
+     */
+    public void buildStats(TimeScope scope,TimeScope groupBy,boolean incremental) {
         TimeScope mapperScope = groupBy;
         if(mapperScope == null) {
             mapperScope = getTimeScopePrecision();
@@ -204,57 +1011,241 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         String red = getFunction(FN_REDUCER_TARGETS);
         DateTime now = DateUtil.getDateTimeUTC();
         String statsResultCollection = getScopeCollectionName(COLLECTION_STATS,now.toDate(), scope);
-        DBObject queryTargets = EMPTY_DOC; //TODO
-        try {            
-            getTargetCollection().mapReduce(map, red, statsResultCollection, queryTargets);
+        DBObject queryTargets = EMPTY_DOC;
+        long resets = checkpointResets.get();
+        try {
+            Date since = incremental ? getCheckpoint(statsResultCollection, mapperScope) : null;
+            //Increments still being written are mapped again by the next build
+            Date checkpoint = now.minus(CHECKPOINT_OVERLAP + writeBehindDelay).toDate();
+            flush();
+            if(since != null) {
+                queryTargets = new BasicDBObject(TOUCH_DATE, new BasicDBObject("$gte", since));
+            }
+            long t = System.currentTimeMillis();
+            if(buildMode == BuildMode.PARALLEL) {
+                aggregateTargets(mapperScope, statsResultCollection, queryTargets, since == null);
+            } else {
+                //Partitions are reduced one by one into the same output
+                OutputType outputType = since == null ? OutputType.REPLACE : OutputType.MERGE;
+                for(DBCollection targets : getTargetCollections(null, null)) {
+                    targets.mapReduce(map, red, statsResultCollection, outputType, queryTargets);
+                    outputType = OutputType.MERGE;
+                }
+            }
+            log.info("Built {} stats since {} in {}ms", new Object[] {statsResultCollection, since, System.currentTimeMillis() - t});
+            if(resets != checkpointResets.get()) {
+                //Owners or tags changed while building
+                return;
+            }
+            db.getCollection(COLLECTION_CHECKPOINTS).save(MongoUtil.createDoc(
+                    FIELD_ID, statsResultCollection,
+                    FIELD_SCOPE, mapperScope.getKey(),
+                    TOUCH_DATE, checkpoint
+            ));
         } catch (StatsEngineException ex) {
             log.error("Map reducing targets",ex);
+        } catch (MongoException ex) {
+            log.error("Map reducing targets",ex);
+        }
+    }
+
+    /**
+     * Reduces the targets with a {@link TargetAggregator}, streaming its
+     * results in batches. Replaced stats are inserted into a temporary
+     * collection renamed to the output, like the map reduce does, merged
+     * ones replace their output keys batch by batch.
+     */
+    private void aggregateTargets(TimeScope groupBy, String statsResultCollection, DBObject queryTargets, boolean replace)
+            throws StatsEngineException {
+        TargetAggregator aggregator = new TargetAggregator(groupBy, buildThreads, BUILD_BATCH);
+        final DBCollection output = db.getCollection(replace ? statsResultCollection + ".tmp" : statsResultCollection);
+        TargetAggregator.Output writer;
+        if(replace) {
+            output.drop();
+            writer = new TargetAggregator.Output() {
+                @Override
+                public void write(List<DBObject> results) {
+                    output.insert(results);
+                }
+            };
+        } else {
+            writer = new TargetAggregator.Output() {
+                @Override
+                public void write(List<DBObject> results) {
+                    BasicDBList ids = new BasicDBList();
+                    for(DBObject result : results) {
+                        ids.add(result.get(FIELD_ID));
+                    }
+                    output.remove(new BasicDBObject(FIELD_ID, new BasicDBObject("$in", ids)), WriteConcern.SAFE);
+                    output.insert(results, WriteConcern.SAFE);
+                }
+            };
+        }
+        long written = 0;
+        for(DBCollection targets : getTargetCollections(null, null)) {
+            DBCursor dbc = targets.find(queryTargets, TargetAggregator.FIELDS);
+            try {
+                written += aggregator.aggregate(dbc, writer);
+            } finally {
+                dbc.close();
+            }
+        }
+        if(!replace) {
+            return;
+        }
+        if(written == 0) {
+            output.drop();
+            db.getCollection(statsResultCollection).drop();
+        } else {
+            output.rename(statsResultCollection, true);
+        }
+    }
+
+    /**
+     * Makes the next stats builds full: owners and tags changes replace
+     * stats keys, which merging touched targets would not remove
+     */
+    private void resetStatsCheckpoints() {
+        checkpointResets.incrementAndGet();
+        db.getCollection(COLLECTION_CHECKPOINTS).remove(EMPTY_DOC);
+    }
+
+    /**
+     * Gets the checkpoint of the last stats build into a collection
+     * @return targets touch date to build from, <code>null</code> to build
+     * them all: no previous build with the same grouping or missing output
+     */
+    private Date getCheckpoint(String statsResultCollection, TimeScope mapperScope) {
+        DBObject checkpoint = db.getCollection(COLLECTION_CHECKPOINTS).findOne(new BasicDBObject(FIELD_ID, statsResultCollection));
+        if(checkpoint == null || !mapperScope.getKey().equals(checkpoint.get(FIELD_SCOPE))
+           || !db.getCollectionNames().contains(statsResultCollection)) {
+            return null;
         }
+        return (Date) checkpoint.get(TOUCH_DATE);
     }
 
 
 
     @Override
     public List<StatAction> getActions(Query query) throws StatsEngineException {
-        List<StatAction> actions = new ArrayList<StatAction>();
+        final ResultPage<StatAction> actions = new ResultPage<StatAction>();
+        actions.setContinuation(visitActions(query, new ResultVisitor<StatAction>() {
+            @Override
+            public boolean visit(StatAction action) {
+                return actions.add(action);
+            }
+        }));
+        return actions;
+    }
+
+    /**
+     * Streams the client actions sorted by client and name. Stripes of the
+     * same client action are consecutive, so only the current action is kept
+     * in memory. Continuation tokens hold the last client and action.
+     */
+    @Override
+    public String visitActions(Query query, ResultVisitor<StatAction> visitor) throws StatsEngineException {
+        DBCursor dbc = null;
         try {
             DBCollection targetActions = getTargetActionsCollection();
-            DBObject queryDoc = EMPTY_DOC;
+            BasicDBObject queryDoc = new BasicDBObject();
             QueryFilter filter = query.getFilter(QueryField.CLIENT_ID);
             if(filter != null && !filter.isEmpty())  {
-                queryDoc = MongoUtil.createDoc(EVENT_CLIENT_ID,filter.getValue());
+                queryDoc.put(EVENT_CLIENT_ID,getQueryValue(query,QueryField.CLIENT_ID));
+            }
+            if(query.getFilter(QueryField.ACTION) != null) {
+                queryDoc.put(EVENT_ACTION,getQueryValue(query,QueryField.ACTION));
             }
-            DBCursor dbc = targetActions.find(queryDoc,MongoUtil.createDoc(EVENT_ACTION,1,FIELD_TOTAL,1,ACTION_TARGET,1));
-            if(query.getMaxResults() != null) {
-                dbc.limit(query.getMaxResults());
+            //Thresholds apply to the stripes sum
+            QueryFilter countFilter = query.getFilter(QueryField.COUNT);
+            if(countFilter != null && actionsStripes <= 1) {
+                queryDoc.put(FIELD_TOTAL,getQueryValue(query,QueryField.COUNT));
+            }
+            if(query.getContinuation() != null) {
+                String [] last = query.getContinuation().split(":", -1);
+                try {
+                    if(last.length != 2) {
+                        throw new IllegalArgumentException("client and action expected");
+                    }
+                    String lastClient = MongoUtil.fromHex(last[0]);
+                    String lastAction = MongoUtil.fromHex(last[1]);
+                    BasicDBList resume = new BasicDBList();
+                    resume.add(new BasicDBObject(EVENT_CLIENT_ID, new BasicDBObject("$gt", lastClient)));
+                    resume.add(MongoUtil.createDoc(EVENT_CLIENT_ID, lastClient, EVENT_ACTION, new BasicDBObject("$gt", lastAction)));
+                    queryDoc.put("$or", resume);
+                }catch(IllegalArgumentException ex) {
+                    throw new QueryException("Invalid continuation token " + query.getContinuation(), ex);
+                }
             }
+            dbc = find(targetActions,queryDoc,MongoUtil.createDoc(EVENT_CLIENT_ID,1,EVENT_ACTION,1,FIELD_TOTAL,1,ACTION_TARGET,1))
+                    .sort(MongoUtil.createDoc(EVENT_CLIENT_ID,1,EVENT_ACTION,1));
+            Integer limit = query.getMaxResults();
+            int visited = 0;
             DBObject resultAction,resultTargets,resultTarget;
-            String actionName;
+            String actionName,clientId;
+            String actionClientId = null;
             Long count;
-            StatAction action;
+            StatAction action = null;
+            Map<String,StatCounter> targetMap = new HashMap<String,StatCounter>();
             while(dbc.hasNext()) {
                 resultAction = dbc.next();
+                clientId = String.valueOf(resultAction.get(EVENT_CLIENT_ID));
                 actionName = String.valueOf(resultAction.get(EVENT_ACTION));
                 count = ((Number)resultAction.get(FIELD_TOTAL)).longValue();
-                action = new StatAction(actionName,count);
-                actions.add(action);
+                if(action != null && (!actionName.equals(action.getName()) || !clientId.equals(actionClientId))) {
+                    if(countFilter == null || countFilter.matches(action.getCount())) {
+                        visited++;
+                        if(!visitor.visit(action) || (limit != null && visited >= limit)) {
+                            return MongoUtil.toHex(actionClientId) + ":" + MongoUtil.toHex(action.getName());
+                        }
+                    }
+                    action = null;
+                }
+                if(action == null) {
+                    action = new StatAction(actionName,0);
+                    actionClientId = clientId;
+                    targetMap.clear();
+                }
+                action.add(count);
                 //Add targets
                 resultTargets = (DBObject) resultAction.get(ACTION_TARGET);
                 for(String targetName : resultTargets.keySet()) {
                     resultTarget = (DBObject) resultTargets.get(targetName);
                     count = ((Number)resultTarget.get(FIELD_COUNT)).longValue();
-                    action.getTargets().add(new StatCounter(targetName, count));
+                    if(targetMap.containsKey(targetName)) {
+                        targetMap.get(targetName).add(count);
+                    } else {
+                        StatCounter target = new StatCounter(targetName, count);
+                        targetMap.put(targetName, target);
+                        action.getTargets().add(target);
+                    }
                 }
             }
-        }catch(Exception ex) {
+            if(action != null && (limit == null || visited < limit)
+               && (countFilter == null || countFilter.matches(action.getCount()))) {
+                visitor.visit(action);
+            }
+        }catch(MongoException ex) {
             log.error("getActions",ex);
             throw new StatsEngineException("getActions", ex);
+        } finally {
+            MongoUtil.close(dbc);
         }
-        return actions;
+        return null;
     }
 
     @Override
     public List<StatCounter> getTopTargets(Query query) throws StatsEngineException {
+        SketchStore topTargets = topTargetsStore;
+        if(topTargets != null && (query.getFilter(QueryField.DATE_FROM) != null || query.getFilter(QueryField.DATE_TO) != null)) {
+            return getSketchTopTargets(topTargets, query);
+        }
+        if(leaderboard) {
+            return getLeaderboardTargets(query);
+        }
+        if(query.getContinuation() != null) {
+            throw new QueryException("Continuation tokens need the leaderboard");
+        }
         List<StatCounter> result = new ArrayList<StatCounter>();
         try {
             DBCollection counters = getCounterCollection();
@@ -263,16 +1254,27 @@ public class MongoStatsEngine extends AbstractStatsEngine {
                     EVENT_TARGET_TYPE,getQueryValue(query,QueryField.TARGET_TYPE)
             );
             String actionCountPath = createDotPath(
-                    EVENT_ACTION , getQueryValue(query,QueryField.ACTION),
+                    EVENT_ACTION , getQueryAction(query),
                     FIELD_COUNT
             );
+            QueryFilter countFilter = query.getFilter(QueryField.COUNT);
+            Integer limit = query.getMaxResults();
+            if(countersStripes > 1) {
+                //Thresholds apply to the stripes sum, stripes are adjacent in target order
+                log.debug("Querying counter stripes");
+                DBCursor dbc = find(counters,queryDoc,MongoUtil.createDoc(EVENT_TARGET,1,EVENT_ACTION,1))
+                        .sort(MongoUtil.createDoc(EVENT_TARGET,1));
+                return getTopStripedTargets(dbc, actionCountPath, countFilter, query.isOrderAscending(), limit == null ? 10 : limit);
+            }
             DBObject order = MongoUtil.createDoc(actionCountPath,getQueryOrder(query));
             log.debug("Ensuring index for {}",order);
             counters.ensureIndex(order);
             log.debug("Querying counters");
-            DBCursor dbc = counters.find(queryDoc,MongoUtil.createDoc(EVENT_TARGET,1,EVENT_ACTION,1));
-            Integer limit = query.getMaxResults();
-            dbc = dbc.sort(order).limit(limit == null ? 10 : limit);
+            if(countFilter != null) {
+                queryDoc.put(actionCountPath, getQueryValue(query,QueryField.COUNT));
+            }
+            DBCursor dbc = find(counters,queryDoc,MongoUtil.createDoc(EVENT_TARGET,1,EVENT_ACTION,1))
+                    .sort(order).limit(limit == null ? 10 : limit);
             BasicDBObject counter;
             String target;
             Long count;
@@ -289,7 +1291,167 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         return result;
     }
 
-    @Override
+    /**
+     * Ranks the targets of a date range merging the daily top targets
+     * sketches of the range days. Counts are Count-Min estimates, which may
+     * exceed the real ones, and only the heavy hitter candidates are ranked.
+     */
+    private List<StatCounter> getSketchTopTargets(SketchStore topTargets, Query query) throws StatsEngineException {
+        if(query.getContinuation() != null) {
+            throw new QueryException("Date ranged top targets have no continuation tokens");
+        }
+        if(query.isOrderAscending()) {
+            throw new QueryException("Date ranged top targets are in descending order only");
+        }
+        for(QueryField field : new QueryField[] {QueryField.TARGET, QueryField.TARGET_OWNER, QueryField.TARGET_TAGS}) {
+            if(query.getFilter(field) != null) {
+                throw new QueryException("Date ranged top targets can not be filtered by " + field);
+            }
+        }
+        DBObject queryDoc = MongoUtil.createDoc(
+                EVENT_CLIENT_ID , getQueryValue(query,QueryField.CLIENT_ID),
+                EVENT_TARGET_TYPE,getQueryValue(query,QueryField.TARGET_TYPE),
+                EVENT_ACTION    , getQueryValue(query,QueryField.ACTION)
+        );
+        DateTime [] range = getDateRange(query);
+        DBObject dateDoc = new BasicDBObject();
+        if(range[0] != null) {
+            dateDoc.put("$gte", new Date(getBucket(TimeScope.DAILY, range[0].getMillis())));
+        }
+        if(range[1] != null) {
+            dateDoc.put("$lte", range[1].toDate());
+        }
+        queryDoc.put(EVENT_DATE, dateDoc);
+        List<StatCounter> result = new ArrayList<StatCounter>();
+        TopKSketch sketch = (TopKSketch) topTargets.load(queryDoc);
+        if(sketch == null) {
+            return result;
+        }
+        int limit = query.getMaxResults() == null ? 10 : query.getMaxResults();
+        QueryFilter countFilter = query.getFilter(QueryField.COUNT);
+        for(Map.Entry<String,Long> entry : sketch.top(sketch.getCapacity()).entrySet()) {
+            if(result.size() == limit) {
+                break;
+            }
+            if(countFilter == null || countFilter.matches(entry.getValue())) {
+                result.add(new StatCounter(entry.getKey(), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a page of the leaderboard in index order. Next pages continue
+     * after the (count, target) of the last entry instead of skipping.
+     */
+    private ResultPage<StatCounter> getLeaderboardTargets(Query query) throws StatsEngineException {
+        ResultPage<StatCounter> result = new ResultPage<StatCounter>();
+        int limit = query.getMaxResults() == null ? 10 : query.getMaxResults();
+        boolean ascending = query.isOrderAscending();
+        DBObject queryDoc = MongoUtil.createDoc(
+                EVENT_CLIENT_ID , getQueryValue(query,QueryField.CLIENT_ID),
+                EVENT_TARGET_TYPE,getQueryValue(query,QueryField.TARGET_TYPE),
+                EVENT_ACTION    , getQueryValue(query,QueryField.ACTION)
+        );
+        if(query.getFilter(QueryField.COUNT) != null) {
+            queryDoc.put(FIELD_COUNT, getQueryValue(query,QueryField.COUNT));
+        }
+        String continuation = query.getContinuation();
+        if(continuation != null) {
+            int separator = continuation.indexOf(':');
+            long lastCount;
+            String lastTarget;
+            try {
+                lastCount = Long.parseLong(continuation.substring(0, separator), 36);
+                lastTarget = MongoUtil.fromHex(continuation.substring(separator + 1));
+            }catch(RuntimeException ex) {
+                throw new QueryException("Invalid continuation token " + continuation, ex);
+            }
+            queryDoc.put("$or", Arrays.asList(
+                    MongoUtil.createDoc(FIELD_COUNT, new BasicDBObject(ascending ? "$gt" : "$lt", lastCount)),
+                    MongoUtil.createDoc(FIELD_COUNT, lastCount, EVENT_TARGET, new BasicDBObject(ascending ? "$lt" : "$gt", lastTarget))
+            ));
+        }
+        //Ascending order walks the ranking index backwards
+        DBObject order = MongoUtil.createDoc(FIELD_COUNT, ascending ? 1 : -1, EVENT_TARGET, ascending ? -1 : 1);
+        DBCursor dbc = null;
+        try {
+            dbc = find(getLeaderboardCollection(),queryDoc,MongoUtil.createDoc(EVENT_TARGET,1,FIELD_COUNT,1))
+                    .sort(order).limit(limit + 1);
+            BasicDBObject entry;
+            while(dbc.hasNext()) {
+                entry = (BasicDBObject) dbc.next();
+                if(result.size() == limit) {
+                    StatCounter last = result.get(limit - 1);
+                    result.setContinuation(Long.toString(last.getCount(), 36) + ":" + MongoUtil.toHex(last.getName()));
+                    break;
+                }
+                result.add(new StatCounter(String.valueOf(entry.get(EVENT_TARGET)), entry.getLong(FIELD_COUNT)));
+            }
+        }catch(MongoException ex) {
+            throw new StatsEngineException("getTopTargets", ex);
+        } finally {
+            MongoUtil.close(dbc);
+        }
+        return result;
+    }
+
+    /**
+     * Sums the counter stripes of each target, read in target order, keeping
+     * only the best <code>limit</code> totals
+     */
+    private List<StatCounter> getTopStripedTargets(DBCursor dbc, String actionCountPath, QueryFilter countFilter, final boolean ascending, int limit) {
+        //Ranking order, ties broken by target name
+        final Comparator<StatCounter> ranking = new Comparator<StatCounter>() {
+            @Override
+            public int compare(StatCounter c1, StatCounter c2) {
+                int order = c1.getCount() < c2.getCount() ? -1 : (c1.getCount() == c2.getCount() ? 0 : 1);
+                if(order == 0) {
+                    return c1.getName().compareTo(c2.getName());
+                }
+                return ascending ? order : -order;
+            }
+        };
+        //Worst ranked total at the head
+        PriorityQueue<StatCounter> top = new PriorityQueue<StatCounter>(limit + 1, Collections.reverseOrder(ranking));
+        BasicDBObject counter, actionCounter;
+        String target;
+        StatCounter total = null;
+        try {
+            while(dbc.hasNext()) {
+                counter = (BasicDBObject) dbc.next();
+                actionCounter = MongoUtil.getChildDBObject(counter,actionCountPath,2);
+                if(actionCounter == null) {
+                    continue;
+                }
+                target = String.valueOf(counter.get(EVENT_TARGET));
+                if(total != null && total.getName().equals(target)) {
+                    total.add(actionCounter.getLong(FIELD_COUNT));
+                    continue;
+                }
+                offerTopTarget(top, total, countFilter, limit);
+                total = new StatCounter(target, actionCounter.getLong(FIELD_COUNT));
+            }
+        } finally {
+            MongoUtil.close(dbc);
+        }
+        offerTopTarget(top, total, countFilter, limit);
+        List<StatCounter> result = new ArrayList<StatCounter>(top);
+        Collections.sort(result, ranking);
+        return result;
+    }
+
+    private void offerTopTarget(PriorityQueue<StatCounter> top, StatCounter total, QueryFilter countFilter, int limit) {
+        if(total == null || (countFilter != null && !countFilter.matches(total.getCount()))) {
+            return;
+        }
+        top.offer(total);
+        if(top.size() > limit) {
+            top.poll();
+        }
+    }
+
+    @Override
     public Map<String,Long> getTargetActionCount(Query query) throws StatsEngineException {
         DBObject queryDoc = MongoUtil.createDoc(
             EVENT_CLIENT_ID , getQueryValue(query,QueryField.CLIENT_ID),
@@ -312,6 +1474,285 @@ public class MongoStatsEngine extends AbstractStatsEngine {
 
     @Override
     public List<StatAction> getTargetStats(Query query) throws StatsEngineException {
+        TimeScope groupBy = getGroupBy(query);
+        DateTime [] range = getDateRange(query);
+        List<StatAction> result = new ArrayList<StatAction>();
+        visitTargetStats(createTargetStatsQuery(query, groupBy), groupBy, range[0], range[1], null, null, 0,
+                createStatActionCollector(result));
+        return result;
+    }
+
+    /**
+     * Counts the distinct values of a metadata key, or the distinct targets
+     * with the {@link #DISTINCT_TARGETS} key, merging the sketches of the
+     * time buckets in the query date range. The range is widened to whole
+     * buckets of the engine precision.
+     */
+    @Override
+    public long getDistinctCount(Query query, String key) throws StatsEngineException {
+        SketchStore distincts = distinctStore;
+        if(distincts == null) {
+            throw new StatsEngineException("Distinct counts are disabled");
+        }
+        if(!DISTINCT_TARGETS.equals(key) && !distinctKeys.contains(key)) {
+            throw new QueryException("Not a distinct key: " + key);
+        }
+        DBObject queryDoc = MongoUtil.createDoc(
+            EVENT_CLIENT_ID , getQueryValue(query,QueryField.CLIENT_ID),
+            EVENT_TARGET_TYPE,getQueryValue(query,QueryField.TARGET_TYPE),
+            EVENT_ACTION, getQueryValue(query,QueryField.ACTION),
+            FIELD_DISTINCT_KEY, key
+        );
+        Object target = getQueryValue(query,QueryField.TARGET);
+        if(target != null && !DISTINCT_TARGETS.equals(key)) {
+            queryDoc.put(EVENT_TARGET, target);
+        }
+        DateTime [] range = getDateRange(query);
+        if(range[0] != null || range[1] != null) {
+            DBObject dateDoc = new BasicDBObject();
+            if(range[0] != null) {
+                dateDoc.put("$gte", new Date(getBucket(getTimeScopePrecision(), range[0].getMillis())));
+            }
+            if(range[1] != null) {
+                dateDoc.put("$lte", range[1].toDate());
+            }
+            queryDoc.put(EVENT_DATE, dateDoc);
+        }
+        DistinctSketch sketch = (DistinctSketch) distincts.load(queryDoc);
+        return sketch == null ? 0 : sketch.cardinality();
+    }
+
+    /**
+     * @return visitor adding the target stats counters to their actions
+     */
+    private ResultVisitor<StatCounter> createStatActionCollector(final List<StatAction> result) {
+        return new ResultVisitor<StatCounter>() {
+            @Override
+            public boolean visit(StatCounter counter) {
+                StatAction action = result.isEmpty() ? null : result.get(result.size() - 1);
+                if(action == null || !action.getName().equals(counter.getName())) {
+                    result.add(action = new StatAction(counter.getName(),0));
+                }
+                action.add(counter.getCount());
+                action.getTargets().add(counter);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Runs the target stats batch queries differing only in their target with
+     * a single targets scan
+     */
+    @Override
+    protected List<Runnable> createBatchTasks(List<List<QueryBatch.Result<?>>> groups) {
+        Map<String,List<List<QueryBatch.Result<?>>>> shared = new LinkedHashMap<String,List<List<QueryBatch.Result<?>>>>();
+        List<List<QueryBatch.Result<?>>> single = new ArrayList<List<QueryBatch.Result<?>>>();
+        for(List<QueryBatch.Result<?>> group : groups) {
+            QueryBatch.Result<?> first = group.get(0);
+            Query query = first.getQuery();
+            QueryFilter target = query.getFilter(QueryField.TARGET);
+            if(first.getMethod() != QueryBatch.Method.TARGET_STATS || query.getContinuation() != null
+                    || query.getMaxResults() != null || target == null || target.getOperation() != QueryOp.EQ
+                    || target.getValue() == null || query.getFilter(QueryField.CLIENT_ID) == null
+                    || query.getFilter(QueryField.TARGET_TYPE) == null) {
+                single.add(group);
+                continue;
+            }
+            String key = first.getKey(QueryField.TARGET);
+            List<List<QueryBatch.Result<?>>> targets = shared.get(key);
+            if(targets == null) {
+                shared.put(key, targets = new ArrayList<List<QueryBatch.Result<?>>>());
+            }
+            targets.add(group);
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(final List<List<QueryBatch.Result<?>>> targets : shared.values()) {
+            if(targets.size() == 1) {
+                single.addAll(targets);
+                continue;
+            }
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    executeSharedTargetStats(targets);
+                }
+            });
+        }
+        tasks.addAll(super.createBatchTasks(single));
+        return tasks;
+    }
+
+    private void executeSharedTargetStats(List<List<QueryBatch.Result<?>>> groups) {
+        QueryCache cache = getQueryCache();
+        Map<String,List<QueryBatch.Result<?>>> pending = new LinkedHashMap<String,List<QueryBatch.Result<?>>>();
+        Map<String,Long> generations = new HashMap<String,Long>();
+        for(List<QueryBatch.Result<?>> group : groups) {
+            Query query = group.get(0).getQuery();
+            long generation = cache == null ? -1 : cache.getGeneration(query);
+            Object cached = cache == null ? null : cache.get(QueryBatch.Method.TARGET_STATS.getName(), query);
+            if(cached != null) {
+                complete(group, cached);
+            } else {
+                pending.put(query.getFilter(QueryField.TARGET).getStringValue(), group);
+                generations.put(query.getFilter(QueryField.TARGET).getStringValue(), generation);
+            }
+        }
+        if(pending.isEmpty()) {
+            return;
+        }
+        List<QueryBatch.Result<?>> all = new ArrayList<QueryBatch.Result<?>>();
+        for(List<QueryBatch.Result<?>> group : pending.values()) {
+            all.addAll(group);
+        }
+        try {
+            Query query = all.get(0).getQuery();
+            TimeScope groupBy = getGroupBy(query);
+            DateTime [] range = getDateRange(query);
+            DBObject queryDoc = createTargetStatsQuery(query, groupBy);
+            queryDoc.put(EVENT_TARGET, new BasicDBObject("$in", new ArrayList<String>(pending.keySet())));
+            Map<String,List<StatAction>> results = new HashMap<String,List<StatAction>>();
+            Map<String,TargetStatsBuckets> targetBuckets = new HashMap<String,TargetStatsBuckets>();
+            for(String target : pending.keySet()) {
+                List<StatAction> result = new ArrayList<StatAction>();
+                results.put(target, result);
+                targetBuckets.put(target, new TargetStatsBuckets(groupBy, null, createStatActionCollector(result)));
+            }
+            visitTargetStats(queryDoc, groupBy, range[0], range[1], null, 0, targetBuckets);
+            for(Entry<String,List<QueryBatch.Result<?>>> group : pending.entrySet()) {
+                List<StatAction> result = results.get(group.getKey());
+                if(cache != null) {
+                    result = cache.put(QueryBatch.Method.TARGET_STATS.getName(), group.getValue().get(0).getQuery(), result,
+                            generations.get(group.getKey()));
+                }
+                complete(group.getValue(), result);
+            }
+        }catch(StatsEngineException ex) {
+            fail(all, ex);
+        }catch(RuntimeException ex) {
+            fail(all, new StatsEngineException("Shared target stats failed", ex));
+        }
+    }
+
+    /**
+     * Streams the target stats counters sorted by action and date, grouped
+     * by the query time scope
+     */
+    @Override
+    public String visitTargetStats(Query query, ResultVisitor<StatCounter> visitor) throws StatsEngineException {
+        TimeScope groupBy = getGroupBy(query);
+        DateTime [] range = getDateRange(query);
+        DBObject queryDoc = createTargetStatsQuery(query, groupBy);
+        String continuation = query.getContinuation();
+        String lastAction = null;
+        long lastBucket = 0;
+        if(continuation != null) {
+            int separator = continuation.indexOf(':');
+            try {
+                lastBucket = Long.parseLong(continuation.substring(0, separator), 36);
+                lastAction = MongoUtil.fromHex(continuation.substring(separator + 1));
+            }catch(RuntimeException ex) {
+                throw new QueryException("Invalid continuation token " + continuation, ex);
+            }
+            //Keeps the date range of the query. The last bucket month is
+            //read again and its visited buckets skipped
+            BasicDBObject dateRange = (BasicDBObject) queryDoc.removeField(EVENT_DATE);
+            BasicDBObject resumeRange = new BasicDBObject(dateRange.toMap());
+            Date resumeDate = getBucketMonth(lastBucket);
+            Date from = (Date) dateRange.get("$gte");
+            if(from == null || from.before(resumeDate)) {
+                resumeRange.put("$gte", resumeDate);
+            }
+            queryDoc.put("$or", Arrays.asList(
+                    MongoUtil.createDoc(EVENT_ACTION, new BasicDBObject("$gt", lastAction), EVENT_DATE, dateRange),
+                    MongoUtil.createDoc(EVENT_ACTION, lastAction, EVENT_DATE, resumeRange)
+            ));
+        }
+        return visitTargetStats(queryDoc, groupBy, range[0], range[1], query.getMaxResults(), lastAction, lastBucket, visitor);
+    }
+
+    /**
+     * Gets the query group by time scope, monthly by default
+     * @throws QueryException if the engine precision does not keep it
+     */
+    private TimeScope getGroupBy(Query query) throws QueryException {
+        TimeScope groupBy = query.getGroupBy();
+        if(groupBy == null) {
+            return TimeScope.MONTHLY;
+        }
+        TimeScope precision = getTimeScopePrecision();
+        if(groupBy == TimeScope.HOURLY && precision != TimeScope.HOURLY
+           || (groupBy == TimeScope.DAILY || groupBy == TimeScope.WEEKLY) && precision == TimeScope.MONTHLY) {
+            throw new QueryException("Group by " + groupBy + " needs a finer precision than " + precision);
+        }
+        return groupBy;
+    }
+
+    /**
+     * @return ordered and inclusive from and to dates of the query, each may
+     * be <code>null</code>. Exclusive GT and LT bounds are moved one millisecond.
+     */
+    private DateTime [] getDateRange(Query query) {
+        QueryFilter dateFromFilter = query.getFilter(QueryField.DATE_FROM);
+        QueryFilter dateToFilter = query.getFilter(QueryField.DATE_TO);
+        DateTime dtFrom = dateFromFilter == null ? null : dateFromFilter.getDateTimeValue();
+        DateTime dtTo = dateToFilter == null ? null : dateToFilter.getDateTimeValue();
+        boolean fromExclusive = isExclusive(dateFromFilter);
+        boolean toExclusive = isExclusive(dateToFilter);
+        if(dtFrom != null && dtTo != null && dtTo.isBefore(dtFrom)) {
+            DateTime dt = dtFrom;
+            dtFrom = dtTo;
+            dtTo = dt;
+            boolean exclusive = fromExclusive;
+            fromExclusive = toExclusive;
+            toExclusive = exclusive;
+        }
+        if(dtFrom != null && fromExclusive) {
+            dtFrom = dtFrom.plusMillis(1);
+        }
+        if(dtTo != null && toExclusive) {
+            dtTo = dtTo.minusMillis(1);
+        }
+        return new DateTime[] {dtFrom, dtTo};
+    }
+
+    private boolean isExclusive(QueryFilter filter) {
+        return filter != null && (filter.getOperation() == QueryOp.GT || filter.getOperation() == QueryOp.LT);
+    }
+
+    /**
+     * Gets the start of the time scope bucket containing a date
+     */
+    private long getBucket(TimeScope groupBy, long millis) {
+        MutableDateTime date = new MutableDateTime(millis, DateTimeZone.UTC);
+        switch(groupBy) {
+            case GLOBAL:
+                return 0;
+            case ANNUAL:
+                date.setMonthOfYear(1);
+            case MONTHLY:
+                date.setDayOfMonth(1);
+            case DAILY:
+                date.setMillisOfDay(0);
+                break;
+            case WEEKLY:
+                date.setMillisOfDay(0);
+                date.addDays(1 - date.getDayOfWeek());
+                break;
+            case HOURLY:
+                date.setMinuteOfHour(0);
+                date.setSecondOfMinute(0);
+                date.setMillisOfSecond(0);
+                break;
+        }
+        return date.getMillis();
+    }
+
+    private Date getBucketMonth(long bucket) {
+        return new Date(getBucket(TimeScope.MONTHLY, bucket));
+    }
+
+    private DBObject createTargetStatsQuery(Query query, TimeScope groupBy) {
         DBObject queryDoc = MongoUtil.createDoc(
             EVENT_CLIENT_ID , getQueryValue(query,QueryField.CLIENT_ID),
             EVENT_TARGET_TYPE,getQueryValue(query,QueryField.TARGET_TYPE),
@@ -321,104 +1762,136 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         if(actionFilter != null) {
         	queryDoc.put(EVENT_ACTION,getQueryValue(query,QueryField.ACTION));
         }
-        QueryFilter dateFromFilter = query.getFilter(QueryField.DATE_FROM);
-        DateTime dtFrom = null;
-        if(dateFromFilter != null) {            
-            dtFrom = dateFromFilter.getDateTimeValue();
-        }
-        QueryFilter dateToFilter = query.getFilter(QueryField.DATE_TO);
-        DateTime dtTo = null;
-        if(dateToFilter != null) {            
-            dtTo = dateToFilter.getDateTimeValue();
-        }        
-        if(dtFrom == null) {
-            //Set to date
-            queryDoc.put(EVENT_DATE,new BasicDBObject("$lte", dtTo.toDate()));            
-        } else {
-            if(dtTo == null) {
-                //Set from date
-                queryDoc.put(EVENT_DATE,new BasicDBObject("$gte", dtFrom.toDate()));
-            } else {
-                if(dtTo.isBefore(dtFrom)) {
-                    DateTime dt = dtFrom;
-                    dtFrom = dtTo;
-                    dtTo = dt;
-                }
-                //Set from-to date
-                queryDoc.put(EVENT_DATE,
-                        new BasicDBObject("$gte", dtFrom.toDate()).append("$lte",dtTo.toDate())
-                );
+        DateTime [] range = getDateRange(query);
+        DateTime dtFrom = range[0];
+        DateTime dtTo = range[1];
+        if(dtFrom != null || dtTo != null) {
+            BasicDBObject dateRange = new BasicDBObject();
+            if(dtFrom != null) {
+                dateRange.put("$gte", dtFrom.toDate());
+            }
+            if(dtTo != null) {
+                dateRange.put("$lte", dtTo.toDate());
             }
-        }        
-        //TODO getTargetStats(queryDoc,query.getPrecision() == TimeScope.DAILY) to handle day level
-        //TODO or better: getTargetStats(queryDoc,query.getPrecision()) to handle hourly,daily,monthly (default) precision
-        return getTargetStats(queryDoc);
+            queryDoc.put(EVENT_DATE, dateRange);
+        }
+        if(groupBy.compareTo(TimeScope.MONTHLY) < 0 && dtFrom != null) {
+            //Monthly documents starting before the from date hold some of its days
+            ((DBObject) queryDoc.get(EVENT_DATE)).put("$gte", getBucketMonth(dtFrom.getMillis()));
+        }
+        return queryDoc;
     }
 
-    private List<StatAction> getTargetStats(DBObject query) throws StatsEngineException {
-        List<StatAction> result = new ArrayList<StatAction>();
-        DBCursor dbc = null;
+    /**
+     * Visits the counters of each action and time scope bucket, in action
+     * and date order. Monthly documents are read in that order, so only the
+     * buckets of the current action and month are kept in memory: they are
+     * visited once the next month can no longer add to them.
+     * @return continuation token of the next counter, if any
+     */
+    private String visitTargetStats(DBObject query, TimeScope groupBy, DateTime from, DateTime to, Integer limit,
+            String lastAction, long lastBucket, ResultVisitor<StatCounter> visitor) throws StatsEngineException {
+        Map<String,TargetStatsBuckets> targetBuckets = Collections.singletonMap(null, new TargetStatsBuckets(groupBy, limit, visitor));
+        return visitTargetStats(query, groupBy, from, to, lastAction, lastBucket, targetBuckets);
+    }
+
+    /**
+     * Visits the counters of several targets with a single scan. Whole weeks
+     * or years of the date range are read from the rollups, if enabled, and
+     * merged in date order with the targets documents of the range edges.
+     * @param targetBuckets Buckets by target, or a single one by the
+     * <code>null</code> key for all the targets
+     */
+    private String visitTargetStats(DBObject query, TimeScope groupBy, DateTime from, DateTime to,
+            String lastAction, long lastBucket, Map<String,TargetStatsBuckets> targetBuckets) throws StatsEngineException {
+        MergedCursor dbc = null;
+        TargetStatsBuckets allBuckets = targetBuckets.get(null);
         try {
             log.debug("Querying targets");
-            DBCollection targets = getTargetCollection();
-            long t = System.currentTimeMillis();            
-            DBObject fields = MongoUtil.createDoc(
-                    EVENT_ACTION,1,
-                    FIELD_COUNT,1,
-                    EVENT_DATE,1
-            );
-            dbc = targets.find(query,fields);
-            t = System.currentTimeMillis() - t;            
+            long t = System.currentTimeMillis();
+            DBObject fields = getTargetStatsFields(groupBy,from,to);
+            if(allBuckets == null) {
+                fields.put(EVENT_TARGET, 1);
+            }
+            TimeScope rollupScope = lastAction == null ? getRollupScope(groupBy) : null;
+            long [] rollupRange = rollupScope == null ? null : getRollupRange(rollupScope, from, to);
+            if(rollupRange == null) {
+                dbc = findTargetStats(getTargetCollections(from, to), query, fields, null);
+            } else {
+                DBObject rollupQuery = new BasicDBObject(query.toMap());
+                rollupQuery.put(FIELD_SCOPE, rollupScope.getKey());
+                DBObject dateRange = new BasicDBObject();
+                if(rollupRange[0] != Long.MIN_VALUE) {
+                    dateRange.put("$gte", new Date(rollupRange[0]));
+                }
+                if(rollupRange[1] != Long.MAX_VALUE) {
+                    dateRange.put("$lt", new Date(rollupRange[1]));
+                }
+                rollupQuery.put(EVENT_DATE, dateRange);
+                DBObject rollupFields = MongoUtil.createDoc(EVENT_ACTION,1,FIELD_COUNT,1,EVENT_DATE,1,FIELD_SCOPE,1);
+                if(allBuckets == null) {
+                    rollupFields.put(EVENT_TARGET, 1);
+                }
+                DBCursor rollupCursor = find(getRollupCollection(), rollupQuery, rollupFields);
+                //Range edges from the targets documents
+                List<Date> months = getRollupEdgeMonths(groupBy, from, to, rollupRange);
+                DBObject edgesQuery = new BasicDBObject(query.toMap());
+                edgesQuery.put(EVENT_DATE, new BasicDBObject("$in", months));
+                List<DBCollection> partitions = months.isEmpty() ? Collections.<DBCollection>emptyList() : getTargetCollections(from, to);
+                dbc = findTargetStats(partitions, edgesQuery, fields, rollupCursor);
+            }
+            t = System.currentTimeMillis() - t;
             if(t > 1000) {
                 log.warn("getTargetStats query: {}\n took {}s", debugTrim(query), t / 1000.0);
             }
+            boolean filterDates = groupBy.compareTo(TimeScope.MONTHLY) < 0;
+            long fromMillis = filterDates && from != null ? from.getMillis() : Long.MIN_VALUE;
+            long toMillis = filterDates && to != null ? to.getMillis() : Long.MAX_VALUE;
+            TargetStatsBuckets buckets;
+            Map<Long,Long> counts = new TreeMap<Long,Long>();
             BasicDBObject resultDoc;
-            Map<String,StatAction> actions = new HashMap<String,StatAction>();
-            Map<String,Map<DateTime,StatCounter>> actionsDate = new HashMap<String,Map<DateTime,StatCounter>>();
-            Map<DateTime,StatCounter> dateCount;
-            StatAction action;
-            StatCounter dateCounter;
             String actionName;
-            Long count;
-            MutableDateTime dateTime = DateUtil.getDateTimeUTC(true).toMutableDateTime();
-            DateTime date;
-            Date eventYearMonthTargetDate;
+            long month;
             int processed = 0;
             t = System.currentTimeMillis();
             while(dbc.hasNext()) {
                 resultDoc = (BasicDBObject) dbc.next();
                 actionName = resultDoc.getString(EVENT_ACTION);
-                count = resultDoc.getLong(FIELD_COUNT);
-                eventYearMonthTargetDate = (Date) resultDoc.get(EVENT_DATE);
-                dateTime.setDate(eventYearMonthTargetDate.getTime());
-                date = dateTime.toDateTime();
-                action = actions.get(actionName);
-                if(action == null) {
-                    actions.put(actionName,action = new StatAction(actionName,0));
+                month = ((Date) resultDoc.get(EVENT_DATE)).getTime();
+                processed++;
+                buckets = allBuckets != null ? allBuckets : targetBuckets.get(resultDoc.getString(EVENT_TARGET));
+                if(buckets == null) {
+                    continue;
                 }
-                action.add(count);
-                dateCount = actionsDate.get(actionName);
-                if(dateCount == null) {
-                    dateCount = new TreeMap<DateTime,StatCounter>();
-                    actionsDate.put(actionName, dateCount);
+                if(!buckets.next(actionName, getBucket(groupBy, month))) {
+                    return buckets.getContinuation();
                 }
-                dateCounter = dateCount.get(date);
-                if(dateCounter == null) {
-                    dateCount.put(date, dateCounter = new StatCounter(actionName, 0, date.toDate()));
+                counts.clear();
+                boolean rollup = resultDoc.containsField(FIELD_SCOPE);
+                if(rollup) {
+                    counts.put(month, resultDoc.getLong(FIELD_COUNT));
+                } else {
+                    getTargetStatsCounts(resultDoc, groupBy, month, counts);
+                }
+                for(Entry<Long,Long> count : counts.entrySet()) {
+                    if(count.getKey() < fromMillis || count.getKey() > toMillis) {
+                        continue;
+                    }
+                    if(!rollup && rollupRange != null && count.getKey() >= rollupRange[0] && count.getKey() < rollupRange[1]) {
+                        //Counted by the rollups
+                        continue;
+                    }
+                    long bucket = getBucket(groupBy, count.getKey());
+                    //Skips the buckets visited by previous pages
+                    if(!actionName.equals(lastAction) || bucket > lastBucket) {
+                        buckets.add(bucket, count.getValue());
+                    }
                 }
-                dateCounter.add(count);
-                processed++;
             }
-            //Build result list
-            for(Entry<String,StatAction> entry : actions.entrySet()) {
-                action = entry.getValue();
-                dateCount = actionsDate.get(action.getName());
-                List<StatCounter> targetList = action.getTargets();
-                for(Entry<DateTime,StatCounter> entryDate : dateCount.entrySet()) {
-                    StatCounter counter = entryDate.getValue();
-                    targetList.add(counter);
+            for(TargetStatsBuckets remaining : targetBuckets.values()) {
+                if(!remaining.next(null, Long.MAX_VALUE)) {
+                    return remaining.getContinuation();
                 }
-                result.add(action);
             }
             t = System.currentTimeMillis() - t;
             //TODO add warning level to X ms:
@@ -427,18 +1900,392 @@ public class MongoStatsEngine extends AbstractStatsEngine {
             } else {
                 log.info("getTargetStats processed {} results in {}ms", processed, t );
             }
-        }catch(Exception ex) {
+        }catch(MongoException ex) {
             log.error("getTargetStats",ex);
-            if(ex instanceof StatsEngineException) {
-                throw (StatsEngineException)ex;
-            }
             throw new StatsEngineException("getTargetStats", ex);
         } finally {
-            MongoUtil.close(dbc);
+            if(dbc != null) {
+                dbc.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries the targets partitions in parallel, merging their results by
+     * action and date
+     * @param rollups Rollups cursor merged with the partitions, if any
+     */
+    private MergedCursor findTargetStats(List<DBCollection> partitions, final DBObject query, final DBObject fields,
+            DBCursor rollups) throws StatsEngineException {
+        final DBObject sort = MongoUtil.createDoc(EVENT_ACTION,1,EVENT_DATE,1);
+        List<DBCursor> cursors = new ArrayList<DBCursor>();
+        if(rollups != null) {
+            cursors.add(rollups.sort(sort));
+        }
+        Comparator<DBObject> order = new Comparator<DBObject>() {
+            @Override
+            public int compare(DBObject d1, DBObject d2) {
+                int result = String.valueOf(d1.get(EVENT_ACTION)).compareTo(String.valueOf(d2.get(EVENT_ACTION)));
+                return result != 0 ? result : ((Date) d1.get(EVENT_DATE)).compareTo((Date) d2.get(EVENT_DATE));
+            }
+        };
+        if(partitions.size() <= 1) {
+            if(!partitions.isEmpty()) {
+                cursors.add(find(partitions.get(0),query,fields).sort(sort));
+            }
+            return new MergedCursor(cursors, order);
+        }
+        List<Future<DBCursor>> results = new ArrayList<Future<DBCursor>>();
+        final List<DBCursor> profiled = profiledCursors.get();
+        try {
+            ExecutorService executor = getPartitionExecutor();
+            for(final DBCollection partition : partitions) {
+                results.add(executor.submit(new Callable<DBCursor>() {
+                    @Override
+                    public DBCursor call() {
+                        DBCursor dbc = find(partition,query,fields,profiled).sort(sort);
+                        //Runs the query and fetches the first batch
+                        dbc.hasNext();
+                        return dbc;
+                    }
+                }));
+            }
+            for(Future<DBCursor> result : results) {
+                cursors.add(result.get());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StatsEngineException("querying targets partitions", ex);
+        } catch(ExecutionException ex) {
+            throw new StatsEngineException("querying targets partitions", ex.getCause());
+        } finally {
+            if(cursors.size() < results.size() + (rollups == null ? 0 : 1)) {
+                for(Future<DBCursor> result : results) {
+                    closeWhenDone(result);
+                }
+            }
+        }
+        return new MergedCursor(cursors, order);
+    }
+
+    /**
+     * Gets the rollups tier read by a target stats grouping: weekly rollups
+     * for weekly groupings, annual rollups for annual and global ones
+     * @return rollups scope, <code>null</code> if rollups are not read
+     */
+    private TimeScope getRollupScope(TimeScope groupBy) {
+        if(!rollups) {
+            return null;
+        }
+        switch(groupBy) {
+            case WEEKLY:
+                return TimeScope.WEEKLY;
+            case ANNUAL:
+            case GLOBAL:
+                return TimeScope.ANNUAL;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the whole rollup buckets of a date range
+     * @return inclusive start and exclusive end, unbounded with the long
+     * min and max values, or <code>null</code> if the range has no whole bucket
+     */
+    private long[] getRollupRange(TimeScope scope, DateTime from, DateTime to) {
+        long start = Long.MIN_VALUE;
+        long end = Long.MAX_VALUE;
+        if(from != null) {
+            start = getBucket(scope, from.getMillis());
+            if(start < from.getMillis()) {
+                DateTime next = new DateTime(start, DateTimeZone.UTC);
+                start = (scope == TimeScope.WEEKLY ? next.plusWeeks(1) : next.plusYears(1)).getMillis();
+            }
+        }
+        if(to != null) {
+            end = getBucket(scope, to.getMillis() + 1);
+        }
+        return start < end ? new long[] {start, end} : null;
+    }
+
+    /**
+     * Lists the months of the targets documents read for the date range
+     * edges left out of the rollup range: the months overlapping the edges
+     * for day groupings, the months starting within them otherwise
+     */
+    private List<Date> getRollupEdgeMonths(TimeScope groupBy, DateTime from, DateTime to, long[] rollupRange) {
+        Set<Long> months = new TreeSet<Long>();
+        boolean overlapping = groupBy.compareTo(TimeScope.MONTHLY) < 0;
+        if(from != null && from.getMillis() < rollupRange[0]) {
+            addEdgeMonths(months, from.getMillis(), rollupRange[0], overlapping);
+        }
+        if(to != null && rollupRange[1] <= to.getMillis()) {
+            addEdgeMonths(months, rollupRange[1], to.getMillis() + 1, overlapping);
+        }
+        List<Date> result = new ArrayList<Date>(months.size());
+        for(Long month : months) {
+            result.add(new Date(month));
+        }
+        return result;
+    }
+
+    private void addEdgeMonths(Set<Long> months, long start, long end, boolean overlapping) {
+        DateTime month = new DateTime(getBucket(TimeScope.MONTHLY, start), DateTimeZone.UTC);
+        if(!overlapping && month.getMillis() < start) {
+            month = month.plusMonths(1);
+        }
+        while(month.getMillis() < end) {
+            months.add(month.getMillis());
+            month = month.plusMonths(1);
+        }
+    }
+
+    private void closeWhenDone(Future<DBCursor> result) {
+        if(!result.cancel(true)) {
+            try {
+                MongoUtil.close(result.get());
+            }catch(Exception ex) {
+                log.debug("Failed partition query", ex);
+            }
+        }
+    }
+
+    /**
+     * Profiles the store scans of a query method: each cursor measures the
+     * documents it returns and is explained for its plan after the method ran
+     */
+    @Override
+    public QueryProfile explain(Query query, QueryBatch.Method method) throws StatsEngineException {
+        List<DBCursor> cursors = new ArrayList<DBCursor>();
+        profiledCursors.set(cursors);
+        QueryProfile result;
+        try {
+            result = super.explain(query, method);
+        } finally {
+            profiledCursors.remove();
+        }
+        try {
+            for(DBCursor dbc : cursors) {
+                result.addScan(explain(dbc));
+            }
+        }catch(MongoException ex) {
+            throw new StatsEngineException("explain", ex);
         }
         return result;
     }
 
+    private QueryProfile.Scan explain(DBCursor dbc) {
+        DBObject plan = dbc.copy().explain();
+        return new QueryProfile.Scan(dbc.getCollection().getName(), String.valueOf(dbc.getQuery()),
+                String.valueOf(plan.get("cursor")), getLong(plan, "nscanned"), dbc.numSeen(), getLong(plan, "millis"),
+                ((ProfiledCursor) dbc).getBytes());
+    }
+
+    private long getLong(DBObject doc, String field) {
+        Object value = doc.get(field);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Queries a collection, profiling the cursor for the running explain, if any
+     * @return the cursor
+     */
+    private DBCursor find(DBCollection collection, DBObject query, DBObject fields) {
+        return find(collection, query, fields, profiledCursors.get());
+    }
+
+    /**
+     * Queries a collection, profiling the cursor in the given explain cursors
+     * @param profiled Cursors of the running explain, <code>null</code> if none
+     * @return the cursor
+     */
+    private DBCursor find(DBCollection collection, DBObject query, DBObject fields, List<DBCursor> profiled) {
+        if(profiled == null) {
+            return collection.find(query, fields);
+        }
+        DBCursor dbc = new ProfiledCursor(collection, query, fields);
+        synchronized(profiled) {
+            profiled.add(dbc);
+        }
+        return dbc;
+    }
+
+    /**
+     * Cursor measuring the BSON bytes of the documents it returns
+     */
+    private static class ProfiledCursor extends DBCursor {
+        private long bytes;
+
+        ProfiledCursor(DBCollection collection, DBObject query, DBObject fields) {
+            super(collection, query, fields);
+        }
+
+        @Override
+        public DBObject next() {
+            DBObject document = super.next();
+            bytes += BSON.encode(document).length;
+            return document;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    private synchronized ExecutorService getPartitionExecutor() {
+        if(partitionExecutor == null) {
+            partitionExecutor = Executors.newFixedThreadPool(partitionThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mongoste-partitions");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return partitionExecutor;
+    }
+
+    private synchronized void stopPartitionExecutor() {
+        if(partitionExecutor != null) {
+            partitionExecutor.shutdownNow();
+            partitionExecutor = null;
+        }
+    }
+
+    /**
+     * Projects the month count, the days counts or the days hours of the
+     * targets documents. Days are restricted to the date range when it is
+     * within a single month.
+     */
+    private DBObject getTargetStatsFields(TimeScope groupBy, DateTime from, DateTime to) {
+        DBObject fields = MongoUtil.createDoc(
+                EVENT_ACTION,1,
+                FIELD_COUNT,1,
+                EVENT_DATE,1
+        );
+        if(groupBy.compareTo(TimeScope.MONTHLY) >= 0) {
+            return fields;
+        }
+        int firstDay = 1;
+        int lastDay = 31;
+        if(from != null && to != null && getBucket(TimeScope.MONTHLY, from.getMillis()) == getBucket(TimeScope.MONTHLY, to.getMillis())) {
+            firstDay = from.toDateTime(DateTimeZone.UTC).getDayOfMonth();
+            lastDay = to.toDateTime(DateTimeZone.UTC).getDayOfMonth();
+        }
+        for(int day = firstDay; day <= lastDay; day++) {
+            if(groupBy == TimeScope.HOURLY) {
+                fields.put(createDotPath(FIELD_DAYS, day, FIELD_HOURS), 1);
+            } else {
+                fields.put(createDotPath(FIELD_DAYS, day, FIELD_COUNT), 1);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Collects the counts of a targets document by date: the month count, or
+     * the day or hour counts for finer groupings. Zero counts, left by
+     * preallocation, are skipped.
+     */
+    private void getTargetStatsCounts(BasicDBObject targetDoc, TimeScope groupBy, long month, Map<Long,Long> counts) {
+        if(groupBy.compareTo(TimeScope.MONTHLY) >= 0) {
+            putCount(counts, month, targetDoc);
+            return;
+        }
+        BasicDBObject days = (BasicDBObject) targetDoc.get(FIELD_DAYS);
+        if(days == null) {
+            return;
+        }
+        MutableDateTime date = new MutableDateTime(month, DateTimeZone.UTC);
+        for(String day : days.keySet()) {
+            BasicDBObject dayDoc = (BasicDBObject) days.get(day);
+            date.setMillis(month);
+            date.setDayOfMonth(Integer.parseInt(day));
+            if(groupBy != TimeScope.HOURLY) {
+                putCount(counts, date.getMillis(), dayDoc);
+                continue;
+            }
+            BasicDBObject hours = (BasicDBObject) dayDoc.get(FIELD_HOURS);
+            if(hours == null) {
+                continue;
+            }
+            for(String hour : hours.keySet()) {
+                date.setHourOfDay(Integer.parseInt(hour));
+                putCount(counts, date.getMillis(), (BasicDBObject) hours.get(hour));
+            }
+        }
+    }
+
+    private void putCount(Map<Long,Long> counts, long date, BasicDBObject counters) {
+        Number count = (Number) counters.get(FIELD_COUNT);
+        if(count != null && count.longValue() != 0) {
+            counts.put(date, count.longValue());
+        }
+    }
+
+    /**
+     * Pending time scope buckets of the current action, visited in order
+     */
+    private static class TargetStatsBuckets {
+        private final TimeScope groupBy;
+        private final Integer limit;
+        private final ResultVisitor<StatCounter> visitor;
+        private final TreeMap<Long,StatCounter> buckets = new TreeMap<Long,StatCounter>();
+        private String action;
+        private int visited;
+        private String lastAction;
+        private long lastBucket;
+
+        TargetStatsBuckets(TimeScope groupBy, Integer limit, ResultVisitor<StatCounter> visitor) {
+            this.groupBy = groupBy;
+            this.limit = limit;
+            this.visitor = visitor;
+        }
+
+        /**
+         * Moves to a document of an action and month bucket, visiting the
+         * buckets it can no longer add to
+         * @return <code>false</code> to stop: the visitor stopped or the limit
+         * was reached with buckets left
+         */
+        boolean next(String nextAction, long monthBucket) throws StatsEngineException {
+            long before = nextAction != null && nextAction.equals(action) ? monthBucket : Long.MAX_VALUE;
+            while(!buckets.isEmpty() && buckets.firstKey() < before) {
+                if(limit != null && visited >= limit) {
+                    return false;
+                }
+                Entry<Long,StatCounter> bucket = buckets.pollFirstEntry();
+                visited++;
+                lastAction = action;
+                lastBucket = bucket.getKey();
+                if(!visitor.visit(bucket.getValue())) {
+                    return false;
+                }
+            }
+            action = nextAction;
+            return true;
+        }
+
+        void add(long bucket, long count) {
+            StatCounter counter = buckets.get(bucket);
+            if(counter == null) {
+                counter = new StatCounter(action, 0, groupBy == TimeScope.GLOBAL ? null : new Date(bucket));
+                buckets.put(bucket, counter);
+            }
+            counter.add(count);
+        }
+
+        /**
+         * @return token resuming after the last visited bucket
+         */
+        String getContinuation() {
+            return Long.toString(lastBucket, 36) + ":" + MongoUtil.toHex(lastAction);
+        }
+    }
+
     private Map<String,Long> getActionCount(DBObject query) throws StatsEngineException {
         Map<String,Long> result = new HashMap<String, Long>();
         DBCursor dbc = null;
@@ -446,7 +2293,7 @@ public class MongoStatsEngine extends AbstractStatsEngine {
             log.debug("Querying counters");
             DBCollection counters = getCounterCollection();
             long t = System.currentTimeMillis();
-            dbc = counters.find(query,MongoUtil.createDoc(EVENT_ACTION,1));
+            dbc = find(counters,query,MongoUtil.createDoc(EVENT_ACTION,1));
             t = System.currentTimeMillis() - t;
             if(t > 1000) {
                 log.warn("getActionCount query: {}\n took {}s", debugTrim(query), t / 1000.0);
@@ -501,8 +2348,12 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         BasicDBObject doc = new BasicDBObject();
         doc.put("$set", createSetOwnersTagsDoc(owners,null,false));
         
-        WriteResult wsTargets = getTargetCollection().update(q,doc,true,true);
+        for(DBCollection partition : getTargetCollections(null, null)) {
+            partition.update(q,doc,targetsPartition == TimeScope.GLOBAL,true);
+        }
         WriteResult wsCounters = getCounterCollection().update(q,doc,true,true);
+        resetStatsCheckpoints();
+        invalidateQueryCache(clientId);
         //log.debug("setTargetOwners result: {}",wsTargets.getLastError());
     }
 
@@ -518,8 +2369,12 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         BasicDBObject doc = new BasicDBObject();
         doc.put("$set", createSetOwnersTagsDoc(null,tags,false));
         
-        WriteResult wsTargets = getTargetCollection().update(q,doc,true,true);
+        for(DBCollection partition : getTargetCollections(null, null)) {
+            partition.update(q,doc,targetsPartition == TimeScope.GLOBAL,true);
+        }
         WriteResult wsCounters = getCounterCollection().update(q,doc,true,true);
+        resetStatsCheckpoints();
+        invalidateQueryCache(clientId);
         //log.debug("setTargetTags result: {}",ws.getLastError());
     }
 
@@ -551,6 +2406,57 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         return name;
     }
 
+    /**
+     * Parses a scope collection name built by
+     * {@link #getScopeCollectionName(String, StatEvent, TimeScope)}
+     * @param prefix Collection prefix
+     * @param name Collection name
+     * @return the exclusive end of the collection period or <code>null</code>
+     * if the name is not a scope collection of the prefix
+     */
+    protected DateTime getScopeCollectionPeriodEnd(String prefix, String name) {
+        if(!name.startsWith(prefix + "_") || name.length() < prefix.length() + 3) {
+            return null;
+        }
+        String [] parts = name.substring(prefix.length() + 2).split("_");
+        String scopeKey = name.substring(prefix.length() + 1, prefix.length() + 2);
+        TimeScope scope = null;
+        for(TimeScope timeScope : TimeScope.values()) {
+            if(timeScope.getKey().equals(scopeKey)) {
+                scope = timeScope;
+            }
+        }
+        if(scope == null || scope == TimeScope.GLOBAL) {
+            return null;
+        }
+        int [] values = new int[parts.length];
+        try {
+            for(int i = 0; i < parts.length; i++) {
+                values[i] = Integer.parseInt(parts[i]);
+            }
+            int expected = scope == TimeScope.ANNUAL ? 1 : scope == TimeScope.WEEKLY || scope == TimeScope.MONTHLY ? 2 :
+                           scope == TimeScope.DAILY ? 3 : 4;
+            if(values.length != expected) {
+                return null;
+            }
+            DateTime start = DateUtil.buildUTCDate(values[0], 1, 1);
+            switch(scope) {
+                case ANNUAL:
+                    return start.plusYears(1);
+                case WEEKLY:
+                    return start.withWeekOfWeekyear(values[1]).withDayOfWeek(1).plusWeeks(1);
+                case MONTHLY:
+                    return start.withMonthOfYear(values[1]).plusMonths(1);
+                case DAILY:
+                    return start.withMonthOfYear(values[1]).withDayOfMonth(values[2]).plusDays(1);
+                default:
+                    return start.withMonthOfYear(values[1]).withDayOfMonth(values[2]).withHourOfDay(values[3]).plusHours(1);
+            }
+        }catch(IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
     protected void checkEvent(StatEvent event) throws StatsEngineException {
         if(event == null) {
             throw new StatsEngineException("null event");
@@ -569,13 +2475,132 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         }
     }
 
+    private void bufferEvent(WriteBehindBuffer buffer, StatEvent event) throws StatsEngineException {
+        DBObject eventDoc = isKeepEvents() ? createEventDoc(event) : null;
+        if(countEvents) {
+            List<CounterUpdate> updates = new ArrayList<CounterUpdate>();
+            //Preallocated on flush
+            updates.add(createRawTargetUpdate(event, getTimeScopePrecision()));
+            updates.add(createTargetUpdate(event));
+            updates.add(createTargetActionsUpdate(event));
+            if(leaderboard) {
+                updates.add(createLeaderboardUpdate(event));
+            }
+            if(rollups) {
+                updates.addAll(Arrays.asList(createRollupUpdates(event)));
+            }
+            //Sketches are counted once flushed, with the counters
+            buffer.add(event, eventDoc == null ? null : getEventCollection(event), eventDoc,
+                    updates.toArray(new CounterUpdate[updates.size()]));
+        } else {
+            buffer.add(event, eventDoc == null ? null : getEventCollection(event), eventDoc);
+        }
+    }
+
+    /**
+     * Inserts the raw events with a single batch per events partition
+     * @return the non duplicated events
+     */
+    private List<StatEvent> saveEvents(List<StatEvent> batch, Map<StatEvent,StatsEngineException> rejected,
+            Map<StatEvent,Object> pending) throws StatsEngineException {
+        if(eventsPartition == TimeScope.GLOBAL) {
+            return saveEvents(getEventCollection(null), batch, rejected, pending);
+        }
+        Map<DBCollection,List<StatEvent>> partitions = new LinkedHashMap<DBCollection,List<StatEvent>>();
+        List<StatEvent> partitionBatch;
+        for(StatEvent event : batch) {
+            DBCollection events = getEventCollection(event);
+            partitionBatch = partitions.get(events);
+            if(partitionBatch == null) {
+                partitions.put(events, partitionBatch = new ArrayList<StatEvent>());
+            }
+            partitionBatch.add(event);
+        }
+        List<StatEvent> saved = new ArrayList<StatEvent>(batch.size());
+        for(Entry<DBCollection,List<StatEvent>> entry : partitions.entrySet()) {
+            saved.addAll(saveEvents(entry.getKey(), entry.getValue(), rejected, pending));
+        }
+        return saved;
+    }
+
+    /**
+     * Inserts the raw events in a single batch. If the batch hits a unique
+     * index, inserts from the failing event on one by one to find the
+     * duplicates. Pending events saved but not counted are not duplicated.
+     * @return the non duplicated events
+     */
+    private List<StatEvent> saveEvents(DBCollection events, List<StatEvent> batch, Map<StatEvent,StatsEngineException> rejected,
+            Map<StatEvent,Object> pending) throws StatsEngineException {
+        List<DBObject> docs = new ArrayList<DBObject>(batch.size());
+        for(StatEvent event : batch) {
+            DBObject doc = createEventDoc(event);
+            doc.put("_id", ObjectId.get());
+            if(pending != null) {
+                doc.put(EVENT_PENDING, true);
+                pending.put(event, doc.get("_id"));
+            }
+            docs.add(doc);
+        }
+        try {
+            events.insert(docs, WriteConcern.SAFE);
+            return batch;
+        }catch(MongoException ex) {
+            if(!isDuplicateKey(ex)) {
+                throw new StatsEngineException("saveEvents failed",ex);
+            }
+            log.debug("saveEvents batch with duplicates, checking one by one");
+        }
+        List<StatEvent> saved = new ArrayList<StatEvent>(batch.size());
+        StatEvent event;
+        DBObject doc;
+        for(int i = 0; i < batch.size(); i++) {
+            event = batch.get(i);
+            doc = docs.get(i);
+            if(events.findOne(new BasicDBObject("_id", doc.get("_id")), new BasicDBObject("_id", 1)) != null) {
+                //Inserted by the batch before the failing event
+                saved.add(event);
+                continue;
+            }
+            try {
+                events.insert(doc, WriteConcern.SAFE);
+                saved.add(event);
+            }catch(MongoException ex) {
+                if(!isDuplicateKey(ex)) {
+                    throw new StatsEngineException("saveEvents failed",ex);
+                }
+                DBObject uncounted = null;
+                if(pending != null) {
+                    //Saved by a replay interrupted before counting it
+                    DBObject query = createEventDoc(event);
+                    query.put(EVENT_PENDING, true);
+                    uncounted = events.findOne(query, new BasicDBObject("_id", 1));
+                }
+                if(uncounted != null) {
+                    pending.put(event, uncounted.get("_id"));
+                    saved.add(event);
+                    continue;
+                }
+                rejected.put(event, new DuplicateEventException("Duplicate event " + event));
+            }
+        }
+        return saved;
+    }
+
     private void saveEvent(StatEvent event) throws StatsEngineException {
+        WriteResult ws = getEventCollection(event).insert(createEventDoc(event));
+        log.debug("saveEvent result: {}",ws.getLastError());
+    }
+
+    private DBObject createEventDoc(StatEvent event) {
         BasicDBObject doc = new BasicDBObject();
         doc.put(EVENT_CLIENT_ID,event.getClientId());
         doc.put(EVENT_TARGET,event.getTarget());
         doc.put(EVENT_TARGET_TYPE,event.getTargetType());
         doc.put(EVENT_ACTION,event.getAction());
         doc.put(EVENT_DATE,event.getDate());
+        if(event.getEventId() != null) {
+            doc.put(EVENT_ID,MongoUtil.createHashedId(event.getClientId(),event.getEventId()));
+        }
         Map<String,Object> metadata = event.getMetadata();
         if(metadata != null && !metadata.isEmpty()) {
         	BasicDBObject metadataDoc = new BasicDBObject();
@@ -584,130 +2609,585 @@ public class MongoStatsEngine extends AbstractStatsEngine {
 	        }
 	        doc.put(EVENT_METADATA,metadataDoc);
         }
-        WriteResult ws = events.insert(doc);
-        log.debug("saveEvent result: {}",ws.getLastError());
+        return doc;
     }
 
     @SuppressWarnings("finally")
 	private boolean countRawTarget(StatEvent event)  throws StatsEngineException {
     	boolean processed = false;    	
         try {
-            BasicDBObject q = new BasicDBObject();
-            q.put(EVENT_CLIENT_ID,event.getClientId());
-            q.put(EVENT_TARGET,event.getTarget());
-            q.put(EVENT_TARGET_TYPE,event.getTargetType());
-            q.put(EVENT_ACTION,event.getAction());
-            q.put(EVENT_DATE,event.getYearMonthDate().toDate());
-            q.put(TARGET_YEAR, event.getYear());
-            q.put(TARGET_MONTH, event.getMonth());
-
-            BasicDBObject doc = new BasicDBObject();
-
-            //BasicDBObject docSet = new BasicDBObject();
-            doc.put("$addToSet", createAddToSetOwnersTagsDoc(event));
-            BasicDBObject incDoc = new BasicDBObject();
-            incDoc.put(FIELD_COUNT, 1); //Month count
-            String metaBaseKey = "";
-            TimeScope precision = getTimeScopePrecision();
-            if(precision == TimeScope.DAILY || precision == TimeScope.HOURLY) {
-                String dayKey = createDotPath(FIELD_DAYS , event.getDay());
-                incDoc.put(createDotPath(dayKey ,FIELD_COUNT),1); //Day count
-                if(precision == TimeScope.HOURLY) {
-                    String hourKey = createDotPath(dayKey ,FIELD_HOURS , event.getHour());
-                    incDoc.put(createDotPath(hourKey,FIELD_COUNT), 1);//Hour count
-                    metaBaseKey = hourKey;
-                } else {
-                    metaBaseKey = dayKey;
+            //TODO externalize write concern to configuration properties:
+            WriteResult wr = createRawTargetUpdate(event).apply(WriteConcern.FSYNC_SAFE);
+            processed = wr.getN() > 0;
+        }catch(MongoException ex) {
+        	if(isDuplicateKey(ex)) {
+        		throw new DuplicateEventException("Duplicate event " + event);
+        	}    	
+        	throw new StatsEngineException("countRawTarget failed",ex);
+        } 
+        return processed;        
+    }
+
+    /**
+     * Grouped version of {@link #countRawTarget(StatEvent)}
+     * @return the events whose targets documents were updated
+     */
+    private List<StatEvent> countRawTargets(List<StatEvent> batch, Map<StatEvent,StatsEngineException> rejected,
+            String batchId) throws StatsEngineException {
+        Map<String,CounterUpdate> updates = new LinkedHashMap<String,CounterUpdate>();
+        Map<String,List<StatEvent>> updateEvents = new HashMap<String,List<StatEvent>>();
+        CounterUpdate update;
+        List<StatEvent> keyEvents;
+        for(StatEvent event : batch) {
+            update = mergeUpdate(updates, createRawTargetUpdate(event));
+            keyEvents = updateEvents.get(update.getKey());
+            if(keyEvents == null) {
+                updateEvents.put(update.getKey(), keyEvents = new ArrayList<StatEvent>());
+            }
+            keyEvents.add(event);
+        }
+        List<StatEvent> processed = new ArrayList<StatEvent>(batch.size());
+        for(CounterUpdate targetUpdate : updates.values()) {
+            keyEvents = updateEvents.get(targetUpdate.getKey());
+            try {
+                if(batchId != null ? targetUpdate.applyOnce(batchId) : targetUpdate.apply(WriteConcern.FSYNC_SAFE).getN() > 0) {
+                    processed.addAll(keyEvents);
+                }
+            }catch(MongoException ex) {
+                StatsEngineException cause = isDuplicateKey(ex) ?
+                    new DuplicateEventException("Duplicate event " + targetUpdate) :
+                    new StatsEngineException("countRawTarget failed",ex);
+                for(StatEvent event : keyEvents) {
+                    rejected.put(event, cause);
+                }
+            }
+        }
+        return processed;
+    }
+
+    private CounterUpdate mergeUpdate(Map<String,CounterUpdate> updates, CounterUpdate update) {
+        CounterUpdate current = updates.get(update.getKey());
+        if(current == null) {
+            updates.put(update.getKey(), update);
+            return update;
+        }
+        return current.merge(update);
+    }
+
+    static boolean isDuplicateKey(MongoException ex) {
+        int errorCode = ex.getCode();
+        return errorCode == ERROR_DUPKEY || errorCode == ERROR_DUPKEY_INSERT;
+    }
+
+    private CounterUpdate createRawTargetUpdate(StatEvent event) throws StatsEngineException {
+        TimeScope precision = getTimeScopePrecision();
+        if(preallocate) {
+            preallocateTarget(event, precision);
+        }
+        return createRawTargetUpdate(event, precision);
+    }
+
+    private void preallocateTarget(StatEvent event, TimeScope precision) throws StatsEngineException {
+        preallocateTarget(getTargetCollection(event,targetsPartition), createRawTargetKey(event), precision, event.getYearMonthDate());
+    }
+
+    private BasicDBObject createRawTargetKey(StatEvent event) {
+        BasicDBObject q = new BasicDBObject();
+        q.put(EVENT_CLIENT_ID,event.getClientId());
+        q.put(EVENT_TARGET,event.getTarget());
+        q.put(EVENT_TARGET_TYPE,event.getTargetType());
+        q.put(EVENT_ACTION,event.getAction());
+        q.put(EVENT_DATE,event.getYearMonthDate().toDate());
+        q.put(TARGET_YEAR, event.getYear());
+        q.put(TARGET_MONTH, event.getMonth());
+        return q;
+    }
+
+    /**
+     * Creates the monthly raw target counters update of an event
+     * @param event Event to count
+     * @param precision Time scope precision of the day/hour counters
+     * @return raw target update
+     * @throws StatsEngineException
+     */
+    CounterUpdate createRawTargetUpdate(StatEvent event, TimeScope precision) throws StatsEngineException {
+        CounterUpdate update = createKeyUpdate(getTargetCollection(event,targetsPartition),createRawTargetKey(event),true);
+        addToSetOwnersTags(update,event);
+        update.set(TOUCH_DATE, DateUtil.getDateTimeUTC().toDate()); //Incremental stats builds
+        update.inc(FIELD_COUNT, 1); //Month count
+        String metaBaseKey = "";
+        if(precision == TimeScope.DAILY || precision == TimeScope.HOURLY) {
+            String dayKey = createDotPath(FIELD_DAYS , event.getDay());
+            update.inc(createDotPath(dayKey ,FIELD_COUNT),1); //Day count
+            if(precision == TimeScope.HOURLY) {
+                String hourKey = createDotPath(dayKey ,FIELD_HOURS , event.getHour());
+                update.inc(createDotPath(hourKey,FIELD_COUNT), 1);//Hour count
+                metaBaseKey = hourKey;
+            } else {
+                metaBaseKey = dayKey;
+            }
+        }            
+        //Count metadata, but the keys counted with sketches
+        Map<String,Object> metadata = event.getMetadata();
+        Set<String> sketchKeys = distinctMode == DistinctMode.NONE ? Collections.<String>emptySet() : distinctKeys;
+        for(String metaKey : metadata.keySet()) {
+            if(sketchKeys.contains(metaKey)) {
+                continue;
+            }
+            update.inc(createDotPath(metaBaseKey ,FIELD_META , metaKey ,metaKeyValue(metaKey, metadata.get(metaKey) )),1);
+        }
+        return update;
+    }
+
+    /**
+     * Adds the distinct keys values and the target of an event to the
+     * sketches of its time bucket, and the target to the day top targets
+     */
+    private void countSketches(StatEvent event) throws StatsEngineException {
+        SketchStore topTargets = topTargetsStore;
+        if(topTargets != null) {
+            DBObject key = MongoUtil.createDoc(
+                    EVENT_CLIENT_ID, event.getClientId(),
+                    EVENT_TARGET_TYPE, event.getTargetType(),
+                    EVENT_ACTION, event.getAction(),
+                    EVENT_DATE, new Date(getBucket(TimeScope.DAILY, event.getDateTime().getMillis()))
+            );
+            topTargets.add(key, new TopKSketch(TOPK_WIDTH, TOPK_DEPTH, topTargetsCapacity), event.getTarget(), 1);
+        }
+        SketchStore distincts = distinctStore;
+        if(distincts == null) {
+            return;
+        }
+        Date bucket = new Date(getBucket(getTimeScopePrecision(), event.getDateTime().getMillis()));
+        Map<String,Object> metadata = event.getMetadata();
+        for(String metaKey : distinctKeys) {
+            Object value = metadata.get(metaKey);
+            if(value == null) {
+                continue;
+            }
+            DBObject key = createDistinctKey(event.getClientId(), event.getTargetType(), event.getTarget(), event.getAction(), bucket, metaKey);
+            if(!distincts.add(key, createDistinctSketch(metaKey), String.valueOf(value), 1)) {
+                log.warn("Not counting distinct metakey {}={}", metaKey, value);
+            }
+        }
+        DBObject key = createDistinctKey(event.getClientId(), event.getTargetType(), null, event.getAction(), bucket, DISTINCT_TARGETS);
+        distincts.add(key, createDistinctSketch(DISTINCT_TARGETS), event.getTarget(), 1);
+    }
+
+    private DBObject createDistinctKey(String clientId, String targetType, String target, String action, Date bucket, String key) {
+        BasicDBObject doc = new BasicDBObject();
+        doc.put(EVENT_CLIENT_ID, clientId);
+        doc.put(EVENT_TARGET_TYPE, targetType);
+        doc.put(EVENT_ACTION, action);
+        doc.put(FIELD_DISTINCT_KEY, key);
+        doc.put(EVENT_TARGET, target);
+        doc.put(EVENT_DATE, bucket);
+        return doc;
+    }
+
+    private DistinctSketch createDistinctSketch(String key) {
+        if(distinctMode == DistinctMode.BITMAP && METAKEY_IP.equals(key)) {
+            return new RoaringBitmap();
+        }
+        return new HyperLogLog(distinctPrecision);
+    }
+
+    /**
+     * Inserts the zeroed month skeleton of a raw target the first time it is
+     * seen. An existing document is left as is.
+     */
+    private void preallocateTarget(DBCollection targets, BasicDBObject key, TimeScope precision, DateTime month) throws StatsEngineException {
+        if(precision != TimeScope.DAILY && precision != TimeScope.HOURLY) {
+            return;
+        }
+        Object cacheKey = targets.getName() + key + precision;
+        if(preallocated.get(cacheKey) != null) {
+            return;
+        }
+        BasicDBObject doc = new BasicDBObject(key);
+        if(hashedKeys) {
+            doc.put(FIELD_ID, createHashedId(key));
+        }
+        doc.put(FIELD_COUNT, 0);
+        BasicDBObject days = new BasicDBObject();
+        int monthDays = month.dayOfMonth().getMaximumValue();
+        for(int day = 1; day <= monthDays; day++) {
+            BasicDBObject dayDoc = new BasicDBObject(FIELD_COUNT, 0);
+            if(precision == TimeScope.HOURLY) {
+                BasicDBObject hours = new BasicDBObject();
+                for(int hour = 0; hour < 24; hour++) {
+                    hours.put(String.valueOf(hour), new BasicDBObject(FIELD_COUNT, 0));
                 }
-            }            
-            //Count metadata
-            Map<String,Object> metadata = event.getMetadata();
-            for(String metaKey : metadata.keySet()) {
-                incDoc.put(createDotPath(metaBaseKey ,FIELD_META , metaKey ,metaKeyValue(metaKey, metadata.get(metaKey) )),1);
+                dayDoc.put(FIELD_HOURS, hours);
             }
-            doc.put("$inc",incDoc);
-            DBCollection targets = getTargetCollection(event,TimeScope.GLOBAL);
-            //TODO externalize write concern to configuration properties:
-            WriteResult wr = targets.update(q,doc,true,true,WriteConcern.FSYNC_SAFE); 
-            processed = wr.getN() > 0;
+            days.put(String.valueOf(day), dayDoc);
+        }
+        doc.put(FIELD_DAYS, days);
+        try {
+            targets.insert(doc, WriteConcern.SAFE);
         }catch(MongoException ex) {
-        	int errorCode = ex.getCode();
-        	if(errorCode == ERROR_DUPKEY || errorCode == ERROR_DUPKEY_INSERT) {
-        		throw new DuplicateEventException("Duplicate event " + event);
-        	}    	
-        	throw new StatsEngineException("countRawTarget failed",ex);
-        } 
-        return processed;        
+            if(!isDuplicateKey(ex)) {
+                throw new StatsEngineException("preallocating target " + key, ex);
+            }
+        }
+        preallocated.put(cacheKey, Boolean.TRUE);
     }
 
     private void countTarget(StatEvent event) throws StatsEngineException {
+        WriteResult ws = createTargetUpdate(event).apply();
+        //log.debug("countTarget result: {}",ws.getLastError());
+    }
+
+    private CounterUpdate createTargetUpdate(StatEvent event) throws StatsEngineException {
         BasicDBObject q = new BasicDBObject();
         q.put(EVENT_CLIENT_ID,event.getClientId());
         q.put(EVENT_TARGET,event.getTarget());
         q.put(EVENT_TARGET_TYPE,event.getTargetType());
+        if(countersStripes > 1) {
+            q.put(FIELD_STRIPE, getStripe(event, countersStripes));
+        }
         String actionKey = createDotPath(EVENT_ACTION,event.getAction());
 
-        BasicDBObject doc = new BasicDBObject();
-        doc.put("$addToSet", createAddToSetOwnersTagsDoc(event));
-        BasicDBObject docSet = new BasicDBObject();
-        docSet.put(createDotPath(actionKey,TOUCH_DATE), DateUtil.getDateTimeUTC().toDate());
-        doc.put("$set", docSet);
-        BasicDBObject incDoc = new BasicDBObject();
-        incDoc.put(createDotPath(actionKey,FIELD_COUNT), 1); //Global count
-        doc.put("$inc",incDoc);
-        DBCollection targets = getCounterCollection(event,TimeScope.GLOBAL);
-        WriteResult ws = targets.update(q,doc,true,false);
-        //log.debug("countTarget result: {}",ws.getLastError());
+        CounterUpdate update = createKeyUpdate(getCounterCollection(event,TimeScope.GLOBAL),q,false);
+        addToSetOwnersTags(update,event);
+        update.set(createDotPath(actionKey,TOUCH_DATE), DateUtil.getDateTimeUTC().toDate());
+        update.inc(createDotPath(actionKey,FIELD_COUNT), 1); //Global count
+        return update;
     }
 
     private void countTargetActions(StatEvent event) throws StatsEngineException {
+        WriteResult ws = createTargetActionsUpdate(event).apply();
+        //log.debug("countTarget actions result: {}",ws.getLastError());
+    }
+
+    private CounterUpdate createTargetActionsUpdate(StatEvent event) throws StatsEngineException {
         BasicDBObject q = new BasicDBObject();
         q.put(EVENT_CLIENT_ID,event.getClientId());
         q.put(EVENT_ACTION,event.getAction());
-        BasicDBObject doc = new BasicDBObject();
-        BasicDBObject docSet = new BasicDBObject();
-        docSet.put(TOUCH_DATE, DateUtil.getDateTimeUTC().toDate());
-        //docSet.put(TARGET_DATE, event.getDate());
-        doc.put("$set", docSet);
-        BasicDBObject incDoc = new BasicDBObject();
-        incDoc.put(FIELD_TOTAL,1);
-        incDoc.put(createDotPath(ACTION_TARGET,event.getTargetType(),FIELD_COUNT) ,1);
-        doc.put("$inc",incDoc);
-        DBCollection targetActions = getTargetActionsCollection();
-        WriteResult ws = targetActions.update(q,doc,true,false);
-        //log.debug("countTarget actions result: {}",ws.getLastError());
+        if(actionsStripes > 1) {
+            q.put(FIELD_STRIPE, getStripe(event, actionsStripes));
+        }
+        CounterUpdate update = createKeyUpdate(getTargetActionsCollection(),q,false);
+        update.set(TOUCH_DATE, DateUtil.getDateTimeUTC().toDate());
+        update.inc(FIELD_TOTAL,1);
+        update.inc(createDotPath(ACTION_TARGET,event.getTargetType(),FIELD_COUNT) ,1);
+        return update;
+    }
+
+    private CounterUpdate createLeaderboardUpdate(StatEvent event) throws StatsEngineException {
+        return createLeaderboardUpdate(event.getClientId(), event.getTargetType(), event.getAction(), event.getTarget())
+                .inc(FIELD_COUNT, 1);
+    }
+
+    /**
+     * Leaderboard entries are always matched by hashed key so the only
+     * secondary index is the ranking one
+     */
+    private CounterUpdate createLeaderboardUpdate(Object clientId, Object targetType, Object action, Object target) throws StatsEngineException {
+        CounterUpdate update = new CounterUpdate(getLeaderboardCollection(),
+                new BasicDBObject(FIELD_ID,MongoUtil.createHashedId(clientId,targetType,action,target)),false);
+        update.set(EVENT_CLIENT_ID, clientId);
+        update.set(EVENT_TARGET_TYPE, targetType);
+        update.set(EVENT_ACTION, action);
+        update.set(EVENT_TARGET, target);
+        return update;
+    }
+
+    /**
+     * @return the weekly and annual rollup increments of an event
+     */
+    private CounterUpdate[] createRollupUpdates(StatEvent event) throws StatsEngineException {
+        long millis = event.getDateTime().getMillis();
+        return new CounterUpdate[] {
+            createRollupUpdate(event.getClientId(), event.getTarget(), event.getTargetType(), event.getAction(),
+                    TimeScope.WEEKLY, getBucket(TimeScope.WEEKLY, millis)).inc(FIELD_COUNT, 1),
+            createRollupUpdate(event.getClientId(), event.getTarget(), event.getTargetType(), event.getAction(),
+                    TimeScope.ANNUAL, getBucket(TimeScope.ANNUAL, millis)).inc(FIELD_COUNT, 1)
+        };
+    }
+
+    /**
+     * Rollups are always matched by hashed key, like the leaderboard
+     */
+    private CounterUpdate createRollupUpdate(Object clientId, Object target, Object targetType, Object action,
+            TimeScope scope, long bucket) throws StatsEngineException {
+        Date date = new Date(bucket);
+        CounterUpdate update = new CounterUpdate(getRollupCollection(),
+                new BasicDBObject(FIELD_ID,MongoUtil.createHashedId(clientId,target,targetType,action,scope.getKey(),date)),false);
+        update.set(EVENT_CLIENT_ID, clientId);
+        update.set(EVENT_TARGET, target);
+        update.set(EVENT_TARGET_TYPE, targetType);
+        update.set(EVENT_ACTION, action);
+        update.set(FIELD_SCOPE, scope.getKey());
+        update.set(EVENT_DATE, date);
+        return update;
+    }
+
+    /**
+     * Loads the rollups from the targets documents, replacing them. Weekly
+     * rollups need the days counts of a DAILY or HOURLY precision.
+     * @return rollup documents
+     * @throws StatsEngineException
+     */
+    public long buildRollups() throws StatsEngineException {
+        long t = System.currentTimeMillis();
+        flush();
+        DBCursor dbc = null;
+        try {
+            DBCollection rollupCollection = getRollupCollection();
+            rollupCollection.remove(EMPTY_DOC);
+            BasicDBObject targetDoc;
+            Map<Long,Long> days = new TreeMap<Long,Long>();
+            Map<String,CounterUpdate> updates = new LinkedHashMap<String,CounterUpdate>();
+            for(DBCollection targets : getTargetCollections(null, null)) {
+                dbc = targets.find();
+                while(dbc.hasNext()) {
+                    targetDoc = (BasicDBObject) dbc.next();
+                    Object clientId = targetDoc.get(EVENT_CLIENT_ID);
+                    Object target = targetDoc.get(EVENT_TARGET);
+                    Object targetType = targetDoc.get(EVENT_TARGET_TYPE);
+                    Object action = targetDoc.get(EVENT_ACTION);
+                    long month = ((Date) targetDoc.get(EVENT_DATE)).getTime();
+                    mergeUpdate(updates, createRollupUpdate(clientId, target, targetType, action,
+                            TimeScope.ANNUAL, getBucket(TimeScope.ANNUAL, month)).inc(FIELD_COUNT, targetDoc.getLong(FIELD_COUNT)));
+                    days.clear();
+                    getTargetStatsCounts(targetDoc, TimeScope.DAILY, month, days);
+                    for(Entry<Long,Long> day : days.entrySet()) {
+                        mergeUpdate(updates, createRollupUpdate(clientId, target, targetType, action,
+                                TimeScope.WEEKLY, getBucket(TimeScope.WEEKLY, day.getKey())).inc(FIELD_COUNT, day.getValue()));
+                    }
+                    for(CounterUpdate update : updates.values()) {
+                        update.apply();
+                    }
+                    updates.clear();
+                }
+                dbc.close();
+            }
+            long count = rollupCollection.count();
+            log.info("Rollups built with {} documents in {}ms",count,System.currentTimeMillis()-t);
+            return count;
+        }catch(MongoException ex) {
+            throw new StatsEngineException("building rollups", ex);
+        } finally {
+            MongoUtil.close(dbc);
+        }
+    }
+
+    /**
+     * Loads the leaderboard from the counters, replacing its entries
+     * @return leaderboard entries
+     * @throws StatsEngineException
+     */
+    public long buildLeaderboard() throws StatsEngineException {
+        long t = System.currentTimeMillis();
+        DBCursor dbc = null;
+        try {
+            DBCollection entries = getLeaderboardCollection();
+            entries.remove(EMPTY_DOC);
+            dbc = getCounterCollection().find();
+            BasicDBObject counter, actions;
+            while(dbc.hasNext()) {
+                counter = (BasicDBObject) dbc.next();
+                actions = (BasicDBObject) counter.get(EVENT_ACTION);
+                if(actions == null) {
+                    continue;
+                }
+                for(String action : actions.keySet()) {
+                    CounterUpdate update = createLeaderboardUpdate(counter.get(EVENT_CLIENT_ID),
+                            counter.get(EVENT_TARGET_TYPE), action, counter.get(EVENT_TARGET));
+                    //Stripes add up
+                    update.inc(FIELD_COUNT, ((BasicDBObject) actions.get(action)).getLong(FIELD_COUNT));
+                    update.apply();
+                }
+            }
+            long count = entries.count();
+            log.info("Leaderboard built with {} entries in {}ms",count,System.currentTimeMillis()-t);
+            return count;
+        }catch(MongoException ex) {
+            throw new StatsEngineException("building leaderboard", ex);
+        } finally {
+            MongoUtil.close(dbc);
+        }
+    }
+
+    private int getStripe(StatEvent event, int stripes) {
+        int hash;
+        if(stripeMode == StripeMode.THREAD) {
+            hash = (int) Thread.currentThread().getId();
+        } else {
+            long millis = event.getDateTime().getMillis();
+            hash = 31 * String.valueOf(event.getTarget()).hashCode() + (int)(millis ^ (millis >>> 32));
+            hash ^= hash >>> 16;
+        }
+        return (hash & Integer.MAX_VALUE) % stripes;
+    }
+
+    /**
+     * Creates the update of the document identified by the key fields. With
+     * hashed keys the update matches on the hashed <code>_id</code> and sets
+     * the key fields.
+     */
+    CounterUpdate createKeyUpdate(DBCollection collection, BasicDBObject key, boolean multi) {
+        if(!hashedKeys) {
+            return new CounterUpdate(collection,key,multi);
+        }
+        CounterUpdate update = new CounterUpdate(collection,new BasicDBObject(FIELD_ID,createHashedId(key)),false);
+        for(String field : key.keySet()) {
+            update.set(field, key.get(field));
+        }
+        return update;
+    }
+
+    private ObjectId createHashedId(DBObject key) {
+        return MongoUtil.createHashedId(key.toMap().values().toArray());
+    }
+
+    /**
+     * Converts the targets, counters and actions documents to hashed keys and
+     * drops the indexes not needed by the hashed keys schema. Each collection
+     * is copied aside and swapped in when done, so events must not be handled
+     * while migrating. Can be resumed if interrupted.
+     * @return migrated documents
+     * @throws StatsEngineException
+     */
+    public long migrateHashedKeys() throws StatsEngineException {
+        if(!hashedKeys) {
+            throw new StatsEngineException("Hashed keys are not enabled");
+        }
+        flush();
+        long migrated = 0;
+        for(DBCollection targets : getTargetCollections(null, null)) {
+            migrated += migrateHashedKeys(targets, RAW_TARGET_KEY);
+        }
+        migrated += migrateHashedKeys(db.getCollection(COLLECTION_COUNTERS), TARGET_KEY);
+        migrated += migrateHashedKeys(db.getCollection(COLLECTION_TARGET_ACTIONS), TARGET_ACTIONS_KEY);
+        //Recreate hashed keys schema indexes
+        collectionMap.clear();
+        getTargetCollections(null, null);
+        getCounterCollection();
+        getTargetActionsCollection();
+        return migrated;
     }
 
+    /**
+     * Copies a collection with hashed keys into <code>name.hashed</code> and
+     * renames the copy over it, keeping the collection and its unique key
+     * index untouched until the copy is done
+     */
+    private long migrateHashedKeys(DBCollection collection, String [] keyFields) throws StatsEngineException {
+        log.info("Migrating {} to hashed keys",collection.getName());
+        long t = System.currentTimeMillis();
+        long migrated = 0;
+        DBCursor dbc = null;
+        try {
+            DBCollection copy = db.getCollection(collection.getName() + ".hashed");
+            dbc = collection.find();
+            DBObject doc, key;
+            while(dbc.hasNext()) {
+                doc = dbc.next();
+                key = new BasicDBObject();
+                for(String field : keyFields) {
+                    key.put(field, doc.get(field));
+                }
+                if(doc.containsField(FIELD_STRIPE)) {
+                    key.put(FIELD_STRIPE, doc.get(FIELD_STRIPE));
+                }
+                ObjectId id = createHashedId(key);
+                if(!id.equals(doc.get(FIELD_ID))) {
+                    doc.put(FIELD_ID, id);
+                    migrated++;
+                }
+                try {
+                    copy.insert(doc, WriteConcern.SAFE);
+                }catch(MongoException ex) {
+                    if(!isDuplicateKey(ex)) {
+                        throw ex;
+                    }
+                    //Already copied by an interrupted migration
+                }
+            }
+            if(migrated == 0) {
+                //Already hashed: only the indexes change
+                copy.drop();
+                collection.dropIndexes();
+            } else {
+                copy.rename(collection.getName(), true);
+            }
+        }catch(MongoException ex) {
+            throw new StatsEngineException("migrating " + collection.getName() + " to hashed keys", ex);
+        } finally {
+            MongoUtil.close(dbc);
+        }
+        log.info("Migrated {} {} documents in {}ms",new Object[]{migrated,collection.getName(),System.currentTimeMillis()-t});
+        return migrated;
+    }
 
     private void initCollections() throws StatsEngineException {
         log.info("Initializing collections");
-        collectionMap = new HashMap<String,DBCollection>();
+        collectionMap = new ConcurrentHashMap<String,DBCollection>();
         if(resetCollections) {
             MongoUtil.dropCollections(db);
         }
+        if(eventsPartition == TimeScope.GLOBAL) {
+            getEventCollection(null);
+        }
+    }
+
+    /**
+     * Gets the raw events collection of the event partition
+     * @param event Event, may be <code>null</code> if events are not partitioned
+     * @return raw events collection
+     * @throws StatsEngineException
+     */
+    protected DBCollection getEventCollection(StatEvent event) throws StatsEngineException {
+        String name = getScopeCollectionName(COLLECTION_EVENTS, event, eventsPartition);
+        DBCollection events = collectionMap.get(name);
+        if(events == null) {
+            events = db.getCollection(name);
+            createEventIndexes(events);
+            DBCollection registered = collectionMap.putIfAbsent(name, events);
+            if(registered != null) {
+                events = registered;
+            }
+        }
+        return events;
+    }
+
+    private void createEventIndexes(DBCollection events) throws StatsEngineException {
         try {
-            log.info("Indexing {} collection",COLLECTION_EVENTS);            
-            events = db.getCollection(COLLECTION_EVENTS);
             long t = System.currentTimeMillis();
-            MongoUtil.createIndexes(events,
-                EVENT_CLIENT_ID,
-                EVENT_TARGET,
-                EVENT_TARGET_TYPE,
-                EVENT_DATE,
-                EVENT_METADATA
-            );
-            events.ensureIndex(MongoUtil.createDoc(
-                    EVENT_CLIENT_ID,1,
-                    EVENT_TARGET,1,
-                    EVENT_TARGET_TYPE,1,
-                    EVENT_ACTION,1,                    
-                    EVENT_DATE,1,
-                    EVENT_METADATA,1
-                    ),"targetAction",true);
-            log.info("Done indexing {} collection in {}ms",COLLECTION_EVENTS,System.currentTimeMillis()-t);
+            ensureIndexes(events, COLLECTION_EVENTS);
+            log.info("Done indexing {} collection in {}ms",events.getName(),System.currentTimeMillis()-t);
+        }catch(MongoException ex) {
+            throw new StatsEngineException("creating " + events.getName() + " indexes", ex);
+        }
+    }
+
+    /**
+     * Drops the raw events partitions whose period ends before the given date.
+     * Retention of partitioned events is a collection drop instead of a
+     * document delete.
+     * @param before Partitions ending at or before this date are dropped
+     * @return dropped collection names
+     * @throws StatsEngineException
+     */
+    public List<String> dropEventPartitions(DateTime before) throws StatsEngineException {
+        List<String> dropped = new ArrayList<String>();
+        try {
+            for(String name : db.getCollectionNames()) {
+                DateTime periodEnd = getScopeCollectionPeriodEnd(COLLECTION_EVENTS, name);
+                if(periodEnd == null || periodEnd.isAfter(before)) {
+                    continue;
+                }
+                log.info("Dropping events partition {} ended at {}",name,periodEnd);
+                db.getCollection(name).drop();
+                collectionMap.remove(name);
+                dropped.add(name);
+            }
         }catch(MongoException ex) {
-            throw new StatsEngineException("creating events indexes", ex);
+            throw new StatsEngineException("dropping events partitions", ex);
         }
+        return dropped;
     }
 
     protected DBCollection getStatsCollection() throws StatsEngineException {
@@ -726,7 +3206,10 @@ public class MongoStatsEngine extends AbstractStatsEngine {
                     throw new StatsEngineException("creating collection " + name + " indexes", ex);
                 }
             }
-            collectionMap.put(name, stats);
+            DBCollection registered = collectionMap.putIfAbsent(name, stats);
+            if(registered != null) {
+                stats = registered;
+            }
         }
         return stats;
     }
@@ -747,53 +3230,61 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         if(target == null) {
             target = db.getCollection(name);
             try {
-                MongoUtil.createIndexes(target,
-                    EVENT_CLIENT_ID,
-                    EVENT_TARGET,
-                    EVENT_TARGET_TYPE,
-                    EVENT_TARGET_OWNERS,
-                    EVENT_TARGET_TAGS,
-                    EVENT_ACTION,
-                    EVENT_DATE,
-                    TARGET_YEAR,
-                    TARGET_MONTH
-                );
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_TARGET,1,
-                        EVENT_TARGET_TYPE,1,
-                        TARGET_YEAR,1,
-                        TARGET_MONTH,1
-                        ),"targetYearMonth",false);
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_TARGET,1,
-                        EVENT_TARGET_TYPE,1,
-                        EVENT_ACTION,1,
-                        TARGET_YEAR,1,
-                        TARGET_MONTH,1
-                        ),"targetActionYearMonth",true);
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_TARGET,1,
-                        EVENT_TARGET_TYPE,1,
-                        EVENT_ACTION,1,
-                        EVENT_DATE,1
-                        ),"targetActionDate",true);
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_TARGET,1,
-                        EVENT_TARGET_TYPE,1,
-                        EVENT_DATE,1
-                        ),"targetDate",false);
+                ensureIndexes(target, COLLECTION_TARGETS);
             }catch(MongoException ex) {
                 throw new StatsEngineException("creating target " + name + " indexes", ex);
             }
-            collectionMap.put(name, target);
+            DBCollection registered = collectionMap.putIfAbsent(name, target);
+            if(registered != null) {
+                target = registered;
+            }
         }
         return target;
     }
 
+    /**
+     * Gets the targets collections holding the months of a date range, in
+     * date order: the GLOBAL one or the overlapping partitions
+     * @param from Range start, <code>null</code> for no lower bound
+     * @param to Range end, <code>null</code> for no upper bound
+     * @return targets collections
+     * @throws StatsEngineException
+     */
+    protected List<DBCollection> getTargetCollections(DateTime from, DateTime to) throws StatsEngineException {
+        TimeScope partition = targetsPartition;
+        List<DBCollection> result = new ArrayList<DBCollection>();
+        if(partition == TimeScope.GLOBAL) {
+            result.add(getTargetCollection());
+            return result;
+        }
+        //Monthly documents are dated at the start of their month
+        long fromMonth = from == null ? Long.MIN_VALUE : getBucket(TimeScope.MONTHLY, from.getMillis());
+        Map<Long,Date> partitions = new TreeMap<Long,Date>();
+        try {
+            for(String name : db.getCollectionNames()) {
+                DateTime periodEnd = getScopeCollectionPeriodEnd(COLLECTION_TARGETS, name);
+                if(periodEnd == null || !name.startsWith(COLLECTION_TARGETS + "_" + partition.getKey())) {
+                    continue;
+                }
+                DateTime periodStart = partition == TimeScope.ANNUAL ? periodEnd.minusYears(1) : periodEnd.minusMonths(1);
+                if(periodEnd.getMillis() <= fromMonth || (to != null && periodStart.isAfter(to))) {
+                    continue;
+                }
+                partitions.put(periodStart.getMillis(), periodStart.toDate());
+            }
+        }catch(MongoException ex) {
+            throw new StatsEngineException("listing targets partitions", ex);
+        }
+        for(Date periodStart : partitions.values()) {
+            result.add(getTargetCollection(periodStart, partition));
+        }
+        if(result.isEmpty()) {
+            //Empty results with the indexes of the current partition
+            result.add(getTargetCollection(DateUtil.getDateTimeUTC().toDate(), partition));
+        }
+        return result;
+    }
+
     protected DBCollection getCounterCollection() throws StatsEngineException {
         return getCounterCollection((StatEvent)null,TimeScope.GLOBAL);
     }
@@ -804,23 +3295,18 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         if(target == null) {
             target = db.getCollection(name);
             try {
-                MongoUtil.createIndexes(target,
-                    EVENT_CLIENT_ID,
-                    EVENT_TARGET,
-                    EVENT_TARGET_TYPE,
-                    EVENT_TARGET_OWNERS,
-                    EVENT_TARGET_TAGS
-                );
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_TARGET,1,
-                        EVENT_TARGET_TYPE,1,
-                        EVENT_ACTION,1
-                        ),"targetAction",true);
+                if(countersStripes > 1) {
+                    //Unstriped unique key would reject the stripes
+                    dropIndexIfExists(target, "targetAction");
+                }
+                ensureIndexes(target, COLLECTION_COUNTERS);
             }catch(MongoException ex) {
                 throw new StatsEngineException("creating target " + name + " indexes", ex);
             }
-            collectionMap.put(name, target);
+            DBCollection registered = collectionMap.putIfAbsent(name, target);
+            if(registered != null) {
+                target = registered;
+            }
         }
         return target;
     }
@@ -831,19 +3317,251 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         if(target == null) {
             target = db.getCollection(name);
             try {
-                MongoUtil.createIndexes(target,EVENT_CLIENT_ID,EVENT_ACTION);
-                target.ensureIndex(MongoUtil.createDoc(
-                        EVENT_CLIENT_ID,1,
-                        EVENT_ACTION,1
-                        ),"clientTargetActions",true);
+                if(actionsStripes > 1) {
+                    //Unstriped unique key would reject the stripes
+                    dropIndexIfExists(target, "clientTargetActions");
+                }
+                ensureIndexes(target, COLLECTION_TARGET_ACTIONS);
             }catch(MongoException ex) {
                 throw new StatsEngineException("creating target " + name + " indexes", ex);
             }
-            collectionMap.put(name, target);
+            DBCollection registered = collectionMap.putIfAbsent(name, target);
+            if(registered != null) {
+                target = registered;
+            }
         }
         return target;
     }
 
+    protected DBCollection getLeaderboardCollection() throws StatsEngineException {
+        String name = COLLECTION_LEADERBOARD;
+        DBCollection leaderboardCollection = collectionMap.get(name);
+        if(leaderboardCollection == null) {
+            leaderboardCollection = db.getCollection(name);
+            try {
+                ensureIndexes(leaderboardCollection, COLLECTION_LEADERBOARD);
+            }catch(MongoException ex) {
+                throw new StatsEngineException("creating " + name + " indexes", ex);
+            }
+            DBCollection registered = collectionMap.putIfAbsent(name, leaderboardCollection);
+            if(registered != null) {
+                leaderboardCollection = registered;
+            }
+        }
+        return leaderboardCollection;
+    }
+
+    protected DBCollection getRollupCollection() throws StatsEngineException {
+        return getIndexedCollection(COLLECTION_ROLLUPS);
+    }
+
+    /**
+     * Gets a not partitioned collection, indexed on first use
+     * @param name Collection name, also its indexes prefix
+     */
+    protected DBCollection getIndexedCollection(String name) throws StatsEngineException {
+        DBCollection collection = collectionMap.get(name);
+        if(collection == null) {
+            collection = db.getCollection(name);
+            try {
+                ensureIndexes(collection, name);
+            }catch(MongoException ex) {
+                throw new StatsEngineException("creating " + name + " indexes", ex);
+            }
+            DBCollection registered = collectionMap.putIfAbsent(name, collection);
+            if(registered != null) {
+                collection = registered;
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * Gets the indexes of a collection for the active index profile and keys
+     * schema, as <code>{name, key, unique}</code> documents.
+     * <p>
+     * Query shapes: getTargetStats filters targets by client, target, type,
+     * optional action and date range; getTopTargets and getTargetActionCount
+     * filter counters by client, type, optional target, owners and tags;
+     * getActions filters actions by client. Stats builds read the targets
+     * touched since their last checkpoint. The leaderboard is read by
+     * client, type and action in count order. Distinct sketches are read by
+     * client, type, action, key, optional target and date range, and the
+     * top targets sketches by client, type, action and date range. Rollups
+     * are read like the targets, by scope instead of month.
+     * @param prefix Collection prefix
+     * @return index specs
+     */
+    protected List<DBObject> getIndexSpecs(String prefix) {
+        List<DBObject> specs = new ArrayList<DBObject>();
+        boolean full = indexProfile == IndexProfile.FULL;
+        boolean query = indexProfile != IndexProfile.WRITE_HEAVY;
+        if(COLLECTION_EVENTS.equals(prefix)) {
+            if(full) {
+                addIndexSpec(specs, EVENT_CLIENT_ID, EVENT_TARGET, EVENT_TARGET_TYPE, EVENT_DATE, EVENT_METADATA);
+            }
+            //Duplicated events detection
+            addIndexSpec(specs, "targetAction", true,
+                    EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION,EVENT_DATE,EVENT_METADATA);
+            addIndexSpec(specs, "eventId", true, EVENT_ID);
+            specs.get(specs.size() - 1).put("sparse", true);
+        } else if(COLLECTION_TARGETS.equals(prefix)) {
+            //With hashed keys upserts match on _id: no unique keys needed
+            if(full && !hashedKeys) {
+                addIndexSpec(specs, EVENT_CLIENT_ID, EVENT_TARGET, EVENT_TARGET_TYPE, EVENT_TARGET_OWNERS,
+                        EVENT_TARGET_TAGS, EVENT_ACTION, EVENT_DATE, TARGET_YEAR, TARGET_MONTH);
+                addIndexSpec(specs, "targetYearMonth", false,
+                        EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,TARGET_YEAR,TARGET_MONTH);
+            }
+            if(!hashedKeys) {
+                addIndexSpec(specs, "targetActionYearMonth", true,
+                        EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION,TARGET_YEAR,TARGET_MONTH);
+            }
+            if(query && !hashedKeys) {
+                addIndexSpec(specs, "targetActionDate", true,
+                        EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION,EVENT_DATE);
+            }
+            if(query || hashedKeys) {
+                addIndexSpec(specs, "targetDate", false,
+                        EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_DATE);
+            }
+            if(query) {
+                //Incremental stats builds
+                addIndexSpec(specs, TOUCH_DATE);
+            }
+        } else if(COLLECTION_COUNTERS.equals(prefix)) {
+            if(full) {
+                addIndexSpec(specs, EVENT_CLIENT_ID, EVENT_TARGET, EVENT_TARGET_TYPE);
+            } else {
+                addIndexSpec(specs, "clientTypeTarget", false, EVENT_CLIENT_ID,EVENT_TARGET_TYPE,EVENT_TARGET);
+            }
+            if(query) {
+                addIndexSpec(specs, EVENT_TARGET_OWNERS, EVENT_TARGET_TAGS);
+            }
+            if(!hashedKeys && countersStripes > 1) {
+                addIndexSpec(specs, "targetActionStripe", true, EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION,FIELD_STRIPE);
+            } else if(!hashedKeys) {
+                addIndexSpec(specs, "targetAction", true, EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,EVENT_ACTION);
+            }
+        } else if(COLLECTION_TARGET_ACTIONS.equals(prefix)) {
+            if(full || hashedKeys) {
+                addIndexSpec(specs, EVENT_CLIENT_ID);
+            }
+            if(!hashedKeys) {
+                if(full) {
+                    addIndexSpec(specs, EVENT_ACTION);
+                }
+                if(actionsStripes > 1) {
+                    addIndexSpec(specs, "clientTargetActionsStripe", true, EVENT_CLIENT_ID,EVENT_ACTION,FIELD_STRIPE);
+                } else {
+                    addIndexSpec(specs, "clientTargetActions", true, EVENT_CLIENT_ID,EVENT_ACTION);
+                }
+            }
+        } else if(COLLECTION_LEADERBOARD.equals(prefix)) {
+            //Target breaks count ties so pages have a stable order
+            DBObject key = MongoUtil.createDoc(EVENT_CLIENT_ID,1,EVENT_TARGET_TYPE,1,EVENT_ACTION,1,FIELD_COUNT,-1,EVENT_TARGET,1);
+            specs.add(MongoUtil.createDoc("name","ranking","key",key,"unique",false));
+        } else if(COLLECTION_DISTINCTS.equals(prefix)) {
+            addIndexSpec(specs, "distinctKeyDate", false,
+                    EVENT_CLIENT_ID,EVENT_TARGET_TYPE,EVENT_ACTION,FIELD_DISTINCT_KEY,EVENT_TARGET,EVENT_DATE);
+        } else if(COLLECTION_ROLLUPS.equals(prefix)) {
+            addIndexSpec(specs, "targetScopeActionDate", false,
+                    EVENT_CLIENT_ID,EVENT_TARGET,EVENT_TARGET_TYPE,FIELD_SCOPE,EVENT_ACTION,EVENT_DATE);
+        } else if(COLLECTION_TOP_TARGETS.equals(prefix)) {
+            addIndexSpec(specs, "clientActionDate", true,
+                    EVENT_CLIENT_ID,EVENT_TARGET_TYPE,EVENT_ACTION,EVENT_DATE);
+        }
+        return specs;
+    }
+
+    private void addIndexSpec(List<DBObject> specs, String... fields) {
+        for(String field : fields) {
+            DBObject key = MongoUtil.createDoc(field,1);
+            specs.add(MongoUtil.createDoc("name",DBCollection.genIndexName(key),"key",key,"unique",false));
+        }
+    }
+
+    private void addIndexSpec(List<DBObject> specs, String name, boolean unique, String... fields) {
+        DBObject key = new BasicDBObject();
+        for(String field : fields) {
+            key.put(field, 1);
+        }
+        specs.add(MongoUtil.createDoc("name",name,"key",key,"unique",unique));
+    }
+
+    void ensureIndexes(DBCollection collection, String prefix) {
+        log.info("Indexing {} collection with {} profile",collection.getFullName(),indexProfile);
+        for(DBObject spec : getIndexSpecs(prefix)) {
+            DBObject options = new BasicDBObject(spec.toMap());
+            options.removeField("key");
+            collection.ensureIndex((DBObject)spec.get("key"),options);
+        }
+    }
+
+    private void dropIndexIfExists(DBCollection collection, String name) {
+        for(DBObject index : collection.getIndexInfo()) {
+            if(name.equals(index.get("name"))) {
+                log.info("Dropping index {} of {}",name,collection.getName());
+                collection.dropIndex(name);
+                collection.resetIndexCache();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reports the indexes of the events, targets, counters and actions
+     * collections not needed by the active index profile
+     * @param drop <code>true</code> to drop them
+     * @return unneeded index names by collection name
+     * @throws StatsEngineException
+     */
+    public Map<String,List<String>> getUnneededIndexes(boolean drop) throws StatsEngineException {
+        Map<String,List<String>> result = new TreeMap<String,List<String>>();
+        String [] prefixes = {COLLECTION_EVENTS,COLLECTION_TARGETS,COLLECTION_COUNTERS,COLLECTION_TARGET_ACTIONS,COLLECTION_LEADERBOARD,COLLECTION_DISTINCTS,COLLECTION_TOP_TARGETS,COLLECTION_ROLLUPS};
+        try {
+            for(String name : db.getCollectionNames()) {
+                String prefix = null;
+                for(String collectionPrefix : prefixes) {
+                    if(name.equals(collectionPrefix) || name.startsWith(collectionPrefix + "_")) {
+                        prefix = collectionPrefix;
+                    }
+                }
+                if(prefix == null) {
+                    continue;
+                }
+                List<String> needed = new ArrayList<String>();
+                for(DBObject spec : getIndexSpecs(prefix)) {
+                    needed.add((String)spec.get("name"));
+                }
+                DBCollection collection = db.getCollection(name);
+                List<String> unneeded = new ArrayList<String>();
+                for(DBObject index : collection.getIndexInfo()) {
+                    String indexName = (String)index.get("name");
+                    //Sort indexes are ensured by getTopTargets
+                    if("_id_".equals(indexName) || needed.contains(indexName)
+                            || indexName.startsWith(EVENT_ACTION + ".")) {
+                        continue;
+                    }
+                    unneeded.add(indexName);
+                    if(drop) {
+                        log.info("Dropping index {} of {}",indexName,name);
+                        collection.dropIndex(indexName);
+                    }
+                }
+                if(!unneeded.isEmpty()) {
+                    result.put(name, unneeded);
+                }
+                if(drop) {
+                    collection.resetIndexCache();
+                }
+            }
+        }catch(MongoException ex) {
+            throw new StatsEngineException("checking unneeded indexes", ex);
+        }
+        return result;
+    }
+
     protected int getQueryOrder(Query query) {
         return query.isOrderAscending() ? 1 : -1;
     }
@@ -856,18 +3574,90 @@ public class MongoStatsEngine extends AbstractStatsEngine {
                 case IN:
                     value = new BasicDBObject("$in",filter.getValue());
                     break;
+                case GT:
+                    value = new BasicDBObject("$gt",toQueryValue(filter.getValue()));
+                    break;
+                case GTE:
+                    value = new BasicDBObject("$gte",toQueryValue(filter.getValue()));
+                    break;
+                case LT:
+                    value = new BasicDBObject("$lt",toQueryValue(filter.getValue()));
+                    break;
+                case LTE:
+                    value = new BasicDBObject("$lte",toQueryValue(filter.getValue()));
+                    break;
                 case EQ:
                 default:
-                    value = filter.isEmpty() ? "" : filter.getValue();
+                    value = filter.isEmpty() ? "" : toQueryValue(filter.getValue());
                     break;
             }
         }
         return value;
     }
 
+    private Object toQueryValue(Object value) {
+        return value instanceof DateTime ? ((DateTime) value).toDate() : value;
+    }
+
+    /**
+     * Gets the action of a query, which must be an equality filter when it
+     * names a counters path
+     */
+    private String getQueryAction(Query query) throws QueryException {
+        QueryFilter filter = query.getFilter(QueryField.ACTION);
+        if(filter == null) {
+            return null;
+        }
+        if(filter.getOperation() != QueryOp.EQ) {
+            throw new QueryException("Action filter must be an equality, found " + filter.getOperation());
+        }
+        return filter.getStringValue();
+    }
+
+
+    String dotPath(Object... items) {
+        return createDotPath(items);
+    }
+
+    DB getDB() {
+        return db;
+    }
+
+    /**
+     * Forgets the resolved collections so they are indexed again on next use,
+     * and the cached query results
+     */
+    void resetCollectionCache() {
+        collectionMap.clear();
+        invalidateQueryCache((String) null);
+    }
+
+    /**
+     * Creates a job recomputing the targets, counters and actions
+     * collections from the raw events
+     * @param threads Worker threads
+     * @param precision Time scope precision of the rebuilt targets
+     * @return rebuild job, not started
+     * @see CounterRebuild#run()
+     */
+    public CounterRebuild createCounterRebuild(int threads, TimeScope precision) {
+        if(targetsPartition != TimeScope.GLOBAL) {
+            throw new StatsEngineException("Counters rebuild needs GLOBAL targets, partitioned by " + targetsPartition);
+        }
+        if(!isKeepEvents()) {
+            throw new StatsEngineException("Counters rebuild needs the raw events kept");
+        }
+        if(distinctMode != DistinctMode.NONE || isTopTargetsSketches()) {
+            throw new StatsEngineException("Counters rebuild does not rebuild the distinct and top targets sketches");
+        }
+        return new CounterRebuild(this, threads, precision);
+    }
 
     protected void dropAllCollections() {
         MongoUtil.dropCollections(db);
+        collectionMap.clear();
+        preallocated.clear();
+        invalidateQueryCache((String) null);
     }
 
     protected DBObject debugTrim(DBObject dbo) {
@@ -876,6 +3666,160 @@ public class MongoStatsEngine extends AbstractStatsEngine {
     }
 
 
+    private synchronized void startWriteBehind() {
+        if(writeBehindBuffer == null) {
+            WriteBehindBuffer buffer = new WriteBehindBuffer(writeBehindDelay, writeBehindSize, new WriteBehindBuffer.Listener() {
+                @Override
+                public void counting(List<StatEvent> events) {
+                    if(!countEvents || !preallocate) {
+                        return;
+                    }
+                    TimeScope precision = getTimeScopePrecision();
+                    for(StatEvent event : events) {
+                        try {
+                            preallocateTarget(event, precision);
+                        }catch(StatsEngineException ex) {
+                            //The increments create the document anyway
+                            log.warn("Write-behind preallocation failed",ex);
+                        }
+                    }
+                }
+
+                @Override
+                public void flushed(List<StatEvent> events) {
+                    for(StatEvent event : events) {
+                        if(countEvents) {
+                            countSketches(event);
+                        }
+                        //Again: queries run before the flush may have cached the previous counts
+                        invalidateQueryCache(event);
+                    }
+                }
+            });
+            buffer.start();
+            writeBehindBuffer = buffer;
+        }
+        updateQueryCachePolicy();
+    }
+
+    private synchronized void stopWriteBehind() {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if(buffer != null) {
+            writeBehindBuffer = null;
+            buffer.shutDown();
+        }
+        updateQueryCachePolicy();
+    }
+
+    @Override
+    public void setQueryCache(QueryCache queryCache) {
+        super.setQueryCache(queryCache);
+        updateQueryCachePolicy();
+    }
+
+    /**
+     * Results of closed periods are not kept when late events are counted
+     * after invalidating them
+     */
+    private void updateQueryCachePolicy() {
+        QueryCache cache = getQueryCache();
+        if(cache != null) {
+            cache.setClosedPeriodsKept(writeBehindBuffer == null && eventLog == null);
+        }
+    }
+
+    /**
+     * Replays the event log segments left by a previous run and starts
+     * the background applier
+     */
+    private void initEventLog(final EventLog walLog, final long delay) throws StatsEngineException {
+        if(!isKeepEvents()) {
+            throw new StatsEngineException("The event log replay needs the raw events (events.keep)");
+        }
+        walLog.open();
+        long replayed = walLog.replay(new EventLogApplier());
+        log.info("Event log {} replayed {} events",walLog.getDir(),replayed);
+        eventLog = walLog;
+        updateQueryCachePolicy();
+        applyingEventLog = true;
+        eventLogApplier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(applyingEventLog) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        //Shutdown
+                    }
+                    try {
+                        walLog.rotate();
+                        walLog.replay(new EventLogApplier());
+                    }catch(RuntimeException ex) {
+                        log.error("Applying event log, will retry",ex);
+                    }
+                }
+            }
+        },"mongoste-eventlog");
+        eventLogApplier.setDaemon(true);
+        eventLogApplier.start();
+    }
+
+    private void stopEventLog() throws StatsEngineException {
+        EventLog walLog = eventLog;
+        if(walLog == null) {
+            return;
+        }
+        applyingEventLog = false;
+        eventLogApplier.interrupt();
+        try {
+            eventLogApplier.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        eventLog = null;
+        updateQueryCachePolicy();
+        walLog.rotate();
+        walLog.close();
+        try {
+            walLog.replay(new EventLogApplier());
+        }catch(StatsEngineException ex) {
+            log.error("Applying event log on shutdown, pending segments will be replayed on init",ex);
+        }
+    }
+
+    /**
+     * Applies logged events straight to mongo. The raw events are saved
+     * marked as pending and unmarked once all their counters are written:
+     * events applied before a crash are rejected by the events unique index
+     * and not counted twice, saved but pending ones are counted again.
+     * Counters are updated once per logged batch, so counting a batch again,
+     * after a crash or a failed write, skips the counters it already updated.
+     */
+    private class EventLogApplier implements EventLog.Applier {
+        @Override
+        public void apply(String batchId, List<StatEvent> batch) throws StatsEngineException {
+            Map<StatEvent,StatsEngineException> rejected = processEvents(
+                    batch, new LinkedHashMap<StatEvent,StatsEngineException>(), new HashMap<StatEvent,Object>(), batchId
+            );
+            for(StatEvent event : batch) {
+                if(!rejected.containsKey(event)) {
+                    //Again: queries run before applying may have cached the previous counts
+                    invalidateQueryCache(event);
+                }
+            }
+            int duplicates = 0;
+            for(StatsEngineException ex : rejected.values()) {
+                if(!(ex instanceof DuplicateEventException)) {
+                    throw new StatsEngineException("Applying logged events",ex);
+                }
+                duplicates++;
+            }
+            if(duplicates > 0) {
+                log.info("Skipped {} already applied events",duplicates);
+            }
+        }
+    }
+
     private void initFunctions() throws StatsEngineException {
         addFunction(FN_MAPPER_TARGETS,TimeScope.MONTHLY);
         addFunction(FN_MAPPER_TARGETS,TimeScope.HOURLY);
@@ -908,9 +3852,6 @@ public class MongoStatsEngine extends AbstractStatsEngine {
 
     private void addFunction(String functionName,String body) {
         MongoUtil.addDBFunction(db, functionName, body);
-        if(functionMap == null) {
-            functionMap = new HashMap<String, String>();
-        }
         functionMap.put(functionName, body);
     }
 
@@ -926,8 +3867,9 @@ public class MongoStatsEngine extends AbstractStatsEngine {
         return functionMap.get(functionName);
     }
 
-    private BasicDBObject createAddToSetOwnersTagsDoc(StatEvent event) {
-        return createSetOwnersTagsDoc(event.getTargetOwners(), event.getTargetTags(),true);
+    private void addToSetOwnersTags(CounterUpdate update, StatEvent event) {
+        update.addToSet(EVENT_TARGET_OWNERS, event.getTargetOwners());
+        update.addToSet(EVENT_TARGET_TAGS, event.getTargetTags());
     }
 
     private BasicDBObject createSetOwnersTagsDoc(List<String> owners,List<String> tags,boolean addToSet) {
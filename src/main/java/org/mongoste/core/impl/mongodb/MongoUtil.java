@@ -20,6 +20,12 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -103,4 +109,72 @@ public final class MongoUtil {
         }
         log.info("Done indexing {} collection in {}ms",collection.getFullName(),System.currentTimeMillis()-t);
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a compact fixed width key from the given values: the first 12
+     * bytes of the MD5 digest of the values, as an ObjectId
+     * @param values Key values, dates are hashed by their time
+     * @return hashed key
+     */
+    public static ObjectId createHashedId(Object... values) {
+        StringBuilder key = new StringBuilder();
+        for(Object value : values) {
+            if(value instanceof Date) {
+                value = ((Date)value).getTime();
+            }
+            key.append(value).append('\u0000');
+        }
+        try {
+            byte [] digest = MessageDigest.getInstance("MD5").digest(key.toString().getBytes("UTF-8"));
+            return new ObjectId(Arrays.copyOf(digest, 12));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Encodes a string as the hexadecimal form of its UTF-8 bytes
+     * @param value String to encode
+     * @return hexadecimal string
+     */
+    public static String toHex(String value) {
+        try {
+            byte [] bytes = value.getBytes("UTF-8");
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for(byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Decodes a string encoded with {@link #toHex(String)}
+     * @param hex hexadecimal string
+     * @return decoded string
+     * @throws IllegalArgumentException if <code>hex</code> is not valid
+     */
+    public static String fromHex(String hex) {
+        if(hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd hexadecimal length: " + hex);
+        }
+        byte [] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if(high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hexadecimal: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
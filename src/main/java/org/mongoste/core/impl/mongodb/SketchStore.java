@@ -0,0 +1,244 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import org.mongoste.core.StatsEngineException;
+import org.mongoste.util.Sketch;
+
+import org.bson.types.ObjectId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Buffered store of sketches, one document per key.
+ * <p>
+ * Values are added to in-memory sketches and merged into the stored ones on
+ * flush: read, merge and write back guarded by a version field, retried
+ * from the read when another writer got first, so each buffered sketch is
+ * merged exactly once.
+ * @author mrmx
+ */
+class SketchStore {
+    private static Logger log = LoggerFactory.getLogger(SketchStore.class);
+    static final String FIELD_SKETCH  = "sketch";
+    static final String FIELD_VERSION = "version";
+    private static final int MAX_RETRIES = 10;
+    /** Milliseconds adds wait to flush again after a failed flush */
+    private static final long FLUSH_BACKOFF = 1000L;
+
+    private final MongoStatsEngine engine;
+    private final String collectionName;
+    private final int maxPending;
+    private final Object flushLock = new Object();
+    private Map<ObjectId,Pending> pending = new LinkedHashMap<ObjectId,Pending>();
+    private volatile long flushAfter;
+
+    private static class Pending {
+        final DBObject key;
+        final Sketch sketch;
+
+        Pending(DBObject key, Sketch sketch) {
+            this.key = key;
+            this.sketch = sketch;
+        }
+    }
+
+    /**
+     * @param engine Engine owning the sketches collection
+     * @param collectionName Sketches collection name
+     * @param maxPending max buffered sketches before forcing a flush
+     */
+    SketchStore(MongoStatsEngine engine, String collectionName, int maxPending) {
+        if(maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive");
+        }
+        this.engine = engine;
+        this.collectionName = collectionName;
+        this.maxPending = maxPending;
+    }
+
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Adds occurrences of a value to the sketch of a key
+     * @param key Sketch key document
+     * @param empty Empty sketch used if the key has none buffered
+     * @param value Value to add
+     * @param count Occurrences of the value
+     * @return <code>false</code> if the sketch can not hold the value
+     */
+    boolean add(DBObject key, Sketch empty, String value, long count) {
+        ObjectId id = MongoUtil.createHashedId(key.toMap().values().toArray());
+        boolean added;
+        boolean full;
+        synchronized(this) {
+            Pending sketch = pending.get(id);
+            if(sketch == null) {
+                sketch = new Pending(key, empty);
+                pending.put(id, sketch);
+            }
+            added = sketch.sketch.add(value, count);
+            full = pending.size() >= maxPending;
+        }
+        if(full && System.currentTimeMillis() >= flushAfter) {
+            try {
+                flush();
+            }catch(StatsEngineException ex) {
+                //Kept buffered: the event itself is counted
+                flushAfter = System.currentTimeMillis() + FLUSH_BACKOFF;
+                log.error("Flushing " + collectionName + " sketches, will retry", ex);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Merges the buffered sketches into the stored ones. Sketches not merged
+     * when a merge fails stay buffered.
+     * @throws StatsEngineException
+     */
+    void flush() throws StatsEngineException {
+        synchronized(flushLock) {
+            Map<ObjectId,Pending> batch;
+            synchronized(this) {
+                if(pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<ObjectId,Pending>();
+            }
+            Iterator<Map.Entry<ObjectId,Pending>> entries = batch.entrySet().iterator();
+            try {
+                DBCollection collection = engine.getIndexedCollection(collectionName);
+                while(entries.hasNext()) {
+                    Map.Entry<ObjectId,Pending> entry = entries.next();
+                    merge(collection, entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+            }catch(StatsEngineException ex) {
+                requeue(batch);
+                throw ex;
+            }catch(RuntimeException ex) {
+                requeue(batch);
+                throw new StatsEngineException("merging " + collectionName + " sketches", ex);
+            }
+        }
+    }
+
+    /**
+     * Buffers again the unmerged sketches, before the ones added meanwhile
+     */
+    private synchronized void requeue(Map<ObjectId,Pending> unmerged) {
+        for(Map.Entry<ObjectId,Pending> entry : pending.entrySet()) {
+            Pending requeued = unmerged.get(entry.getKey());
+            if(requeued == null) {
+                unmerged.put(entry.getKey(), entry.getValue());
+            } else {
+                requeued.sketch.merge(entry.getValue().sketch);
+            }
+        }
+        pending = unmerged;
+    }
+
+    /**
+     * Merges the stored sketches matching a query, after flushing the
+     * buffered ones
+     * @param query Sketch documents query
+     * @return the merged sketch, <code>null</code> if none matched
+     * @throws StatsEngineException
+     */
+    Sketch load(DBObject query) throws StatsEngineException {
+        flush();
+        Sketch result = null;
+        DBCursor dbc = null;
+        try {
+            dbc = engine.getIndexedCollection(collectionName).find(query, new BasicDBObject(FIELD_SKETCH, 1));
+            while(dbc.hasNext()) {
+                Sketch sketch = Sketch.fromBytes((byte[]) dbc.next().get(FIELD_SKETCH));
+                if(result == null) {
+                    result = sketch;
+                } else {
+                    result.merge(sketch);
+                }
+            }
+        } catch(MongoException ex) {
+            throw new StatsEngineException("loading " + collectionName + " sketches", ex);
+        } catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("merging " + collectionName + " sketches", ex);
+        } finally {
+            if(dbc != null) {
+                dbc.close();
+            }
+        }
+        return result;
+    }
+
+    private void merge(DBCollection collection, ObjectId id, Pending sketch) throws StatsEngineException {
+        DBObject idDoc = new BasicDBObject(MongoStatsEngine.FIELD_ID, id);
+        try {
+            for(int retry = 0; retry < MAX_RETRIES; retry++) {
+                DBObject stored = collection.findOne(idDoc);
+                if(stored == null) {
+                    DBObject doc = new BasicDBObject(MongoStatsEngine.FIELD_ID, id);
+                    doc.putAll(sketch.key);
+                    doc.put(FIELD_SKETCH, sketch.sketch.toBytes());
+                    doc.put(FIELD_VERSION, 1);
+                    try {
+                        collection.insert(doc, WriteConcern.SAFE);
+                        return;
+                    } catch(MongoException ex) {
+                        if(!MongoStatsEngine.isDuplicateKey(ex)) {
+                            throw ex;
+                        }
+                        //Inserted by another writer: merge into it
+                        continue;
+                    }
+                }
+                Sketch merged = Sketch.fromBytes((byte[]) stored.get(FIELD_SKETCH));
+                merged.merge(sketch.sketch);
+                Object version = stored.get(FIELD_VERSION);
+                DBObject match = new BasicDBObject(MongoStatsEngine.FIELD_ID, id);
+                match.put(FIELD_VERSION, version);
+                DBObject set = new BasicDBObject(FIELD_SKETCH, merged.toBytes());
+                set.put(FIELD_VERSION, ((Number) version).intValue() + 1);
+                WriteResult wr = collection.update(match, new BasicDBObject("$set", set), false, false, WriteConcern.SAFE);
+                if(wr.getN() == 1) {
+                    return;
+                }
+            }
+        } catch(MongoException ex) {
+            throw new StatsEngineException("merging " + collectionName + " sketch " + sketch.key, ex);
+        } catch(IllegalArgumentException ex) {
+            throw new StatsEngineException("merging " + collectionName + " sketch " + sketch.key, ex);
+        }
+        throw new StatsEngineException("Too many concurrent merges of " + collectionName + " sketch " + sketch.key);
+    }
+}
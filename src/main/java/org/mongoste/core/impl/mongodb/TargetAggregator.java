@@ -0,0 +1,286 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import org.mongoste.core.StatsEngineException;
+import org.mongoste.core.TimeScope;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process equivalent of the targets map reduce functions.
+ * <p>
+ * Targets documents are streamed by the calling thread and dealt by target
+ * hash to one reducing thread each. A targets document is the only one of
+ * its target action and month, so it owns the keys it maps: they are
+ * finished once the document is mapped and each partition streams them to
+ * the output in batches. Results keep the map reduce output format,
+ * <code>_id</code> key and <code>value</code> with the <code>count</code>
+ * and <code>unique</code> sums.
+ * @author mrmx
+ */
+class TargetAggregator {
+    /** Targets fields read by the aggregator */
+    static final DBObject FIELDS = MongoUtil.createDoc(
+            MongoStatsEngine.EVENT_CLIENT_ID, 1,
+            MongoStatsEngine.EVENT_ACTION, 1,
+            MongoStatsEngine.EVENT_TARGET_TYPE, 1,
+            MongoStatsEngine.EVENT_TARGET, 1,
+            MongoStatsEngine.EVENT_TARGET_OWNERS, 1,
+            MongoStatsEngine.EVENT_TARGET_TAGS, 1,
+            MongoStatsEngine.TARGET_YEAR, 1,
+            MongoStatsEngine.TARGET_MONTH, 1,
+            MongoStatsEngine.FIELD_COUNT, 1,
+            MongoStatsEngine.FIELD_META, 1,
+            MongoStatsEngine.FIELD_DAYS, 1
+    );
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUED_BATCHES = 4;
+    private static final List<DBObject> END = new ArrayList<DBObject>(0);
+
+    /**
+     * Receives the results of the partitions, from their reducing threads
+     */
+    interface Output {
+        void write(List<DBObject> results);
+    }
+
+    private final TimeScope groupBy;
+    private final int parallelism;
+    private final int outputBatch;
+
+    /**
+     * @param groupBy Result dates precision: MONTHLY, DAILY or HOURLY
+     * @param parallelism Reducing threads
+     * @param outputBatch Results written at once by a partition
+     */
+    TargetAggregator(TimeScope groupBy, int parallelism, int outputBatch) {
+        if(groupBy != TimeScope.MONTHLY && groupBy != TimeScope.DAILY && groupBy != TimeScope.HOURLY) {
+            throw new IllegalArgumentException("Unsupported grouping: " + groupBy);
+        }
+        if(parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        if(outputBatch <= 0) {
+            throw new IllegalArgumentException("outputBatch must be positive");
+        }
+        this.groupBy = groupBy;
+        this.parallelism = parallelism;
+        this.outputBatch = outputBatch;
+    }
+
+    /**
+     * Maps targets documents, writing their results to the output
+     * @param targets Targets documents, with at least the {@link #FIELDS}
+     * @param output Results output, shared by the reducing threads
+     * @return results written
+     * @throws StatsEngineException
+     */
+    long aggregate(Iterator<DBObject> targets, final Output output) throws StatsEngineException {
+        final AtomicLong written = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mongoste-aggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<BlockingQueue<List<DBObject>>> queues = new ArrayList<BlockingQueue<List<DBObject>>>(parallelism);
+        List<List<DBObject>> batches = new ArrayList<List<DBObject>>(parallelism);
+        List<Future<Object>> results = new ArrayList<Future<Object>>(parallelism);
+        try {
+            for(int i = 0; i < parallelism; i++) {
+                final BlockingQueue<List<DBObject>> queue = new ArrayBlockingQueue<List<DBObject>>(QUEUED_BATCHES);
+                queues.add(queue);
+                batches.add(new ArrayList<DBObject>(BATCH_SIZE));
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        Map<DBObject,long[]> reduced = new LinkedHashMap<DBObject,long[]>();
+                        List<DBObject> docs = new ArrayList<DBObject>(outputBatch);
+                        for(List<DBObject> batch = queue.take(); batch != END; batch = queue.take()) {
+                            for(DBObject target : batch) {
+                                map(target, reduced);
+                                for(Map.Entry<DBObject,long[]> entry : reduced.entrySet()) {
+                                    docs.add(createResult(entry.getKey(), entry.getValue()));
+                                }
+                                reduced.clear();
+                                if(docs.size() >= outputBatch) {
+                                    output.write(docs);
+                                    written.addAndGet(docs.size());
+                                    docs = new ArrayList<DBObject>(outputBatch);
+                                }
+                            }
+                        }
+                        if(!docs.isEmpty()) {
+                            output.write(docs);
+                            written.addAndGet(docs.size());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            while(targets.hasNext()) {
+                DBObject target = targets.next();
+                int partition = (hashTarget(target) & Integer.MAX_VALUE) % parallelism;
+                List<DBObject> batch = batches.get(partition);
+                batch.add(target);
+                if(batch.size() == BATCH_SIZE) {
+                    put(queues.get(partition), batch, results.get(partition));
+                    batches.set(partition, new ArrayList<DBObject>(BATCH_SIZE));
+                }
+            }
+            for(int i = 0; i < parallelism; i++) {
+                put(queues.get(i), batches.get(i), results.get(i));
+                put(queues.get(i), END, results.get(i));
+            }
+            for(Future<Object> result : results) {
+                result.get();
+            }
+            return written.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StatsEngineException("Aggregating targets interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new StatsEngineException("Aggregating targets", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Result in the map reduce output format, values as doubles like the
+     * JavaScript numbers
+     */
+    private static DBObject createResult(DBObject key, long[] value) {
+        return MongoUtil.createDoc(
+                MongoStatsEngine.FIELD_ID, key,
+                "value", MongoUtil.createDoc(
+                        MongoStatsEngine.FIELD_COUNT, (double) value[0],
+                        "unique", (double) value[1])
+        );
+    }
+
+    /**
+     * Queues a batch unless its reducer failed, so it stops being fed
+     */
+    private void put(BlockingQueue<List<DBObject>> queue, List<DBObject> batch, Future<Object> result)
+            throws InterruptedException, ExecutionException {
+        while(!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if(result.isDone()) {
+                result.get();
+            }
+        }
+    }
+
+    /**
+     * Same keys as the targetMapper functions: the month, day and hour
+     * counters are summed into the key date of the grouping
+     */
+    private void map(DBObject target, Map<DBObject,long[]> reduced) {
+        int year = ((Number) target.get(MongoStatsEngine.TARGET_YEAR)).intValue();
+        int month = ((Number) target.get(MongoStatsEngine.TARGET_MONTH)).intValue();
+        DBObject days = (DBObject) target.get(MongoStatsEngine.FIELD_DAYS);
+        if(days == null) {
+            reduce(reduced, createKey(target, year, month, 1, 0), target);
+            return;
+        }
+        for(String d : days.keySet()) {
+            DBObject day = (DBObject) days.get(d);
+            DBObject hours = (DBObject) day.get(MongoStatsEngine.FIELD_HOURS);
+            int dayOfMonth = groupBy == TimeScope.MONTHLY ? 1 : Integer.parseInt(d);
+            if(hours == null) {
+                reduce(reduced, createKey(target, year, month, dayOfMonth, 0), day);
+                continue;
+            }
+            for(String h : hours.keySet()) {
+                int hour = groupBy == TimeScope.HOURLY ? Integer.parseInt(h) : 0;
+                reduce(reduced, createKey(target, year, month, dayOfMonth, hour), (DBObject) hours.get(h));
+            }
+        }
+    }
+
+    private void reduce(Map<DBObject,long[]> reduced, DBObject key, DBObject counters) {
+        Number count = (Number) counters.get(MongoStatsEngine.FIELD_COUNT);
+        if(count == null || count.longValue() == 0) {
+            //Preallocated bucket
+            return;
+        }
+        long[] value = reduced.get(key);
+        if(value == null) {
+            reduced.put(key, value = new long[2]);
+        }
+        value[0] += count.longValue();
+        DBObject meta = (DBObject) counters.get(MongoStatsEngine.FIELD_META);
+        if(meta != null) {
+            DBObject unique = (DBObject) meta.get(MongoStatsEngine.METAKEY_IP);
+            if(unique != null) {
+                value[1] += unique.keySet().size();
+            }
+        }
+    }
+
+    private DBObject createKey(DBObject target, int year, int month, int day, int hour) {
+        BasicDBObject key = new BasicDBObject();
+        key.put("idc", target.get(MongoStatsEngine.EVENT_CLIENT_ID));
+        key.put("ida", target.get(MongoStatsEngine.EVENT_ACTION));
+        key.put("idk", target.get(MongoStatsEngine.EVENT_TARGET_TYPE));
+        key.put("idt", target.get(MongoStatsEngine.EVENT_TARGET));
+        key.put("own", getList(target, MongoStatsEngine.EVENT_TARGET_OWNERS));
+        key.put("tags", getList(target, MongoStatsEngine.EVENT_TARGET_TAGS));
+        key.put("date", new DateTime(year, month, day, hour, 0, 0, 0, DateTimeZone.UTC).toDate());
+        return key;
+    }
+
+    private static Object getList(DBObject target, String field) {
+        Object list = target.get(field);
+        return list == null ? new BasicDBList() : list;
+    }
+
+    private static int hashTarget(DBObject target) {
+        return Arrays.hashCode(new Object[] {
+            target.get(MongoStatsEngine.EVENT_CLIENT_ID),
+            target.get(MongoStatsEngine.EVENT_ACTION),
+            target.get(MongoStatsEngine.EVENT_TARGET_TYPE),
+            target.get(MongoStatsEngine.EVENT_TARGET),
+            target.get(MongoStatsEngine.EVENT_TARGET_OWNERS),
+            target.get(MongoStatsEngine.EVENT_TARGET_TAGS)
+        });
+    }
+}
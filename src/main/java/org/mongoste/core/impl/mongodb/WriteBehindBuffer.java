@@ -0,0 +1,333 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import org.mongoste.model.StatEvent;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Write-behind buffer that coalesces counter upserts by target key and
+ * flushes them in the background every <code>maxDelay</code> ms or as soon
+ * as <code>maxSize</code> events are pending.
+ * <p>
+ * The counter updates of an event with a raw document are coalesced only
+ * once its document is inserted: duplicated events, detected by the events
+ * unique indexes on flush, are dropped with their counts.
+ * @author mrmx
+ */
+class WriteBehindBuffer {
+    private static Logger log = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    /**
+     * Notified of the events whose counts are about to be and were written
+     */
+    interface Listener {
+        void counting(List<StatEvent> events);
+
+        void flushed(List<StatEvent> events);
+    }
+
+    private final long maxDelay;
+    private final int maxSize;
+    private final Object flushLock = new Object();
+    private Map<String,CounterUpdate> updates = new LinkedHashMap<String,CounterUpdate>();
+    private Map<DBCollection,List<BufferedEvent>> events = new LinkedHashMap<DBCollection,List<BufferedEvent>>();
+    private List<StatEvent> handled = new ArrayList<StatEvent>();
+    private final Listener listener;
+    private int pending;
+    private Thread flusher;
+    private volatile boolean running;
+
+    /**
+     * Raw event document with the counter updates counted once it is inserted
+     */
+    private static class BufferedEvent {
+        final StatEvent event;
+        final DBObject doc;
+        final CounterUpdate[] updates;
+
+        BufferedEvent(StatEvent event, DBObject doc, CounterUpdate[] updates) {
+            this.event = event;
+            this.doc = doc;
+            this.updates = updates;
+        }
+    }
+
+    /**
+     * @param maxDelay max milliseconds an increment stays in memory
+     * @param maxSize max buffered events before forcing a flush
+     */
+    WriteBehindBuffer(long maxDelay, int maxSize) {
+        this(maxDelay, maxSize, null);
+    }
+
+    /**
+     * @param maxDelay max milliseconds an increment stays in memory
+     * @param maxSize max buffered events before forcing a flush
+     * @param listener Flushed events listener or <code>null</code>
+     */
+    WriteBehindBuffer(long maxDelay, int maxSize, Listener listener) {
+        if(maxDelay <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("maxDelay and maxSize must be positive");
+        }
+        this.maxDelay = maxDelay;
+        this.maxSize = maxSize;
+        this.listener = listener;
+    }
+
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Buffers the raw event document and the counter updates of one event
+     * @param event Buffered event, reported to the listener once counted
+     * @param eventCollection Raw events collection or <code>null</code>
+     * @param eventDoc Raw event document or <code>null</code>
+     * @param eventUpdates Counter updates to coalesce
+     */
+    void add(StatEvent event, DBCollection eventCollection, DBObject eventDoc, CounterUpdate... eventUpdates) {
+        boolean full;
+        synchronized(this) {
+            if(eventDoc != null) {
+                List<BufferedEvent> docs = events.get(eventCollection);
+                if(docs == null) {
+                    events.put(eventCollection, docs = new ArrayList<BufferedEvent>());
+                }
+                docs.add(new BufferedEvent(event, eventDoc, eventUpdates));
+            } else {
+                if(listener != null) {
+                    handled.add(event);
+                }
+                for(CounterUpdate update : eventUpdates) {
+                    merge(updates, update);
+                }
+            }
+            full = ++pending >= maxSize;
+        }
+        if(full) {
+            //Caller pays the flush: natural backpressure when mongo falls behind
+            flush();
+        }
+    }
+
+    /**
+     * Sends all the buffered inserts and merged upserts to mongo
+     */
+    void flush() {
+        synchronized(flushLock) {
+            Map<String,CounterUpdate> flushUpdates;
+            Map<DBCollection,List<BufferedEvent>> flushEvents;
+            List<StatEvent> flushHandled;
+            int flushPending;
+            synchronized(this) {
+                if(pending == 0) {
+                    return;
+                }
+                flushUpdates = updates;
+                flushEvents = events;
+                flushHandled = handled;
+                flushPending = pending;
+                updates = new LinkedHashMap<String,CounterUpdate>();
+                events = new LinkedHashMap<DBCollection,List<BufferedEvent>>();
+                handled = new ArrayList<StatEvent>();
+                pending = 0;
+            }
+            long t = System.currentTimeMillis();
+            int failed = 0;
+            for(Entry<DBCollection,List<BufferedEvent>> entry : flushEvents.entrySet()) {
+                List<BufferedEvent> inserted = new ArrayList<BufferedEvent>(entry.getValue().size());
+                List<BufferedEvent> unsaved = insert(entry.getKey(), entry.getValue(), inserted);
+                for(BufferedEvent buffered : inserted) {
+                    for(CounterUpdate update : buffered.updates) {
+                        merge(flushUpdates, update);
+                    }
+                    if(listener != null) {
+                        flushHandled.add(buffered.event);
+                    }
+                }
+                if(unsaved.isEmpty()) {
+                    continue;
+                }
+                synchronized(this) {
+                    List<BufferedEvent> docs = events.get(entry.getKey());
+                    if(docs == null) {
+                        events.put(entry.getKey(), docs = new ArrayList<BufferedEvent>());
+                    }
+                    docs.addAll(unsaved);
+                    pending += unsaved.size();
+                }
+                failed += unsaved.size();
+            }
+            if(listener != null) {
+                listener.counting(flushHandled);
+            }
+            for(CounterUpdate update : flushUpdates.values()) {
+                try {
+                    update.apply();
+                }catch(MongoException ex) {
+                    log.error("Write-behind update failed, requeuing "+update,ex);
+                    synchronized(this) {
+                        merge(updates, update);
+                        pending++;
+                    }
+                    failed++;
+                }
+            }
+            log.debug("Flushed {} events as {} upserts in {}ms",
+                    new Object[]{flushPending,flushUpdates.size(),System.currentTimeMillis()-t});
+            if(failed > 0) {
+                log.warn("{} write-behind inserts and updates requeued",failed);
+            }
+            if(listener != null) {
+                listener.flushed(flushHandled);
+            }
+        }
+    }
+
+    synchronized void start() {
+        if(running) {
+            return;
+        }
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running) {
+                    try {
+                        Thread.sleep(maxDelay);
+                    } catch (InterruptedException ex) {
+                        //Shutdown or forced flush
+                    }
+                    try {
+                        flush();
+                    }catch(RuntimeException ex) {
+                        log.error("Write-behind flush",ex);
+                    }
+                }
+            }
+        },"mongoste-writebehind");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Write-behind started: max delay {}ms max size {} events",maxDelay,maxSize);
+    }
+
+    /**
+     * Stops the background flusher and flushes any pending increment
+     */
+    void shutDown() {
+        Thread thread;
+        synchronized(this) {
+            running = false;
+            thread = flusher;
+            flusher = null;
+        }
+        if(thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(maxDelay * 2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        log.info("Write-behind stopped");
+    }
+
+    /**
+     * Inserts raw events documents. Their ids are set before the first try
+     * so documents inserted by a failed batch are not inserted again.
+     * Duplicated events are dropped.
+     * @param inserted Receives the inserted events
+     * @return events to requeue
+     */
+    private List<BufferedEvent> insert(DBCollection collection, List<BufferedEvent> buffered, List<BufferedEvent> inserted) {
+        List<DBObject> docs = new ArrayList<DBObject>(buffered.size());
+        for(BufferedEvent event : buffered) {
+            if(event.doc.get("_id") == null) {
+                event.doc.put("_id", ObjectId.get());
+            }
+            docs.add(event.doc);
+        }
+        try {
+            collection.insert(docs, WriteConcern.SAFE);
+            inserted.addAll(buffered);
+            return Collections.emptyList();
+        }catch(MongoException ex) {
+            if(!MongoStatsEngine.isDuplicateKey(ex)) {
+                log.error("Write-behind insert of "+docs.size()+" events failed, requeuing",ex);
+                return buffered;
+            }
+        }
+        List<BufferedEvent> unsaved = new ArrayList<BufferedEvent>();
+        for(BufferedEvent event : buffered) {
+            if(!unsaved.isEmpty()) {
+                unsaved.add(event);
+                continue;
+            }
+            if(collection.findOne(new BasicDBObject("_id", event.doc.get("_id")), new BasicDBObject("_id", 1)) != null) {
+                //Inserted by the failed batch
+                inserted.add(event);
+                continue;
+            }
+            try {
+                collection.insert(event.doc, WriteConcern.SAFE);
+                inserted.add(event);
+            }catch(MongoException ex) {
+                if(MongoStatsEngine.isDuplicateKey(ex)) {
+                    log.debug("Write-behind dropped duplicated event {}",event.doc);
+                } else {
+                    log.error("Write-behind insert failed, requeuing",ex);
+                    unsaved.add(event);
+                }
+            }
+        }
+        return unsaved;
+    }
+
+    private static void merge(Map<String,CounterUpdate> updates, CounterUpdate update) {
+        CounterUpdate current = updates.get(update.getKey());
+        if(current == null) {
+            updates.put(update.getKey(), update);
+        } else {
+            current.merge(update);
+        }
+    }
+}
@@ -44,6 +44,7 @@ public class StatEvent implements Serializable {
     private String action;
     private DateTime   date;    
     private Map<String,Object> metadata;
+    private String eventId;
 
     /**
      * @return the clientId
@@ -181,6 +182,21 @@ public class StatEvent implements Serializable {
         this.metadata = metadata;
     }
 
+    /**
+     * @return the client supplied event id, may be <code>null</code>
+     */
+    public String getEventId() {
+        return eventId;
+    }
+
+    /**
+     * @param eventId the client supplied event id, unique per client, used
+     * to detect retried events
+     */
+    public void setEventId(String eventId) {
+        this.eventId = eventId;
+    }
+
     public DateTime getYearMonthDate() {
         MutableDateTime dt = DateUtil.getDateTimeUTC().toMutableDateTime();
         dt.setDateTime(getYear(), getMonth(), 1 ,0, 0, 0, 0);
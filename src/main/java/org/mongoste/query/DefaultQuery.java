@@ -17,6 +17,7 @@ package org.mongoste.query;
 
 import org.mongoste.core.StatsEngine;
 import org.mongoste.core.StatsEngineException;
+import org.mongoste.core.TimeScope;
 import org.mongoste.model.StatAction;
 import org.mongoste.model.StatCounter;
 import static org.mongoste.query.QueryField.*;
@@ -38,7 +39,10 @@ public class DefaultQuery implements Query {
     private static Logger log = LoggerFactory.getLogger(DefaultQuery.class);
 
     private StatsEngine statsEngine;
+    private transient QueryCache queryCache;
     private Integer maxResults;
+    private String continuation;
+    private TimeScope groupBy;
     private Map<QueryField,QueryFilter> filterByMap;
     private boolean orderAscending;
 
@@ -47,7 +51,17 @@ public class DefaultQuery implements Query {
      * @param statsEngine
      */
     public DefaultQuery(StatsEngine statsEngine) {
+        this(statsEngine, null);
+    }
+
+    /**
+     *
+     * @param statsEngine
+     * @param queryCache Results cache, <code>null</code> to disable it
+     */
+    public DefaultQuery(StatsEngine statsEngine, QueryCache queryCache) {
         this.statsEngine = statsEngine;
+        this.queryCache = queryCache;
     }
 
     /**
@@ -91,6 +105,46 @@ public class DefaultQuery implements Query {
         return this;
     }
 
+    /**
+     * Continues a paged result after the last element of a previous page
+     * @param continuation Continuation token of the previous page,
+     * <code>null</code> to get the first page
+     * @return This query
+     * @see ResultPage#getContinuation()
+     */
+    @Override
+    public Query continueAfter(String continuation) {
+        this.continuation = continuation;
+        return this;
+    }
+
+    /**
+     * @return the continuation token or <code>null</code>
+     */
+    @Override
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * Groups the target stats counters by a time scope
+     * @param groupBy Time scope, <code>null</code> for monthly counters
+     * @return This query
+     */
+    @Override
+    public Query groupBy(TimeScope groupBy) {
+        this.groupBy = groupBy;
+        return this;
+    }
+
+    /**
+     * @return the target stats group by time scope or <code>null</code>
+     */
+    @Override
+    public TimeScope getGroupBy() {
+        return groupBy;
+    }
+
     /**
      * Sets a default equality filter to a single field
      * @param field Field to filter by
@@ -146,10 +200,27 @@ public class DefaultQuery implements Query {
      * @throws StatsEngineException
      */
     @Override
+    @SuppressWarnings("unchecked")
     public List<StatAction> getActions() throws StatsEngineException {
-        return statsEngine.getActions(this);
+        long generation = getCacheGeneration();
+        List<StatAction> result = (List<StatAction>) getCached("getActions");
+        if(result == null) {
+            result = putCached("getActions", generation, statsEngine.getActions(this));
+        }
+        return result;
     }
     
+    /**
+     * Streams the total performed actions in name order
+     * @param visitor Visitor of the actions
+     * @return continuation token or <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    @Override
+    public String visitActions(ResultVisitor<StatAction> visitor) throws StatsEngineException {
+        return statsEngine.visitActions(this, visitor);
+    }
+
     /**
      * Returns the top targets for a client, target type and action
      * @return list of <code>StatCounter</code> values
@@ -157,10 +228,16 @@ public class DefaultQuery implements Query {
      * @see StatCounter
      */
     @Override
+    @SuppressWarnings("unchecked")
     public List<StatCounter> getTopTargets() throws StatsEngineException {
         assertNotEmpty(CLIENT_ID,TARGET_TYPE,ACTION);
         log.debug("getTopTargets query {}",this);
-        return statsEngine.getTopTargets(this);
+        long generation = getCacheGeneration();
+        List<StatCounter> result = (List<StatCounter>) getCached("getTopTargets");
+        if(result == null) {
+            result = putCached("getTopTargets", generation, statsEngine.getTopTargets(this));
+        }
+        return result;
     }
 
     
@@ -170,11 +247,17 @@ public class DefaultQuery implements Query {
      * @throws StatsEngineException
      */
     @Override
+    @SuppressWarnings("unchecked")
     public Map<String,Long> getTargetActionCount() throws StatsEngineException {
         assertNotEmpty(CLIENT_ID,TARGET_TYPE);
         assertNotAllEmpty(TARGET,TARGET_OWNER);
         log.debug("getTargetActionCount query {}",this);
-        return statsEngine.getTargetActionCount(this);
+        long generation = getCacheGeneration();
+        Map<String,Long> result = (Map<String,Long>) getCached("getTargetActionCount");
+        if(result == null) {
+            result = putCached("getTargetActionCount", generation, statsEngine.getTargetActionCount(this));
+        }
+        return result;
     }
 
     /**
@@ -182,12 +265,75 @@ public class DefaultQuery implements Query {
      * @return list of action-> global count and per date stats
      * @throws StatsEngineException
      */
+    @SuppressWarnings("unchecked")
     public List<StatAction> getTargetStats() throws StatsEngineException {
         assertNotEmpty(CLIENT_ID,TARGET_TYPE,TARGET);
         log.debug("getTargetStats query {}",this);
-        return statsEngine.getTargetStats(this);
+        long generation = getCacheGeneration();
+        List<StatAction> result = (List<StatAction>) getCached("getTargetStats");
+        if(result == null) {
+            result = putCached("getTargetStats", generation, statsEngine.getTargetStats(this));
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the number of distinct values of a metadata key
+     * @param key Metadata key, or the engine key of the distinct targets
+     * @return distinct values count
+     * @throws StatsEngineException
+     */
+    @Override
+    public long getDistinctCount(String key) throws StatsEngineException {
+        assertNotEmpty(CLIENT_ID,TARGET_TYPE,ACTION);
+        log.debug("getDistinctCount {} query {}",key,this);
+        String method = "getDistinctCount:" + key;
+        long generation = getCacheGeneration();
+        Long result = (Long) getCached(method);
+        if(result == null) {
+            result = putCached(method, generation, statsEngine.getDistinctCount(this, key));
+        }
+        return result;
+    }
+
+
+    /**
+     * Streams the target stats per action and date
+     * @param visitor Visitor of the counters, named by action
+     * @return continuation token or <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    @Override
+    public String visitTargetStats(ResultVisitor<StatCounter> visitor) throws StatsEngineException {
+        assertNotEmpty(CLIENT_ID,TARGET_TYPE,TARGET);
+        log.debug("visitTargetStats query {}",this);
+        return statsEngine.visitTargetStats(this, visitor);
     }
 
+    /**
+     * Profiles a query method, checking its required fields
+     * @param method Query method to profile
+     * @return execution profile
+     * @throws StatsEngineException
+     */
+    @Override
+    public QueryProfile explain(QueryBatch.Method method) throws StatsEngineException {
+        switch(method) {
+            case TOP_TARGETS:
+                assertNotEmpty(CLIENT_ID,TARGET_TYPE,ACTION);
+                break;
+            case TARGET_ACTION_COUNT:
+                assertNotEmpty(CLIENT_ID,TARGET_TYPE);
+                assertNotAllEmpty(TARGET,TARGET_OWNER);
+                break;
+            case TARGET_STATS:
+                assertNotEmpty(CLIENT_ID,TARGET_TYPE,TARGET);
+                break;
+        }
+        log.debug("explain {} query {}",method.getName(),this);
+        return statsEngine.explain(this, method);
+    }
 
     /**
      * Checks if the provided fields has non-empty filters associated
@@ -220,6 +366,18 @@ public class DefaultQuery implements Query {
         }
     }
 
+    private Object getCached(String method) {
+        return queryCache == null ? null : queryCache.get(method, this);
+    }
+
+    private long getCacheGeneration() {
+        return queryCache == null ? -1 : queryCache.getGeneration(this);
+    }
+
+    private <T> T putCached(String method, long generation, T result) {
+        return queryCache == null || result == null ? result : queryCache.put(method, this, result, generation);
+    }
+
     private boolean isEmptyFieldFilter(QueryField field) {
         QueryFilter filter = getFilterByMap().get(field);
         return filter == null || filter.isEmpty();
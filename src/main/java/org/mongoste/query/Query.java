@@ -16,6 +16,7 @@
 package org.mongoste.query;
 
 import org.mongoste.core.StatsEngineException;
+import org.mongoste.core.TimeScope;
 import org.mongoste.model.StatAction;
 import org.mongoste.model.StatCounter;
 
@@ -55,7 +56,34 @@ public interface Query extends Serializable {
      * @return This query
      */
     Query limit(Integer maxResults);
+
+    /**
+     * Continues a paged result after the last element of a previous page
+     * @param continuation Continuation token of the previous page,
+     * <code>null</code> to get the first page
+     * @return This query
+     * @see ResultPage#getContinuation()
+     */
+    Query continueAfter(String continuation);
+
+    /**
+     * @return the continuation token or <code>null</code>
+     */
+    String getContinuation();
    
+    /**
+     * Groups the target stats counters by a time scope
+     * @param groupBy Time scope, finer ones need an engine precision keeping
+     * them. <code>null</code> for monthly counters
+     * @return This query
+     */
+    Query groupBy(TimeScope groupBy);
+
+    /**
+     * @return the target stats group by time scope or <code>null</code>
+     */
+    TimeScope getGroupBy();
+
     /**
      * Sets a default equality filter to a single field
      * @param field Field to filter by
@@ -96,7 +124,19 @@ public interface Query extends Serializable {
     List<StatAction> getActions() throws StatsEngineException;
 
     /**
-     * Returns the top targets for a client, target type and action
+     * Streams the total performed actions in name order. Starts after the
+     * continuation token, if any, and stops after <code>maxResults</code>
+     * actions, if set.
+     * @param visitor Visitor of the actions
+     * @return continuation token of the next action if the visitor stopped
+     * or the limit was reached, <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    String visitActions(ResultVisitor<StatAction> visitor) throws StatsEngineException;
+
+    /**
+     * Returns the top targets for a client, target type and action. Engines
+     * supporting pagination return a {@link ResultPage}.
      * @return list of <code>StatCounter</code> values
      * @throws StatsEngineException
      * @see StatCounter
@@ -117,4 +157,33 @@ public interface Query extends Serializable {
      */
     List<StatAction> getTargetStats() throws StatsEngineException;
 
+    /**
+     * Returns the number of distinct values of a metadata key for the
+     * client, target type, action, optional target/s and date range
+     * @param key Metadata key, or the engine key of the distinct targets
+     * @return distinct values count, estimated or exact by engine setup
+     * @throws StatsEngineException
+     */
+    long getDistinctCount(String key) throws StatsEngineException;
+
+    /**
+     * Streams the target stats per action and date, in action and date
+     * order. Starts after the continuation token, if any, and stops after
+     * <code>maxResults</code> counters, if set.
+     * @param visitor Visitor of the counters, named by action
+     * @return continuation token of the next counter if the visitor stopped
+     * or the limit was reached, <code>null</code> if there are no more
+     * @throws StatsEngineException
+     */
+    String visitTargetStats(ResultVisitor<StatCounter> visitor) throws StatsEngineException;
+
+    /**
+     * Runs a query method bypassing the results cache and profiles its
+     * execution
+     * @param method Query method to profile
+     * @return execution profile
+     * @throws StatsEngineException
+     */
+    QueryProfile explain(QueryBatch.Method method) throws StatsEngineException;
+
 }
\ No newline at end of file
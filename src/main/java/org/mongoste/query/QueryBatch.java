@@ -0,0 +1,197 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import org.mongoste.core.StatsEngine;
+import org.mongoste.core.StatsEngineException;
+import org.mongoste.model.StatAction;
+import org.mongoste.model.StatCounter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of queries executed together by {@link StatsEngine#executeBatch(QueryBatch)},
+ * for example all the queries of a dashboard page.
+ * <p>
+ * Each added query returns a {@link Result} holding its value or error once
+ * the batch is executed.
+ * @author mrmx
+ */
+public class QueryBatch {
+
+    /**
+     * Query methods of a batch
+     */
+    public static enum Method {
+        ACTIONS("getActions"),
+        TOP_TARGETS("getTopTargets"),
+        TARGET_ACTION_COUNT("getTargetActionCount"),
+        TARGET_STATS("getTargetStats");
+
+        private final String name;
+
+        Method(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the {@link Query} method name
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Result of a batch query
+     * @param <T> Result type
+     */
+    public static class Result<T> {
+        private final Method method;
+        private final Query query;
+        private volatile T value;
+        private volatile StatsEngineException error;
+        private volatile boolean done;
+
+        Result(Method method, Query query) {
+            if(query == null) {
+                throw new IllegalArgumentException("null query");
+            }
+            this.method = method;
+            this.query = query;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        public Query getQuery() {
+            return query;
+        }
+
+        /**
+         * Gets a key of the method and query, equal for the queries with the
+         * same results
+         * @param excluded Fields left out of the key
+         * @return result key
+         */
+        public String getKey(QueryField ... excluded) {
+            return QueryCache.createKey(method.getName(), query, excluded);
+        }
+
+        /**
+         * Runs the query
+         * @return query result
+         * @throws StatsEngineException
+         */
+        public Object execute() throws StatsEngineException {
+            switch(method) {
+                case ACTIONS:
+                    return query.getActions();
+                case TOP_TARGETS:
+                    return query.getTopTargets();
+                case TARGET_ACTION_COUNT:
+                    return query.getTargetActionCount();
+                default:
+                    return query.getTargetStats();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void complete(Object value) {
+            this.value = (T) value;
+            this.done = true;
+        }
+
+        public void fail(StatsEngineException error) {
+            this.error = error;
+            this.done = true;
+        }
+
+        /**
+         * @return <code>true</code> if the batch set the value or the error
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return the query error or <code>null</code>
+         */
+        public StatsEngineException getError() {
+            return error;
+        }
+
+        /**
+         * Gets the query value. Identical queries of a batch share the same
+         * value instance.
+         * @return query value
+         * @throws StatsEngineException the query error
+         * @throws IllegalStateException if the batch was not executed
+         */
+        public T get() throws StatsEngineException {
+            if(!done) {
+                throw new IllegalStateException("Batch not executed");
+            }
+            if(error != null) {
+                throw error;
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return method.getName() + " " + query;
+        }
+    }
+
+    private final List<Result<?>> results = new ArrayList<Result<?>>();
+
+    public Result<List<StatAction>> getActions(Query query) {
+        return add(new Result<List<StatAction>>(Method.ACTIONS, query));
+    }
+
+    public Result<List<StatCounter>> getTopTargets(Query query) {
+        return add(new Result<List<StatCounter>>(Method.TOP_TARGETS, query));
+    }
+
+    public Result<Map<String,Long>> getTargetActionCount(Query query) {
+        return add(new Result<Map<String,Long>>(Method.TARGET_ACTION_COUNT, query));
+    }
+
+    public Result<List<StatAction>> getTargetStats(Query query) {
+        return add(new Result<List<StatAction>>(Method.TARGET_STATS, query));
+    }
+
+    /**
+     * @return the batch results, in adding order
+     */
+    public List<Result<?>> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    private <T> Result<T> add(Result<T> result) {
+        results.add(result);
+        return result;
+    }
+}
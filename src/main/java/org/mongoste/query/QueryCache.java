@@ -0,0 +1,437 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import org.mongoste.model.StatEvent;
+import org.mongoste.util.DateUtil;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of query results, keyed by query method and normalized
+ * filters.
+ * <p>
+ * Results of closed periods (<code>DATE_TO</code> before the current month)
+ * are kept until evicted, unless disabled for engines writing the counts
+ * after handling the events. Other results expire after <code>ttl</code>
+ * milliseconds. Handled events invalidate the results of their client and
+ * target that may include the event month. Results read before an
+ * invalidation of their client are not cached: see
+ * {@link #getGeneration(Query)}. Cached lists and maps are unmodifiable;
+ * result pages are copied.
+ * @author mrmx
+ */
+public class QueryCache {
+    private static final String ANY_CLIENT = "";
+    private static final int GENERATION_STRIPES = 64;
+
+    private final int maxSize;
+    private final long ttl;
+    private final Map<String,Entry> entries;
+    //Cache keys by client id, ANY_CLIENT for queries without client filter
+    private final Map<String,Set<String>> clientKeys = new HashMap<String,Set<String>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    //Invalidations by client hash, the last one for queries without client filter
+    private final long[] generations = new long[GENERATION_STRIPES + 1];
+    private volatile boolean closedPeriodsKept = true;
+
+    private static class Entry {
+        final String key;
+        final Object result;
+        final long expires;
+        final String clientId;
+        final Set<String> targets;
+        final Long dateTo;
+
+        Entry(String key, Object result, long expires, String clientId, Set<String> targets, Long dateTo) {
+            this.key = key;
+            this.result = result;
+            this.expires = expires;
+            this.clientId = clientId;
+            this.targets = targets;
+            this.dateTo = dateTo;
+        }
+    }
+
+    /**
+     * @param maxSize Max cached results
+     * @param ttl Milliseconds results of open periods are kept
+     */
+    public QueryCache(int maxSize, long ttl) {
+        if(maxSize <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxSize and ttl must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                if(size() <= QueryCache.this.maxSize) {
+                    return false;
+                }
+                unindex(eldest.getValue());
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached result
+     * @param method Query method
+     * @param query Query
+     * @return cached result or <code>null</code>
+     */
+    public Object get(String method, Query query) {
+        String key = createKey(method, query);
+        synchronized(this) {
+            Entry entry = entries.get(key);
+            if(entry != null) {
+                if(entry.expires > currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    if(entry.result instanceof ResultPage) {
+                        return copy((ResultPage<?>) entry.result);
+                    }
+                    return entry.result;
+                }
+                remove(entry);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Gets the invalidations generation of the query clients, to be read
+     * before running the query
+     * @param query Query
+     * @return generation to {@link #put(String, Query, Object, long)} its result
+     */
+    public synchronized long getGeneration(Query query) {
+        return generations[getStripe(getEqualValue(query.getFilter(QueryField.CLIENT_ID)))];
+    }
+
+    /**
+     * Caches a query result
+     * @param method Query method
+     * @param query Query
+     * @param result Result to cache
+     * @return the result, unmodifiable if it is a list or a map other than
+     * a result page
+     */
+    public <T> T put(String method, Query query, T result) {
+        return put(method, query, result, -1);
+    }
+
+    /**
+     * Caches a query result unless its clients results were invalidated
+     * since the query was run
+     * @param method Query method
+     * @param query Query
+     * @param result Result to cache
+     * @param generation {@link #getGeneration(Query)} before running the
+     * query, -1 to cache it anyway
+     * @return the result, unmodifiable if it is a list or a map other than
+     * a result page
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T put(String method, Query query, T result, long generation) {
+        Object cached = result;
+        if(result instanceof ResultPage) {
+            cached = copy((ResultPage<?>) result);
+        } else if(result instanceof List) {
+            cached = result = (T) Collections.unmodifiableList((List<?>) result);
+        } else if(result instanceof Map) {
+            cached = result = (T) Collections.unmodifiableMap((Map<?,?>) result);
+        }
+        String key = createKey(method, query);
+        String clientId = getEqualValue(query.getFilter(QueryField.CLIENT_ID));
+        Set<String> targets = getTargets(query.getFilter(QueryField.TARGET));
+        DateTime dateTo = getDateTo(query);
+        long now = currentTimeMillis();
+        long expires = now + ttl;
+        if(closedPeriodsKept && dateTo != null && dateTo.isBefore(getCurrentMonth(now))) {
+            expires = Long.MAX_VALUE;
+        }
+        Entry entry = new Entry(key, cached, expires, clientId == null ? ANY_CLIENT : clientId,
+                targets, dateTo == null ? null : dateTo.getMillis());
+        synchronized(this) {
+            if(generation != -1 && generation != generations[getStripe(clientId)]) {
+                return result;
+            }
+            Entry previous = entries.put(key, entry);
+            if(previous != null) {
+                unindex(previous);
+            }
+            Set<String> keys = clientKeys.get(entry.clientId);
+            if(keys == null) {
+                keys = new HashSet<String>();
+                clientKeys.put(entry.clientId, keys);
+            }
+            keys.add(key);
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the results of the event client and target that may include
+     * the event month
+     * @param event Handled event
+     */
+    public void invalidate(StatEvent event) {
+        long month = event.getYearMonthDate().getMillis();
+        synchronized(this) {
+            nextGeneration(event.getClientId());
+            invalidate(clientKeys.get(event.getClientId()), event.getTarget(), month);
+            invalidate(clientKeys.get(ANY_CLIENT), event.getTarget(), month);
+        }
+    }
+
+    /**
+     * Invalidates all the results of a client
+     * @param clientId Client id
+     */
+    public synchronized void invalidate(String clientId) {
+        nextGeneration(clientId);
+        invalidate(clientKeys.get(clientId), null, null);
+        invalidate(clientKeys.get(ANY_CLIENT), null, null);
+    }
+
+    /**
+     * Removes all the cached results
+     */
+    public synchronized void clear() {
+        for(int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        clientKeys.clear();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param closedPeriodsKept <code>false</code> to expire the results of
+     * closed periods like the rest, for counts written after the events
+     * invalidate them
+     */
+    public void setClosedPeriodsKept(boolean closedPeriodsKept) {
+        this.closedPeriodsKept = closedPeriodsKept;
+    }
+
+    public boolean isClosedPeriodsKept() {
+        return closedPeriodsKept;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return results removed to keep the cache bounded
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return results removed by handled events or explicitly
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[size:"+getSize()+",hits:"+getHits()+",misses:"+getMisses()
+                +",evictions:"+getEvictions()+",invalidations:"+getInvalidations()+"]";
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static <T> ResultPage<T> copy(ResultPage<T> page) {
+        return new ResultPage<T>(page, page.getContinuation());
+    }
+
+    private void nextGeneration(String clientId) {
+        generations[getStripe(clientId)]++;
+        generations[GENERATION_STRIPES]++;
+    }
+
+    private static int getStripe(String clientId) {
+        return clientId == null ? GENERATION_STRIPES : (clientId.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private void invalidate(Set<String> keys, String target, Long month) {
+        if(keys == null) {
+            return;
+        }
+        List<Entry> stale = new ArrayList<Entry>();
+        for(String key : keys) {
+            Entry entry = entries.get(key);
+            if(entry != null
+               && (target == null || entry.targets == null || entry.targets.contains(target))
+               && (month == null || entry.dateTo == null || month <= entry.dateTo)) {
+                stale.add(entry);
+            }
+        }
+        for(Entry entry : stale) {
+            remove(entry);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        unindex(entry);
+    }
+
+    private void unindex(Entry entry) {
+        Set<String> keys = clientKeys.get(entry.clientId);
+        if(keys != null) {
+            keys.remove(entry.key);
+            if(keys.isEmpty()) {
+                clientKeys.remove(entry.clientId);
+            }
+        }
+    }
+
+    private DateTime getCurrentMonth(long now) {
+        DateTime date = new DateTime(now, DateTimeZone.UTC);
+        return DateUtil.buildUTCDate(date.getYear(), date.getMonthOfYear(), 1);
+    }
+
+    private static DateTime getDateTo(Query query) {
+        QueryFilter filter = query.getFilter(QueryField.DATE_TO);
+        return filter == null ? null : filter.getDateTimeValue();
+    }
+
+    private static String getEqualValue(QueryFilter filter) {
+        if(filter == null || filter.isEmpty() || filter.getOperation() != QueryOp.EQ) {
+            return null;
+        }
+        return filter.getStringValue();
+    }
+
+    /**
+     * @return filtered targets or <code>null</code> for any target
+     */
+    private static Set<String> getTargets(QueryFilter filter) {
+        if(filter == null || filter.isEmpty()) {
+            return null;
+        }
+        Object value = filter.getValue();
+        if(value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        if(value instanceof Collection) {
+            if(filter.getOperation() != QueryOp.IN && filter.getOperation() != QueryOp.EQ) {
+                return null;
+            }
+            Set<String> targets = new HashSet<String>();
+            for(Object target : (Collection<?>) value) {
+                targets.add(String.valueOf(target));
+            }
+            return targets;
+        }
+        String target = getEqualValue(filter);
+        return target == null ? null : Collections.singleton(target);
+    }
+
+    /**
+     * Creates a key independent of the filters order and of the order of
+     * their collection values
+     */
+    static String createKey(String method, Query query, QueryField ... excluded) {
+        StringBuilder sb = new StringBuilder(method);
+        List<QueryField> excludedFields = Arrays.asList(excluded);
+        for(QueryField field : QueryField.values()) {
+            QueryFilter filter = query.getFilter(field);
+            if(filter == null || excludedFields.contains(field)) {
+                continue;
+            }
+            sb.append('\u0000').append(field).append('=').append(filter.getOperation()).append(':');
+            sb.append(normalize(filter.getValue()));
+        }
+        sb.append('\u0000').append(query.getMaxResults()).append('\u0000').append(query.isOrderAscending());
+        sb.append('\u0000').append(query.getContinuation());
+        sb.append('\u0000').append(query.getGroupBy());
+        return sb.toString();
+    }
+
+    private static String normalize(Object value) {
+        if(value instanceof DateTime) {
+            return String.valueOf(((DateTime) value).getMillis());
+        }
+        if(value instanceof Date) {
+            return String.valueOf(((Date) value).getTime());
+        }
+        if(value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        if(value instanceof Collection) {
+            List<String> values = new ArrayList<String>();
+            for(Object item : (Collection<?>) value) {
+                values.add(normalize(item));
+            }
+            Collections.sort(values);
+            StringBuilder sb = new StringBuilder("[");
+            for(Iterator<String> it = values.iterator(); it.hasNext();) {
+                sb.append(it.next());
+                if(it.hasNext()) {
+                    sb.append('\u0001');
+                }
+            }
+            return sb.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+}
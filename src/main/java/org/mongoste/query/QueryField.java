@@ -27,5 +27,7 @@ public enum QueryField {
     TARGET_TYPE,
     TARGET_OWNER,
     TARGET_TAGS,
-    DATE_FROM,DATE_TO
+    DATE_FROM,DATE_TO,
+    /** Count threshold of the counted results, with a range operation */
+    COUNT
 }
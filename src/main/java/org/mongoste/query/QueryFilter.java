@@ -186,6 +186,44 @@ public class QueryFilter {
         return false;
     }
 
+    /**
+     * Checks a count against this filter operation and value
+     * @param count Count to check
+     * @return <code>true</code> if the count passes the filter or the
+     * filter value is empty
+     */
+    public boolean matches(long count) {
+        if(operation == QueryOp.IN) {
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value : null;
+            if(values == null || values.isEmpty()) {
+                return true;
+            }
+            for(Object item : values) {
+                if(new QueryFilter(QueryOp.EQ, item).matches(count)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Long threshold = getLongValue();
+        if(threshold == null) {
+            return true;
+        }
+        switch(operation) {
+            case GT:
+                return count > threshold;
+            case GTE:
+                return count >= threshold;
+            case LT:
+                return count < threshold;
+            case LTE:
+                return count <= threshold;
+            case EQ:
+            default:
+                return count == threshold;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getClass().getSimpleName());
@@ -0,0 +1,200 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Execution profile of a query, returned by {@link Query#explain(QueryBatch.Method)}
+ * <p>
+ * Holds the total time of the query and the profile of each store scan it
+ * made: query document, chosen index, scanned and returned documents,
+ * server time and transferred bytes. The client time is the part of the
+ * total not spent by the server: transfer and client side aggregation.
+ * @author mrmx
+ */
+public class QueryProfile implements Serializable {
+    private final String method;
+    private final List<Scan> scans = new ArrayList<Scan>();
+    private long totalMillis;
+    private int results;
+
+    /**
+     * Profile of a store scan
+     */
+    public static class Scan implements Serializable {
+        private final String collection;
+        private final String query;
+        private final String index;
+        private final long scanned;
+        private final long returned;
+        private final long serverMillis;
+        private final long bytes;
+
+        /**
+         * @param collection Scanned collection
+         * @param query Query document
+         * @param index Chosen index or cursor type
+         * @param scanned Documents or index entries scanned by the server
+         * @param returned Documents returned to the client
+         * @param serverMillis Server execution time
+         * @param bytes Bytes of the returned documents
+         */
+        public Scan(String collection, String query, String index, long scanned, long returned, long serverMillis, long bytes) {
+            this.collection = collection;
+            this.query = query;
+            this.index = index;
+            this.scanned = scanned;
+            this.returned = returned;
+            this.serverMillis = serverMillis;
+            this.bytes = bytes;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public long getScanned() {
+            return scanned;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+
+        public long getServerMillis() {
+            return serverMillis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return collection + " " + query + " index: " + index + " scanned: " + scanned
+                    + " returned: " + returned + " server: " + serverMillis + "ms bytes: " + bytes;
+        }
+    }
+
+    /**
+     * @param method Profiled query method
+     */
+    public QueryProfile(String method) {
+        this.method = method;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void addScan(Scan scan) {
+        scans.add(scan);
+    }
+
+    /**
+     * @return the store scans, in execution order
+     */
+    public List<Scan> getScans() {
+        return Collections.unmodifiableList(scans);
+    }
+
+    /**
+     * @return the wall time of the query
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    /**
+     * @return number of results returned to the caller
+     */
+    public int getResults() {
+        return results;
+    }
+
+    public void setResults(int results) {
+        this.results = results;
+    }
+
+    public long getServerMillis() {
+        long millis = 0;
+        for(Scan scan : scans) {
+            millis += scan.getServerMillis();
+        }
+        return millis;
+    }
+
+    /**
+     * @return the total time not spent by the server
+     */
+    public long getClientMillis() {
+        return Math.max(0, totalMillis - getServerMillis());
+    }
+
+    public long getScanned() {
+        long scanned = 0;
+        for(Scan scan : scans) {
+            scanned += scan.getScanned();
+        }
+        return scanned;
+    }
+
+    public long getReturned() {
+        long returned = 0;
+        for(Scan scan : scans) {
+            returned += scan.getReturned();
+        }
+        return returned;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for(Scan scan : scans) {
+            bytes += scan.getBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getSimpleName());
+        sb.append("{method=").append(method);
+        sb.append(" total=").append(totalMillis).append("ms");
+        sb.append(" server=").append(getServerMillis()).append("ms");
+        sb.append(" client=").append(getClientMillis()).append("ms");
+        sb.append(" results=").append(results);
+        for(Scan scan : scans) {
+            sb.append("\n ").append(scan);
+        }
+        return sb.append('}').toString();
+    }
+}
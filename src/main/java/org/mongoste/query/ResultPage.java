@@ -0,0 +1,58 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A page of query results with the continuation token of the next page
+ * @author mrmx
+ * @see Query#continueAfter(String)
+ */
+public class ResultPage<T> extends ArrayList<T> {
+    private String continuation;
+
+    public ResultPage() {
+    }
+
+    public ResultPage(Collection<? extends T> results, String continuation) {
+        super(results);
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return the opaque token to get the next page or <code>null</code> if
+     * this is the last one
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * @param continuation the continuation token of the next page
+     */
+    public void setContinuation(String continuation) {
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return <code>true</code> if there are more results
+     */
+    public boolean hasMore() {
+        return continuation != null;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import org.mongoste.core.StatsEngineException;
+
+/**
+ * Callback receiving streamed query results one by one, so they are
+ * processed without materializing the whole result
+ * @author mrmx
+ */
+public interface ResultVisitor<T> {
+
+    /**
+     * Visits a result
+     * @param result Result to process
+     * @return <code>true</code> to continue, <code>false</code> to stop
+     * @throws StatsEngineException
+     */
+    boolean visit(T result) throws StatsEngineException;
+}
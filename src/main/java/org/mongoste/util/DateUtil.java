@@ -18,6 +18,8 @@ package org.mongoste.util;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.MutableDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 import java.util.Date;
 import java.text.SimpleDateFormat;
@@ -27,10 +29,21 @@ import java.text.SimpleDateFormat;
  * @author mrmx
  */
 public class DateUtil {
+    /** @deprecated not thread safe, use {@link #ISO8601_FORMATTER} */
+    @Deprecated
     public static final SimpleDateFormat FORMAT_ISO8601     = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    /** @deprecated not thread safe, use {@link #YY_MM_DD_FORMATTER} */
+    @Deprecated
     public static final SimpleDateFormat FORMAT_YY_MM_DD    = new SimpleDateFormat("yyyy-M-dd");
+    /** @deprecated not thread safe, use {@link #YY_MM_DD_HH_FORMATTER} */
+    @Deprecated
     public static final SimpleDateFormat FORMAT_YY_MM_DD_HH = new SimpleDateFormat("yyyy-M-dd HH");
 
+    //Immutable formatters, safe to share between threads
+    public static final DateTimeFormatter ISO8601_FORMATTER     = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ssZ");
+    public static final DateTimeFormatter YY_MM_DD_FORMATTER    = DateTimeFormat.forPattern("yyyy-M-dd");
+    public static final DateTimeFormatter YY_MM_DD_HH_FORMATTER = DateTimeFormat.forPattern("yyyy-M-dd HH");
+
     /**
      * Get DateTime with the current system date in UTC time zone
      * @param trimTime if <code>true</code> then trim time data (zeroing it)
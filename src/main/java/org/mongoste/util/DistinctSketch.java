@@ -0,0 +1,63 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+/**
+ * Mergeable set summary counting distinct values.
+ * <p>
+ * Merging is a union: it is idempotent, so a sketch can be merged into a
+ * stored one any number of times.
+ * @author mrmx
+ */
+public abstract class DistinctSketch extends Sketch {
+
+    /**
+     * Adds a value
+     * @param value Value to add
+     * @return <code>false</code> if the sketch can not hold the value
+     */
+    public abstract boolean add(String value);
+
+    /**
+     * Adds a value: repeated occurrences do not count
+     */
+    @Override
+    public boolean add(String value, long count) {
+        return add(value);
+    }
+
+    /**
+     * @return the number of distinct values added, exact or estimated
+     */
+    public abstract long cardinality();
+
+    @Override
+    public abstract DistinctSketch newEmpty();
+
+    /**
+     * Reads a serialized distinct sketch
+     * @param bytes Sketch bytes
+     * @return the sketch
+     * @throws IllegalArgumentException if the bytes are not a distinct sketch
+     */
+    public static DistinctSketch fromBytes(byte[] bytes) {
+        Sketch sketch = Sketch.fromBytes(bytes);
+        if(!(sketch instanceof DistinctSketch)) {
+            throw new IllegalArgumentException("Not a distinct sketch " + sketch);
+        }
+        return (DistinctSketch) sketch;
+    }
+}
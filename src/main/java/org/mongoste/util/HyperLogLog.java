@@ -0,0 +1,124 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+/**
+ * HyperLogLog distinct values estimator with dense byte registers.
+ * <p>
+ * Fixed size of <code>2^precision</code> bytes with a standard error of
+ * about <code>1.04 / sqrt(2^precision)</code>. Small cardinalities use
+ * linear counting.
+ * @author mrmx
+ */
+public class HyperLogLog extends DistinctSketch {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision Index bits, between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        if(precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    @Override
+    public boolean add(String value) {
+        long hash = hash64(value);
+        int index = (int) (hash >>> (64 - precision));
+        //Rank of the first set bit of the remaining bits
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if(registers[index] < rank) {
+            registers[index] = rank;
+        }
+        return true;
+    }
+
+    @Override
+    public void merge(Sketch other) {
+        if(!(other instanceof HyperLogLog) || ((HyperLogLog) other).precision != precision) {
+            throw new IllegalArgumentException("Incompatible sketch " + other);
+        }
+        byte[] otherRegisters = ((HyperLogLog) other).registers;
+        for(int i = 0; i < registers.length; i++) {
+            if(registers[i] < otherRegisters[i]) {
+                registers[i] = otherRegisters[i];
+            }
+        }
+    }
+
+    @Override
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for(byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if(register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if(estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    @Override
+    public byte[] toBytes() {
+        byte[] bytes = new byte[registers.length + 2];
+        bytes[0] = TYPE_HLL;
+        bytes[1] = (byte) precision;
+        System.arraycopy(registers, 0, bytes, 2, registers.length);
+        return bytes;
+    }
+
+    @Override
+    public HyperLogLog newEmpty() {
+        return new HyperLogLog(precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    static HyperLogLog read(byte[] bytes) {
+        if(bytes.length < 2) {
+            throw new IllegalArgumentException("Truncated HyperLogLog");
+        }
+        HyperLogLog sketch = new HyperLogLog(bytes[1]);
+        if(bytes.length != sketch.registers.length + 2) {
+            throw new IllegalArgumentException("Truncated HyperLogLog");
+        }
+        System.arraycopy(bytes, 2, sketch.registers, 0, sketch.registers.length);
+        return sketch;
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLog[" + precision + "]";
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Exact compressed set of 32 bit values, such as IPv4 addresses.
+ * <p>
+ * Values are split by their high 16 bits into containers holding the low
+ * 16 bits: a sorted array while they are at most 4096, a 8KB bitmap when
+ * denser.
+ * @author mrmx
+ */
+public class RoaringBitmap extends DistinctSketch {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+    private static final byte KIND_ARRAY = 0;
+    private static final byte KIND_BITMAP = 1;
+
+    private final TreeMap<Integer,Container> containers = new TreeMap<Integer,Container>();
+
+    /**
+     * Set of the low 16 bits of the values sharing the high ones
+     */
+    private static abstract class Container {
+        abstract Container add(char low);
+        abstract boolean contains(char low);
+        abstract int cardinality();
+        abstract Container or(Container other);
+        abstract void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        Container add(char low) {
+            int position = Arrays.binarySearch(values, 0, size, low);
+            if(position >= 0) {
+                return this;
+            }
+            if(size == ARRAY_MAX) {
+                return toBitmap().add(low);
+            }
+            position = -position - 1;
+            if(size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, size * 2)));
+            }
+            System.arraycopy(values, position, values, position + 1, size - position);
+            values[position] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        Container or(Container other) {
+            if(other instanceof BitmapContainer) {
+                BitmapContainer bitmap = (BitmapContainer) other;
+                return new BitmapContainer(bitmap.words.clone(), bitmap.cardinality).or(this);
+            }
+            Container result = this;
+            ArrayContainer array = (ArrayContainer) other;
+            for(int i = 0; i < array.size; i++) {
+                result = result.add(array.values[i]);
+            }
+            return result;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer(new long[BITMAP_WORDS], 0);
+            for(int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(KIND_ARRAY);
+            out.writeInt(size);
+            for(int i = 0; i < size; i++) {
+                out.writeChar(values[i]);
+            }
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char low) {
+            long bit = 1L << low;
+            if((words[low >>> 6] & bit) == 0) {
+                words[low >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container or(Container other) {
+            if(other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for(int i = 0; i < array.size; i++) {
+                    add(array.values[i]);
+                }
+                return this;
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            cardinality = 0;
+            for(int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] |= otherWords[i];
+                cardinality += Long.bitCount(words[i]);
+            }
+            return this;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(KIND_BITMAP);
+            out.writeInt(cardinality);
+            for(long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Adds an IPv4 address
+     * @param value Dotted IPv4 address
+     * @return <code>false</code> if the value is not an IPv4 address
+     */
+    @Override
+    public boolean add(String value) {
+        Integer address = parseIPv4(value);
+        if(address == null) {
+            return false;
+        }
+        add(address);
+        return true;
+    }
+
+    public void add(int value) {
+        Integer high = value >>> 16;
+        Container container = containers.get(high);
+        if(container == null) {
+            container = new ArrayContainer(new char[4], 0);
+        }
+        containers.put(high, container.add((char) value));
+    }
+
+    public boolean contains(int value) {
+        Container container = containers.get(value >>> 16);
+        return container != null && container.contains((char) value);
+    }
+
+    @Override
+    public void merge(Sketch other) {
+        if(!(other instanceof RoaringBitmap)) {
+            throw new IllegalArgumentException("Incompatible sketch " + other);
+        }
+        for(Map.Entry<Integer,Container> entry : ((RoaringBitmap) other).containers.entrySet()) {
+            Container container = containers.get(entry.getKey());
+            //Copies the other container, left unchanged
+            Container copy = new ArrayContainer(new char[4], 0).or(entry.getValue());
+            containers.put(entry.getKey(), container == null ? copy : container.or(copy));
+        }
+    }
+
+    @Override
+    public long cardinality() {
+        long cardinality = 0;
+        for(Container container : containers.values()) {
+            cardinality += container.cardinality();
+        }
+        return cardinality;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TYPE_BITMAP);
+            out.writeInt(containers.size());
+            for(Map.Entry<Integer,Container> entry : containers.entrySet()) {
+                out.writeChar(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.flush();
+        }catch(IOException ex) {
+            throw new IllegalStateException("Writing bitmap", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public RoaringBitmap newEmpty() {
+        return new RoaringBitmap();
+    }
+
+    static RoaringBitmap read(byte[] bytes) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            in.readByte();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                int high = in.readChar();
+                byte kind = in.readByte();
+                int cardinality = in.readInt();
+                if(kind == KIND_ARRAY) {
+                    if(cardinality > ARRAY_MAX) {
+                        throw new IllegalArgumentException("Invalid bitmap container");
+                    }
+                    char[] values = new char[Math.max(4, cardinality)];
+                    for(int j = 0; j < cardinality; j++) {
+                        values[j] = in.readChar();
+                    }
+                    bitmap.containers.put(high, new ArrayContainer(values, cardinality));
+                } else {
+                    long[] words = new long[BITMAP_WORDS];
+                    for(int j = 0; j < BITMAP_WORDS; j++) {
+                        words[j] = in.readLong();
+                    }
+                    bitmap.containers.put(high, new BitmapContainer(words, cardinality));
+                }
+            }
+        }catch(IOException ex) {
+            throw new IllegalArgumentException("Truncated bitmap", ex);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the address as a 32 bit value or <code>null</code> if the value
+     * is not a dotted IPv4 address
+     */
+    public static Integer parseIPv4(String value) {
+        if(value == null) {
+            return null;
+        }
+        String [] parts = value.trim().split("\\.");
+        if(parts.length != 4) {
+            return null;
+        }
+        int address = 0;
+        try {
+            for(String part : parts) {
+                int octet = Integer.parseInt(part);
+                if(octet < 0 || octet > 255) {
+                    return null;
+                }
+                address = (address << 8) | octet;
+            }
+        }catch(NumberFormatException ex) {
+            return null;
+        }
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return "RoaringBitmap[" + containers.size() + " containers]";
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+/**
+ * Mergeable fixed size summary of a stream of values, stored serialized.
+ * <p>
+ * The first serialized byte tells the sketch type.
+ * @author mrmx
+ */
+public abstract class Sketch {
+    protected static final byte TYPE_HLL    = 'H';
+    protected static final byte TYPE_BITMAP = 'R';
+    protected static final byte TYPE_TOPK   = 'K';
+
+    /**
+     * Adds occurrences of a value
+     * @param value Value to add
+     * @param count Occurrences of the value
+     * @return <code>false</code> if the sketch can not hold the value
+     */
+    public abstract boolean add(String value, long count);
+
+    /**
+     * Adds the values of another sketch of the same type and size
+     * @param other Sketch to merge
+     * @throws IllegalArgumentException if the sketches are not compatible
+     */
+    public abstract void merge(Sketch other);
+
+    /**
+     * @return serialized sketch, read by {@link #fromBytes(byte[])}
+     */
+    public abstract byte[] toBytes();
+
+    /**
+     * Creates an empty sketch of the same type and size
+     */
+    public abstract Sketch newEmpty();
+
+    /**
+     * Reads a serialized sketch
+     * @param bytes Sketch bytes
+     * @return the sketch
+     * @throws IllegalArgumentException if the bytes are not a sketch
+     */
+    public static Sketch fromBytes(byte[] bytes) {
+        if(bytes == null || bytes.length == 0) {
+            throw new IllegalArgumentException("Empty sketch");
+        }
+        switch(bytes[0]) {
+            case TYPE_HLL:
+                return HyperLogLog.read(bytes);
+            case TYPE_BITMAP:
+                return RoaringBitmap.read(bytes);
+            case TYPE_TOPK:
+                return TopKSketch.read(bytes);
+            default:
+                throw new IllegalArgumentException("Unknown sketch type " + bytes[0]);
+        }
+    }
+
+    /**
+     * 64 bit hash of a string: FNV-1a with the murmur3 finalizer
+     */
+    protected static long hash64(String value) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Count-Min sketch with a bounded set of heavy hitter candidates.
+ * <p>
+ * Counts are overestimated by at most <code>e / width</code> of the total
+ * with probability <code>1 - exp(-depth)</code>. The candidates are the
+ * values with the highest estimates seen when they were added, at most
+ * <code>capacity</code>. Merging adds the counts and re-ranks the union of
+ * the candidates, so merged daily sketches rank any range of days.
+ * @author mrmx
+ */
+public class TopKSketch extends Sketch {
+    private final int width;
+    private final int depth;
+    private final int capacity;
+    private final long[] counts;
+    private final Map<String,Long> candidates = new HashMap<String,Long>();
+
+    /**
+     * @param width Counters per row
+     * @param depth Rows, one hash function each
+     * @param capacity Max heavy hitter candidates
+     */
+    public TopKSketch(int width, int depth, int capacity) {
+        if(width <= 0 || depth <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("width, depth and capacity must be positive");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.capacity = capacity;
+        this.counts = new long[width * depth];
+    }
+
+    @Override
+    public boolean add(String value, long count) {
+        long hash = hash64(value);
+        long estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            int i = index(hash, row);
+            counts[i] += count;
+            estimate = Math.min(estimate, counts[i]);
+        }
+        offer(value, estimate);
+        return true;
+    }
+
+    /**
+     * @return estimated occurrences of a value, never below the real ones
+     */
+    public long estimate(String value) {
+        long hash = hash64(value);
+        long estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts[index(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Gets the candidates with the highest estimates
+     * @param k Max values
+     * @return estimates by value, in descending estimate and then value order
+     */
+    public Map<String,Long> top(int k) {
+        List<Map.Entry<String,Long>> ranked = rank();
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        for(Map.Entry<String,Long> entry : ranked.subList(0, Math.min(k, ranked.size()))) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public void merge(Sketch other) {
+        if(!(other instanceof TopKSketch)) {
+            throw new IllegalArgumentException("Incompatible sketch " + other);
+        }
+        TopKSketch sketch = (TopKSketch) other;
+        if(sketch.width != width || sketch.depth != depth) {
+            throw new IllegalArgumentException("Incompatible sketch " + other);
+        }
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += sketch.counts[i];
+        }
+        for(String value : sketch.candidates.keySet()) {
+            candidates.put(value, 0L);
+        }
+        List<Map.Entry<String,Long>> ranked = rank();
+        candidates.clear();
+        for(Map.Entry<String,Long> entry : ranked.subList(0, Math.min(capacity, ranked.size()))) {
+            candidates.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TYPE_TOPK);
+            out.writeInt(width);
+            out.writeInt(depth);
+            out.writeInt(capacity);
+            for(long count : counts) {
+                out.writeLong(count);
+            }
+            out.writeInt(candidates.size());
+            for(String value : candidates.keySet()) {
+                out.writeUTF(value);
+            }
+            out.flush();
+        }catch(IOException ex) {
+            throw new IllegalStateException("Writing top-k sketch", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public TopKSketch newEmpty() {
+        return new TopKSketch(width, depth, capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    static TopKSketch read(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            in.readByte();
+            TopKSketch sketch = new TopKSketch(in.readInt(), in.readInt(), in.readInt());
+            for(int i = 0; i < sketch.counts.length; i++) {
+                sketch.counts[i] = in.readLong();
+            }
+            int size = in.readInt();
+            for(int i = 0; i < size; i++) {
+                String value = in.readUTF();
+                sketch.candidates.put(value, sketch.estimate(value));
+            }
+            return sketch;
+        }catch(IOException ex) {
+            throw new IllegalArgumentException("Truncated top-k sketch", ex);
+        }
+    }
+
+    /**
+     * Keeps a value as candidate if there is room or it beats the lowest one
+     */
+    private void offer(String value, long estimate) {
+        if(candidates.containsKey(value) || candidates.size() < capacity) {
+            candidates.put(value, estimate);
+            return;
+        }
+        String lowest = null;
+        long lowestEstimate = Long.MAX_VALUE;
+        for(Map.Entry<String,Long> entry : candidates.entrySet()) {
+            if(entry.getValue() < lowestEstimate) {
+                lowest = entry.getKey();
+                lowestEstimate = entry.getValue();
+            }
+        }
+        if(estimate > lowestEstimate) {
+            candidates.remove(lowest);
+            candidates.put(value, estimate);
+        }
+    }
+
+    /**
+     * @return the candidates with their current estimates, highest first
+     */
+    private List<Map.Entry<String,Long>> rank() {
+        Map<String,Long> estimates = new HashMap<String,Long>();
+        for(String value : candidates.keySet()) {
+            estimates.put(value, estimate(value));
+        }
+        List<Map.Entry<String,Long>> ranked = new ArrayList<Map.Entry<String,Long>>(estimates.entrySet());
+        Collections.sort(ranked, new Comparator<Map.Entry<String,Long>>() {
+            @Override
+            public int compare(Map.Entry<String,Long> e1, Map.Entry<String,Long> e2) {
+                int order = e2.getValue().compareTo(e1.getValue());
+                return order != 0 ? order : e1.getKey().compareTo(e2.getKey());
+            }
+        });
+        return ranked;
+    }
+
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return row * width + ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+    }
+
+    @Override
+    public String toString() {
+        return "TopKSketch[" + width + "x" + depth + ", " + capacity + "]";
+    }
+}
@@ -1,6 +1,9 @@
 function () {
     metaUnique = "ip";
     var handleCount = function(key,target) {
+        if(!target.count) {
+            return;//Preallocated bucket
+        }
         for (var meta in target.meta) {
             if(meta == metaUnique) {
                 var tUnique = target.meta[metaUnique];
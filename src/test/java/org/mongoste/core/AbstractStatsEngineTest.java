@@ -23,10 +23,19 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.mongoste.query.Query;
+import org.mongoste.query.QueryBatch;
+import org.mongoste.query.QueryField;
+import org.mongoste.query.ResultVisitor;
 
 /**
  *
@@ -57,6 +66,95 @@ public class AbstractStatsEngineTest {
         assertEquals("a.c", instance.createDotPath("a",".","c"));
     }
 
+    /**
+     * Test of visitActions method, of class AbstractStatsEngine.
+     */
+    @Test
+    public void testVisitActions() throws Exception {
+        System.out.println("visitActions");
+        instance = new AbstractStatsEngineImpl() {
+            @Override
+            public List<StatAction> getActions(Query query) throws StatsEngineException {
+                return Arrays.asList(new StatAction("a", 1), new StatAction("b", 2), new StatAction("c", 3));
+            }
+        };
+        final List<String> names = new ArrayList<String>();
+        ResultVisitor<StatAction> visitor = new ResultVisitor<StatAction>() {
+            @Override
+            public boolean visit(StatAction action) {
+                names.add(action.getName());
+                return true;
+            }
+        };
+        Query query = instance.createQuery().limit(2);
+        String continuation = query.visitActions(visitor);
+        assertNotNull(continuation);
+        assertNull(query.continueAfter(continuation).visitActions(visitor));
+        assertEquals(Arrays.asList("a", "b", "c"), names);
+    }
+
+    /**
+     * Test of executeBatch method, of class AbstractStatsEngine.
+     */
+    @Test
+    public void testExecuteBatch() throws Exception {
+        System.out.println("executeBatch");
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch concurrent = new CountDownLatch(2);
+        instance = new AbstractStatsEngineImpl() {
+            @Override
+            public List<StatAction> getActions(Query query) throws StatsEngineException {
+                calls.incrementAndGet();
+                return Arrays.asList(new StatAction(query.getFilter(QueryField.CLIENT_ID).getStringValue(), 1));
+            }
+
+            @Override
+            public Map<String, Long> getTargetActionCount(Query query) throws StatsEngineException {
+                concurrent.countDown();
+                try {
+                    //Waits for the other query running at the same time
+                    if(!concurrent.await(10, TimeUnit.SECONDS)) {
+                        throw new StatsEngineException("not concurrent");
+                    }
+                } catch (InterruptedException ex) {
+                    throw new StatsEngineException("interrupted", ex);
+                }
+                return Collections.singletonMap(query.getFilter(QueryField.TARGET).getStringValue(), 1L);
+            }
+        };
+        QueryBatch batch = new QueryBatch();
+        QueryBatch.Result<List<StatAction>> a1 = batch.getActions(instance.createQuery().filterBy(QueryField.CLIENT_ID, "a"));
+        QueryBatch.Result<List<StatAction>> a2 = batch.getActions(instance.createQuery().filterBy(QueryField.CLIENT_ID, "a"));
+        QueryBatch.Result<List<StatAction>> b = batch.getActions(instance.createQuery().filterBy(QueryField.CLIENT_ID, "b"));
+        QueryBatch.Result<Map<String,Long>> t1 = batch.getTargetActionCount(createTargetQuery("t1"));
+        QueryBatch.Result<Map<String,Long>> t2 = batch.getTargetActionCount(createTargetQuery("t2"));
+        QueryBatch.Result<List<StatCounter>> missing = batch.getTopTargets(instance.createQuery());
+        try {
+            a1.get();
+            fail("Batch not executed");
+        } catch(IllegalStateException ex) {
+        }
+        instance.executeBatch(batch);
+        assertEquals(2, calls.get());
+        assertSame(a1.get(), a2.get());
+        assertEquals("b", b.get().get(0).getName());
+        assertEquals(Long.valueOf(1), t1.get().get("t1"));
+        assertEquals(Long.valueOf(1), t2.get().get("t2"));
+        assertTrue(missing.isDone());
+        assertNotNull(missing.getError());
+        try {
+            missing.get();
+            fail("Query error expected");
+        } catch(StatsEngineException ex) {
+        }
+        instance.shutDown();
+    }
+
+    private Query createTargetQuery(String target) {
+        return instance.createQuery().filterBy(QueryField.CLIENT_ID, "c")
+                .filterBy(QueryField.TARGET_TYPE, "type").filterBy(QueryField.TARGET, target);
+    }
+
     public class AbstractStatsEngineImpl extends AbstractStatsEngine {
 
         @Override
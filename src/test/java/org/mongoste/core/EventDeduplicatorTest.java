@@ -0,0 +1,106 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventDeduplicator test
+ * @author mrmx
+ */
+public class EventDeduplicatorTest {
+
+    @Test
+    public void testCheckAndAdd() {
+        System.out.println("checkAndAdd");
+        final AtomicLong clock = new AtomicLong(1000);
+        EventDeduplicator dedup = new EventDeduplicator(100, 1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+        StatEvent event = createSampleEvent("id1");
+        assertFalse(dedup.checkAndAdd(event));
+        assertTrue(dedup.checkAndAdd(event));
+        assertTrue(dedup.checkAndAdd(createSampleEvent("id1")));
+        assertFalse(dedup.checkAndAdd(createSampleEvent("id2")));
+        //Other client, same id
+        StatEvent other = createSampleEvent("id1");
+        other.setClientId("other");
+        assertFalse(dedup.checkAndAdd(other));
+        //Events without id are never duplicated
+        StatEvent noId = createSampleEvent(null);
+        assertFalse(dedup.checkAndAdd(noId));
+        assertFalse(dedup.checkAndAdd(noId));
+        //Still remembered within the window
+        clock.addAndGet(50);
+        assertTrue(dedup.checkAndAdd(event));
+        //Forgotten after the window
+        clock.addAndGet(50);
+        assertFalse(dedup.checkAndAdd(event));
+        //Removed ids can be retried
+        dedup.remove(event);
+        assertFalse(dedup.checkAndAdd(event));
+        assertEquals(3, dedup.getDuplicates());
+    }
+
+    @Test
+    public void testConcurrentRetries() throws Exception {
+        System.out.println("concurrentRetries");
+        final EventDeduplicator dedup = new EventDeduplicator(60000, 1000);
+        final AtomicLong accepted = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }catch(InterruptedException ex) {
+                        return;
+                    }
+                    for(int id = 0; id < 100; id++) {
+                        if(!dedup.checkAndAdd(createSampleEvent("id" + id))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, accepted.get());
+        assertEquals(700, dedup.getDuplicates());
+    }
+
+    private StatEvent createSampleEvent(String eventId) {
+        StatEvent event = new StatEvent();
+        event.setClientId("client");
+        event.setEventId(eventId);
+        return event;
+    }
+}
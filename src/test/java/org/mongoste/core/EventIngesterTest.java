@@ -0,0 +1,128 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventIngester test
+ * @author mrmx
+ */
+public class EventIngesterTest {
+
+    /**
+     * Publishes <code>total</code> events on demand, tracking how far it gets
+     * ahead of the engine
+     */
+    private static class SamplePublisher implements EventFlow.Publisher<StatEvent>, EventFlow.Subscription {
+        private final long total;
+        private final AtomicLong handled;
+        private EventFlow.Subscriber<? super StatEvent> subscriber;
+        private long requested;
+        private long sent;
+        private long maxAhead;
+        private boolean emitting;
+        private boolean cancelled;
+
+        SamplePublisher(long total, AtomicLong handled) {
+            this.total = total;
+            this.handled = handled;
+        }
+
+        @Override
+        public void subscribe(EventFlow.Subscriber<? super StatEvent> subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized(this) {
+                requested += n;
+                if(emitting) {
+                    return;
+                }
+                emitting = true;
+            }
+            while(true) {
+                synchronized(this) {
+                    if(cancelled || requested == 0 || sent == total) {
+                        emitting = false;
+                        break;
+                    }
+                    requested--;
+                    sent++;
+                    maxAhead = Math.max(maxAhead, sent - handled.get());
+                }
+                StatEvent event = new StatEvent();
+                event.setClientId("client");
+                subscriber.onNext(event);
+            }
+            boolean complete;
+            synchronized(this) {
+                complete = sent == total && !cancelled;
+                cancelled |= complete;
+            }
+            if(complete) {
+                subscriber.onComplete();
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+
+        synchronized long getMaxAhead() {
+            return maxAhead;
+        }
+    }
+
+    @Test
+    public void testBoundedDemand() throws Exception {
+        System.out.println("boundedDemand");
+        final AtomicLong handled = new AtomicLong();
+        StatsEngine slowEngine = new AbstractStatsEngineTest().new AbstractStatsEngineImpl() {
+            @Override
+            public void handleEvent(StatEvent event) throws StatsEngineException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.incrementAndGet();
+            }
+        };
+        int batchSize = 10;
+        int maxInFlight = 2;
+        SamplePublisher publisher = new SamplePublisher(200, handled);
+        EventIngester ingester = new EventIngester(slowEngine, batchSize, maxInFlight, 50);
+        publisher.subscribe(ingester);
+        assertTrue(ingester.awaitCompletion(30, TimeUnit.SECONDS));
+        System.out.println("ingester: "+ingester+" max ahead: "+publisher.getMaxAhead());
+        assertEquals(200, ingester.getHandledEvents());
+        assertEquals(200, handled.get());
+        assertEquals(0, ingester.getRejectedEvents());
+        assertEquals(0, ingester.getInFlightBatches());
+        assertTrue(publisher.getMaxAhead() <= batchSize * maxInFlight);
+    }
+}
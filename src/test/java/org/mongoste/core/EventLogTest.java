@@ -0,0 +1,197 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core;
+
+import org.mongoste.model.StatEvent;
+import org.mongoste.util.DateUtil;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EventLog test
+ * @author mrmx
+ */
+public class EventLogTest {
+    private File dir;
+
+    private static class CollectingApplier implements EventLog.Applier {
+        List<StatEvent> applied = new ArrayList<StatEvent>();
+        List<String> batchIds = new ArrayList<String>();
+        int failAfter = Integer.MAX_VALUE;
+
+        @Override
+        public void apply(String batchId, List<StatEvent> events) throws StatsEngineException {
+            batchIds.add(batchId);
+            if(applied.size() + events.size() > failAfter) {
+                throw new StatsEngineException("Forced failure");
+            }
+            applied.addAll(events);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "mongoste-wal-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testAppendRotateReplay() throws Exception {
+        System.out.println("appendRotateReplay");
+        EventLog eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        for(int i = 0; i < 25; i++) {
+            eventLog.append(createSampleEvent("target" + i));
+        }
+        CollectingApplier applier = new CollectingApplier();
+        //Current segment is not replayed until sealed
+        assertEquals(0, eventLog.replay(applier));
+        eventLog.rotate();
+        assertEquals(25, eventLog.replay(applier));
+        assertEquals("target0", applier.applied.get(0).getTarget());
+        assertEquals("target24", applier.applied.get(24).getTarget());
+        //Applied segments are gone
+        assertEquals(0, eventLog.replay(applier));
+        eventLog.close();
+    }
+
+    @Test
+    public void testCrashReplay() throws Exception {
+        System.out.println("crashReplay");
+        EventLog eventLog = new EventLog(dir, 512, true, 10);
+        eventLog.open();
+        for(int i = 0; i < 30; i++) {
+            eventLog.append(createSampleEvent("target" + i));
+        }
+        //Simulate crash: log is reopened without applying
+        eventLog.close();
+        eventLog = new EventLog(dir, 512, true, 10);
+        eventLog.open();
+        CollectingApplier applier = new CollectingApplier();
+        assertEquals(30, eventLog.replay(applier));
+        eventLog.close();
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exception {
+        System.out.println("checkpointResume");
+        EventLog eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        for(int i = 0; i < 25; i++) {
+            eventLog.append(createSampleEvent("target" + i));
+        }
+        eventLog.rotate();
+        CollectingApplier applier = new CollectingApplier();
+        applier.failAfter = 15;
+        try {
+            eventLog.replay(applier);
+            fail("Expected failure");
+        }catch(StatsEngineException ex) {
+        }
+        assertEquals(10, applier.applied.size());
+        assertEquals(2, applier.batchIds.size());
+        String failedBatch = applier.batchIds.get(1);
+        assertFalse(failedBatch.equals(applier.batchIds.get(0)));
+        applier.failAfter = Integer.MAX_VALUE;
+        //Resumes after the first confirmed batch, with the same batch id
+        assertEquals(15, eventLog.replay(applier));
+        assertEquals("target10", applier.applied.get(10).getTarget());
+        assertEquals(failedBatch, applier.batchIds.get(2));
+        eventLog.close();
+    }
+
+    @Test
+    public void testCorruptedTail() throws Exception {
+        System.out.println("corruptedTail");
+        EventLog eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        for(int i = 0; i < 3; i++) {
+            eventLog.append(createSampleEvent("target" + i));
+        }
+        eventLog.close();
+        File [] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        //Flip a byte in the last record payload
+        file.seek(file.length() - 1);
+        int last = file.read();
+        file.seek(file.length() - 1);
+        file.write(last ^ 0xFF);
+        file.close();
+        eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        CollectingApplier applier = new CollectingApplier();
+        assertEquals(2, eventLog.replay(applier));
+        assertTrue(eventLog.getSkippedBytes() > 0);
+        eventLog.close();
+    }
+
+    @Test
+    public void testCorruptedSegmentKept() throws Exception {
+        System.out.println("corruptedSegmentKept");
+        EventLog eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        for(int i = 0; i < 3; i++) {
+            eventLog.append(createSampleEvent("target" + i));
+        }
+        eventLog.close();
+        File segment = dir.listFiles()[0];
+        long length = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        //Flip a byte in the first record payload
+        file.seek(20);
+        int value = file.read();
+        file.seek(20);
+        file.write(value ^ 0xFF);
+        file.close();
+        eventLog = new EventLog(dir, 1024 * 1024, false, 10);
+        eventLog.open();
+        CollectingApplier applier = new CollectingApplier();
+        assertEquals(0, eventLog.replay(applier));
+        assertEquals(length, eventLog.getSkippedBytes());
+        File corrupt = new File(dir, segment.getName() + ".corrupt");
+        assertTrue(corrupt.exists());
+        assertEquals(length, corrupt.length());
+        //Corrupt segments are not replayed again
+        assertEquals(0, eventLog.replay(applier));
+        eventLog.close();
+    }
+
+    private StatEvent createSampleEvent(String target) {
+        StatEvent event = new StatEvent();
+        event.setClientId("client");
+        event.setAction("action");
+        event.setTargetType("type");
+        event.setTarget(target);
+        event.setDateTime(DateUtil.getDateTimeUTC());
+        event.getMetadata().put("ip", "192.168.1.1");
+        return event;
+    }
+}
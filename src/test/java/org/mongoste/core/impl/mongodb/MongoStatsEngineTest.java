@@ -17,18 +17,29 @@ package org.mongoste.core.impl.mongodb;
 
 import org.mongoste.query.QueryField;
 import org.mongoste.model.StatEvent;
+import org.mongoste.core.DuplicateEventException;
+import org.mongoste.core.EventDeduplicator;
+import org.mongoste.core.StatsEngineException;
 import org.mongoste.core.TimeScope;
 import org.mongoste.model.StatAction;
 import org.mongoste.model.StatCounter;
 import org.mongoste.util.DateUtil;
 import org.mongoste.query.Query;
+import org.mongoste.query.QueryBatch;
+import org.mongoste.query.QueryCache;
+import org.mongoste.query.QueryException;
 import org.mongoste.query.QueryOp;
+import org.mongoste.query.QueryProfile;
 import org.mongoste.query.RequiredQueryFieldException;
+import org.mongoste.query.ResultPage;
+import org.mongoste.query.ResultVisitor;
 
 import org.joda.time.DateTime;
+import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -45,9 +56,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.ParseException;
 import java.util.LinkedList;
 import org.joda.time.DateTimeZone;
@@ -110,7 +127,7 @@ public class MongoStatsEngineTest {
 
     @AfterClass
     public static void tearDownClass() throws Exception {
-        //TODO engine.shutDown();
+        engine.shutDown();
     }
 
     @Before
@@ -132,6 +149,1085 @@ public class MongoStatsEngineTest {
         engine.handleEvent(engine.createSampleEvent());
     }
 
+    /**
+     * Test of write-behind mode, of class MongoStatsEngine.
+     */
+    @Test
+    public void testWriteBehind() throws Exception {
+        System.out.println("writeBehind");
+        DateTime date = DateUtil.getDateTimeUTC().withDayOfMonth(1);
+        StatEvent event = engine.createSampleEvent(date);
+        engine.setWriteBehindDelay(60000);
+        engine.setWriteBehind(true);
+        try {
+            engine.handleEvent(event);
+            engine.handleEvent(engine.createSampleEvent(date.plusSeconds(1)));
+            engine.handleEvent(engine.createSampleEvent(date.plusSeconds(2)));
+            DBCollection targets = engine.getTargetCollection();
+            assertEquals(0,targets.count());
+            engine.flush();
+            assertEquals(1,targets.count());
+            DBObject target = targets.find().next();
+            assertEquals(3,target.get(MongoStatsEngine.FIELD_COUNT));
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+            List<StatAction> actions = query.getActions();
+            assertEquals(1, actions.size());
+            assertEquals(3, actions.get(0).getCount());
+            //Flush on disable
+            engine.handleEvent(engine.createSampleEvent(date.plusSeconds(3)));
+            engine.setWriteBehind(false);
+            target = targets.find().next();
+            assertEquals(4,target.get(MongoStatsEngine.FIELD_COUNT));
+        } finally {
+            engine.setWriteBehind(false);
+            engine.setWriteBehindDelay(MongoStatsEngine.DEFAULT_WRITEBEHIND_DELAY);
+        }
+    }
+
+    /**
+     * Counter updates of a logged batch applied again are skipped
+     */
+    @Test
+    public void testApplyOnce() throws Exception {
+        System.out.println("applyOnce");
+        DBCollection counters = engine.getCounterCollection();
+        BasicDBObject key = new BasicDBObject(MongoStatsEngine.EVENT_TARGET, "applyOnce");
+        assertTrue(new CounterUpdate(counters, key, false).inc(MongoStatsEngine.FIELD_COUNT, 2).applyOnce("b1"));
+        assertTrue(new CounterUpdate(counters, key, false).inc(MongoStatsEngine.FIELD_COUNT, 2).applyOnce("b1"));
+        assertEquals(2, ((Number) counters.findOne(key).get(MongoStatsEngine.FIELD_COUNT)).intValue());
+        assertTrue(new CounterUpdate(counters, key, false).inc(MongoStatsEngine.FIELD_COUNT, 3).applyOnce("b2"));
+        assertTrue(new CounterUpdate(counters, key, false).inc(MongoStatsEngine.FIELD_COUNT, 3).applyOnce("b2"));
+        assertEquals(5, ((Number) counters.findOne(key).get(MongoStatsEngine.FIELD_COUNT)).intValue());
+        assertEquals(1, counters.count(key));
+    }
+
+    /**
+     * Duplicated events are dropped with their counts in write-behind mode
+     */
+    @Test
+    public void testWriteBehindDuplicates() throws Exception {
+        System.out.println("writeBehindDuplicates");
+        StatEvent event = engine.createSampleEvent();
+        engine.setWriteBehindDelay(60000);
+        engine.setWriteBehind(true);
+        try {
+            engine.handleEvent(event);
+            engine.handleEvent(event);
+            engine.flush();
+            assertEquals(1, engine.getDB().getCollection(MongoStatsEngine.COLLECTION_EVENTS).count());
+            DBObject target = engine.getTargetCollection().findOne();
+            assertEquals(1, ((Number) target.get(MongoStatsEngine.FIELD_COUNT)).intValue());
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID, event.getClientId());
+            List<StatAction> actions = query.getActions();
+            assertEquals(1, actions.size());
+            assertEquals(1, actions.get(0).getCount());
+            //Retried after its flush
+            engine.handleEvent(event);
+            engine.flush();
+            target = engine.getTargetCollection().findOne();
+            assertEquals(1, ((Number) target.get(MongoStatsEngine.FIELD_COUNT)).intValue());
+        } finally {
+            engine.setWriteBehind(false);
+            engine.setWriteBehindDelay(MongoStatsEngine.DEFAULT_WRITEBEHIND_DELAY);
+        }
+    }
+
+    /**
+     * Test of handleEvents method, of class MongoStatsEngine.
+     */
+    @Test
+    public void testHandleEvents() throws Exception {
+        System.out.println("handleEvents");
+        List<StatEvent> batch = new ArrayList<StatEvent>();
+        StatEvent event = engine.createSampleEvent("2011-01-01");
+        batch.add(event);
+        batch.add(engine.createSampleEvent("2011-01-02"));
+        StatEvent other = engine.createSampleEvent("2011-01-02");
+        other.setTarget("other");
+        batch.add(other);
+        StatEvent duplicate = engine.createSampleEvent("2011-01-01");
+        batch.add(duplicate);
+        StatEvent invalid = new StatEvent();
+        batch.add(invalid);
+        Map<StatEvent,StatsEngineException> rejected = engine.handleEvents(batch);
+        assertNotNull(rejected);
+        assertEquals(2, rejected.size());
+        assertTrue(rejected.get(duplicate) instanceof DuplicateEventException);
+        assertNotNull(rejected.get(invalid));
+        DBCollection targets = engine.getTargetCollection();
+        assertEquals(2,targets.count());
+        DBObject target = targets.findOne(new BasicDBObject(MongoStatsEngine.EVENT_TARGET,event.getTarget()));
+        assertEquals(2,target.get(MongoStatsEngine.FIELD_COUNT));
+        Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+        List<StatAction> actions = query.getActions();
+        assertEquals(1, actions.size());
+        assertEquals(3, actions.get(0).getCount());
+    }
+
+    @Test
+    public void testEventsPartition() throws Exception {
+        System.out.println("eventsPartition");
+        engine.setEventsPartition(TimeScope.MONTHLY);
+        try {
+            engine.handleEvent(engine.createSampleEvent("2011-01-15"));
+            engine.handleEvent(engine.createSampleEvent("2011-01-20"));
+            engine.handleEvent(engine.createSampleEvent("2011-02-01"));
+            DB db = engine.getTargetCollection().getDB();
+            assertEquals(2, db.getCollection("events_m2011_1").count());
+            assertEquals(1, db.getCollection("events_m2011_2").count());
+            List<String> dropped = engine.dropEventPartitions(DateUtil.buildUTCDate(2011, 2, 1));
+            assertEquals(Arrays.asList("events_m2011_1"), dropped);
+            assertFalse(db.collectionExists("events_m2011_1"));
+            assertTrue(db.collectionExists("events_m2011_2"));
+            //Counters are kept
+            DBObject target = engine.getTargetCollection().findOne();
+            assertEquals(3,target.get(MongoStatsEngine.FIELD_COUNT));
+        } finally {
+            engine.setEventsPartition(TimeScope.GLOBAL);
+        }
+    }
+
+    @Test
+    public void testTargetsPartition() throws Exception {
+        System.out.println("targetsPartition");
+        engine.setTargetsPartition(TimeScope.MONTHLY);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 1, 15);
+            StatEvent event = null;
+            for(int m = 0; m < 3; m++) {
+                for(String action : new String[] {"view", "click"}) {
+                    event = engine.createSampleEvent(date.plusMonths(m));
+                    event.setAction(action);
+                    engine.handleEvent(event);
+                }
+            }
+            DB db = engine.getTargetCollection().getDB();
+            assertEquals(2, db.getCollection("targets_m2011_1").count());
+            assertEquals(2, db.getCollection("targets_m2011_3").count());
+            assertEquals(0, engine.getTargetCollection().count());
+            assertEquals(2, engine.getTargetCollections(date.plusMonths(1), null).size());
+            assertEquals(1, engine.getTargetCollections(date, date.plusDays(1)).size());
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, event.getTarget())
+                    .filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 1))
+                    .filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 3, 31));
+            //Merged by action and date from the partitions
+            List<StatAction> stats = query.getTargetStats();
+            assertEquals(2, stats.size());
+            assertEquals("click", stats.get(0).getName());
+            assertEquals(2, stats.get(0).getCount());
+            assertEquals(2, stats.get(0).getTargets().size());
+            assertTrue(stats.get(0).getTargets().get(0).getDate().before(stats.get(0).getTargets().get(1).getDate()));
+            assertEquals("view", stats.get(1).getName());
+            engine.setTargetTags(event.getClientId(), event.getTargetType(), event.getTarget(), Arrays.asList("tag"));
+            assertEquals(2, db.getCollection("targets_m2011_2").count(new BasicDBObject(MongoStatsEngine.EVENT_TARGET_TAGS, "tag")));
+        } finally {
+            engine.setTargetsPartition(TimeScope.GLOBAL);
+        }
+    }
+
+    @Test
+    public void testHashedKeys() throws Exception {
+        System.out.println("hashedKeys");
+        StatEvent event = engine.createSampleEvent("2011-01-15");
+        engine.handleEvent(event);
+        engine.handleEvent(engine.createSampleEvent("2011-01-16"));
+        engine.setHashedKeys(true);
+        try {
+            assertEquals(3, engine.migrateHashedKeys());
+            assertEquals(0, engine.migrateHashedKeys());
+            engine.handleEvent(engine.createSampleEvent("2011-01-17"));
+            DBCollection targets = engine.getTargetCollection();
+            assertEquals(1,targets.count());
+            DBObject target = targets.findOne();
+            assertTrue(target.get("_id") instanceof ObjectId);
+            assertEquals(event.getTarget(),target.get(MongoStatsEngine.EVENT_TARGET));
+            assertEquals(3,target.get(MongoStatsEngine.FIELD_COUNT));
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+            assertEquals(3, query.getActions().get(0).getCount());
+        } finally {
+            engine.setHashedKeys(false);
+        }
+    }
+
+    /**
+     * Compares event write throughput of compound keys and hashed keys schemas
+     */
+    @Test
+    public void testHashedKeysThroughput() throws Exception {
+        System.out.println("hashedKeysThroughput");
+        int total = 2000;
+        engine.setKeepEvents(false);
+        try {
+            long compound = measureWrites(total);
+            engine.dropAllCollections();
+            engine.setHashedKeys(true);
+            long hashed = measureWrites(total);
+            assertEquals(total / 10, engine.getCounterCollection().count());
+            System.out.println("Compound keys: "+(total * 1000L / Math.max(1, compound))+" events/s, "
+                    + "hashed keys: "+(total * 1000L / Math.max(1, hashed))+" events/s");
+        } finally {
+            engine.setHashedKeys(false);
+            engine.setKeepEvents(true);
+        }
+    }
+
+    private long measureWrites(int total) throws Exception {
+        DateTime date = DateUtil.buildUTCDate(2011, 1, 1);
+        long t = System.currentTimeMillis();
+        for(int i = 0; i < total; i++) {
+            StatEvent event = engine.createSampleEvent(date.plusHours(i % 24 * 30));
+            event.setTarget("target" + (i % (total / 10)));
+            engine.handleEvent(event);
+        }
+        return System.currentTimeMillis() - t;
+    }
+
+    @Test
+    public void testIndexProfile() throws Exception {
+        System.out.println("indexProfile");
+        StatEvent event = engine.createSampleEvent();
+        engine.handleEvent(event);
+        assertTrue(engine.getUnneededIndexes(false).isEmpty());
+        engine.setIndexProfile(IndexProfile.WRITE_HEAVY);
+        try {
+            Map<String,List<String>> unneeded = engine.getUnneededIndexes(true);
+            System.out.println("Unneeded indexes: "+unneeded);
+            assertTrue(unneeded.get("targets").contains("targetYearMonth"));
+            assertTrue(unneeded.get("events").contains("meta_1"));
+            assertTrue(engine.getUnneededIndexes(false).isEmpty());
+            engine.handleEvent(event);
+            fail("Duplicate event expected");
+        }catch(DuplicateEventException ex) {
+        } finally {
+            engine.setIndexProfile(IndexProfile.FULL);
+        }
+        Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+        assertEquals(1, query.getActions().get(0).getCount());
+    }
+
+    @Test
+    public void testPreallocate() throws Exception {
+        System.out.println("preallocate");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.HOURLY);
+        engine.setPreallocate(true);
+        try {
+            StatEvent event = engine.createSampleEvent(DateUtil.buildUTCDate(2011, 2, 10).plusHours(13));
+            engine.handleEvent(event);
+            engine.handleEvent(engine.createSampleEvent(DateUtil.buildUTCDate(2011, 2, 11).plusHours(14)));
+            DBCollection targets = engine.getTargetCollection();
+            assertEquals(1, targets.count());
+            BasicDBObject target = (BasicDBObject) targets.findOne();
+            assertEquals(2, target.get(MongoStatsEngine.FIELD_COUNT));
+            BasicDBObject days = (BasicDBObject) target.get(MongoStatsEngine.FIELD_DAYS);
+            assertEquals(28, days.size());
+            assertEquals(0, MongoUtil.getChildDBObject(days, "1.hours.0").get(MongoStatsEngine.FIELD_COUNT));
+            assertEquals(1, MongoUtil.getChildDBObject(days, "10.hours.13").get(MongoStatsEngine.FIELD_COUNT));
+            assertEquals(1, MongoUtil.getChildDBObject(days, "11").get(MongoStatsEngine.FIELD_COUNT));
+
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, event.getTarget())
+                    .filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 1))
+                    .filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 2, 28).plusHours(23));
+            List<StatCounter> dayCounts = query.groupBy(TimeScope.DAILY).getTargetStats().get(0).getTargets();
+            assertEquals(2, dayCounts.size());
+            assertEquals(DateUtil.buildUTCDate(2011, 2, 10).getMillis(), dayCounts.get(0).getDate().getTime());
+            List<StatCounter> hourCounts = query.groupBy(TimeScope.HOURLY).getTargetStats().get(0).getTargets();
+            assertEquals(2, hourCounts.size());
+            assertEquals(DateUtil.buildUTCDate(2011, 2, 11).plusHours(14).getMillis(), hourCounts.get(1).getDate().getTime());
+            assertEquals(1, query.groupBy(TimeScope.MONTHLY).getTargetStats().get(0).getTargets().size());
+            assertEquals(2, query.groupBy(TimeScope.MONTHLY).getTargetStats().get(0).getCount());
+        } finally {
+            engine.setPreallocate(false);
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Write-behind preallocates the targets on flush, not when buffering
+     */
+    @Test
+    public void testWriteBehindPreallocate() throws Exception {
+        System.out.println("writeBehindPreallocate");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.HOURLY);
+        engine.setPreallocate(true);
+        engine.setWriteBehindDelay(60000);
+        engine.setWriteBehind(true);
+        try {
+            engine.handleEvent(engine.createSampleEvent(DateUtil.buildUTCDate(2011, 2, 10).plusHours(13)));
+            engine.handleEvent(engine.createSampleEvent(DateUtil.buildUTCDate(2011, 2, 11).plusHours(14)));
+            DBCollection targets = engine.getTargetCollection();
+            assertEquals(0, targets.count());
+            engine.flush();
+            assertEquals(1, targets.count());
+            BasicDBObject target = (BasicDBObject) targets.findOne();
+            assertEquals(2, target.get(MongoStatsEngine.FIELD_COUNT));
+            BasicDBObject days = (BasicDBObject) target.get(MongoStatsEngine.FIELD_DAYS);
+            assertEquals(28, days.size());
+            assertEquals(0, MongoUtil.getChildDBObject(days, "1.hours.0").get(MongoStatsEngine.FIELD_COUNT));
+            assertEquals(1, MongoUtil.getChildDBObject(days, "10.hours.13").get(MongoStatsEngine.FIELD_COUNT));
+        } finally {
+            engine.setWriteBehind(false);
+            engine.setWriteBehindDelay(MongoStatsEngine.DEFAULT_WRITEBEHIND_DELAY);
+            engine.setPreallocate(false);
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Shares the engine between threads, checking counts and throughput
+     * scaling up to the available cores
+     */
+    @Test
+    public void testConcurrentHandleEvent() throws Exception {
+        System.out.println("concurrentHandleEvent");
+        engine.setKeepEvents(false);
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int perThread = 500;
+            for(int threads = 1; threads <= cores; threads *= 2) {
+                engine.dropAllCollections();
+                long t = handleConcurrentEvents(threads, perThread);
+                System.out.println(threads+" threads: "+(threads * perThread * 1000L / Math.max(1, t))+" events/s");
+                Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,"client");
+                assertEquals(threads * perThread, query.getActions().get(0).getCount());
+                assertEquals(threads, engine.getCounterCollection().count());
+            }
+        } finally {
+            engine.setKeepEvents(true);
+        }
+    }
+
+    private long handleConcurrentEvents(int threads, final int perThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for(int i = 0; i < threads; i++) {
+            final String target = "target" + i;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for(int j = 0; j < perThread; j++) {
+                        StatEvent event = engine.createSampleEvent();
+                        event.setTarget(target);
+                        engine.handleEvent(event);
+                    }
+                    return null;
+                }
+            }));
+        }
+        long t = System.currentTimeMillis();
+        start.countDown();
+        for(Future<Void> result : results) {
+            result.get();
+        }
+        t = System.currentTimeMillis() - t;
+        executor.shutdown();
+        return t;
+    }
+
+    @Test
+    public void testEventId() throws Exception {
+        System.out.println("eventId");
+        StatEvent event = engine.createSampleEvent("2011-01-01");
+        event.setEventId("event1");
+        engine.handleEvent(event);
+        //Retry with other metadata: caught by the event id index
+        StatEvent retry = engine.createSampleEvent("2011-01-01");
+        retry.setEventId("event1");
+        retry.getMetadata().put("retry", 1);
+        try {
+            engine.handleEvent(retry);
+            fail("Duplicate event expected");
+        }catch(DuplicateEventException ex) {
+        }
+        engine.setDeduplicator(new EventDeduplicator(60000, 1000));
+        try {
+            StatEvent other = engine.createSampleEvent("2011-01-02");
+            other.setEventId("event2");
+            engine.handleEvent(other);
+            try {
+                engine.handleEvent(other);
+                fail("Duplicate event expected");
+            }catch(DuplicateEventException ex) {
+            }
+            assertEquals(1, engine.getDeduplicator().getDuplicates());
+        } finally {
+            engine.setDeduplicator(null);
+        }
+        Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+        assertEquals(2, query.getActions().get(0).getCount());
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+        System.out.println("stripes");
+        engine.setCountersStripes(4);
+        engine.setActionsStripes(4);
+        engine.setStripeMode(MongoStatsEngine.StripeMode.HASH);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 3, 1);
+            for(int i = 0; i < 20; i++) {
+                engine.handleEvent(engine.createSampleEvent(date.plusMinutes(i)));
+            }
+            StatEvent other = engine.createSampleEvent(date);
+            other.setTarget("other");
+            engine.handleEvent(other);
+            assertTrue(engine.getCounterCollection().count() > 2);
+            assertTrue(engine.getTargetActionsCollection().count() > 1);
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,other.getClientId());
+            List<StatAction> actions = query.getActions();
+            assertEquals(1, actions.size());
+            assertEquals(21, actions.get(0).getCount());
+            assertEquals(1, actions.get(0).getTargets().size());
+            assertEquals(21, actions.get(0).getTargets().get(0).getCount());
+            query.filterBy(QueryField.TARGET_TYPE, other.getTargetType());
+            query.filterBy(QueryField.ACTION, other.getAction());
+            List<StatCounter> top = query.getTopTargets();
+            assertEquals(2, top.size());
+            assertEquals("target", top.get(0).getName());
+            assertEquals(20, top.get(0).getCount());
+            top = query.limit(1).getTopTargets();
+            assertEquals(1, top.size());
+            assertEquals("target", top.get(0).getName());
+            top = query.order(true).getTopTargets();
+            assertEquals(1, top.size());
+            assertEquals("other", top.get(0).getName());
+            query.order(false).limit(null);
+            //Striped totals are not ranked with a counts index
+            for(DBObject index : engine.getCounterCollection().getIndexInfo()) {
+                for(String key : ((DBObject) index.get("key")).keySet()) {
+                    assertFalse(key, key.endsWith("." + MongoStatsEngine.FIELD_COUNT));
+                }
+            }
+            query.filterBy(QueryField.TARGET, "target");
+            assertEquals(Long.valueOf(20), query.getTargetActionCount().get(other.getAction()));
+        } finally {
+            engine.setCountersStripes(1);
+            engine.setActionsStripes(1);
+            engine.setStripeMode(MongoStatsEngine.StripeMode.THREAD);
+        }
+    }
+
+    /**
+     * Rebuilds the counters from the raw events with a finer precision
+     */
+    @Test
+    public void testCounterRebuild() throws Exception {
+        System.out.println("counterRebuild");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.DAILY);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 2, 27);
+            for(int i = 0; i < 4; i++) {
+                engine.handleEvent(engine.createSampleEvent(date.plusHours(i * 20)));
+            }
+            BasicDBObject days = (BasicDBObject) engine.getTargetCollection().findOne().get(MongoStatsEngine.FIELD_DAYS);
+            assertNull(MongoUtil.getChildDBObject(days, "27.hours"));
+            CounterRebuild rebuild = engine.createCounterRebuild(2, TimeScope.HOURLY);
+            rebuild.run();
+            System.out.println("rebuild: "+rebuild);
+            assertEquals("done", rebuild.getPhase());
+            assertEquals(2, rebuild.getTotalRanges());
+            assertEquals(2, rebuild.getDoneRanges());
+            assertEquals(4, rebuild.getEvents());
+            assertEquals(TimeScope.HOURLY, engine.getTimeScopePrecision());
+            assertEquals(2, engine.getTargetCollection().count());
+            DBObject target = engine.getTargetCollection().findOne(new BasicDBObject(MongoStatsEngine.TARGET_MONTH, 2));
+            assertEquals(3, ((Number) target.get(MongoStatsEngine.FIELD_COUNT)).intValue());
+            days = (BasicDBObject) target.get(MongoStatsEngine.FIELD_DAYS);
+            assertEquals(1, ((Number) MongoUtil.getChildDBObject(days, "27.hours.20").get(MongoStatsEngine.FIELD_COUNT)).intValue());
+            StatEvent event = engine.createSampleEvent();
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID, event.getClientId());
+            List<StatAction> actions = query.getActions();
+            assertEquals(1, actions.size());
+            assertEquals(4, actions.get(0).getCount());
+            query.filterBy(QueryField.TARGET_TYPE, event.getTargetType());
+            query.filterBy(QueryField.ACTION, event.getAction());
+            List<StatCounter> top = query.getTopTargets();
+            assertEquals(1, top.size());
+            assertEquals(4, top.get(0).getCount());
+            assertFalse(engine.getDB().collectionExists(CounterRebuild.COLLECTION_CHECKPOINTS));
+            //Raw events of the first month gone: its targets would be lost
+            engine.getDB().getCollection(MongoStatsEngine.COLLECTION_EVENTS).remove(new BasicDBObject(MongoStatsEngine.EVENT_DATE,
+                    new BasicDBObject("$lt", DateUtil.buildUTCDate(2011, 3, 1).toDate())));
+            try {
+                engine.createCounterRebuild(2, TimeScope.HOURLY).run();
+                fail("Expected the rebuild to refuse missing history");
+            }catch(StatsEngineException ex) {
+            }
+            assertEquals(2, engine.getTargetCollection().count());
+        } finally {
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Resumes a rebuild interrupted after swapping the targets: the swapped
+     * targets are kept and the remaining shadows swapped
+     */
+    @Test
+    public void testCounterRebuildResumeSwap() throws Exception {
+        System.out.println("counterRebuildResumeSwap");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.DAILY);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 2, 27);
+            for(int i = 0; i < 4; i++) {
+                engine.handleEvent(engine.createSampleEvent(date.plusHours(i * 20)));
+            }
+            engine.createCounterRebuild(2, TimeScope.DAILY).run();
+            DB db = engine.getDB();
+            //State left by a rebuild that died after swapping the targets
+            DBCollection checkpoints = db.getCollection(CounterRebuild.COLLECTION_CHECKPOINTS);
+            for(String range : new String[] {"2011_2", "2011_3"}) {
+                checkpoints.save(MongoUtil.createDoc(MongoStatsEngine.FIELD_ID, TimeScope.MONTHLY.getKey() + range,
+                        MongoStatsEngine.FIELD_COUNT, 2));
+            }
+            String [] shadows = {MongoStatsEngine.COLLECTION_COUNTERS, MongoStatsEngine.COLLECTION_TARGET_ACTIONS};
+            String [] steps = {CounterRebuild.STEP_COUNTERS, CounterRebuild.STEP_ACTIONS};
+            for(int i = 0; i < shadows.length; i++) {
+                DBCollection shadow = db.getCollection(shadows[i] + CounterRebuild.SHADOW_SUFFIX);
+                for(DBObject doc : db.getCollection(shadows[i]).find()) {
+                    shadow.insert(doc);
+                }
+                checkpoints.save(MongoUtil.createDoc(MongoStatsEngine.FIELD_ID, steps[i], MongoStatsEngine.FIELD_COUNT, shadow.count()));
+            }
+            //Without the swap checkpoint the missing targets shadow is refused
+            try {
+                engine.createCounterRebuild(2, TimeScope.DAILY).run();
+                fail("Expected the rebuild to refuse the missing targets shadow");
+            }catch(StatsEngineException ex) {
+            }
+            assertEquals(2, engine.getTargetCollection().count());
+            checkpoints.save(MongoUtil.createDoc(MongoStatsEngine.FIELD_ID,
+                    CounterRebuild.STEP_SWAP + MongoStatsEngine.COLLECTION_TARGETS, MongoStatsEngine.FIELD_COUNT, 2));
+            CounterRebuild rebuild = engine.createCounterRebuild(2, TimeScope.DAILY);
+            rebuild.run();
+            assertEquals("done", rebuild.getPhase());
+            assertEquals(0, rebuild.getEvents());
+            assertEquals(2, engine.getTargetCollection().count());
+            assertFalse(db.collectionExists(MongoStatsEngine.COLLECTION_COUNTERS + CounterRebuild.SHADOW_SUFFIX));
+            StatEvent event = engine.createSampleEvent();
+            List<StatAction> actions = engine.createQuery().filterBy(QueryField.CLIENT_ID, event.getClientId()).getActions();
+            assertEquals(1, actions.size());
+            assertEquals(4, actions.get(0).getCount());
+        } finally {
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Caches query results until an event of the same client is handled
+     */
+    @Test
+    public void testQueryCache() throws Exception {
+        System.out.println("queryCache");
+        QueryCache cache = new QueryCache(100, 60000);
+        engine.setQueryCache(cache);
+        try {
+            StatEvent event = engine.createSampleEvent();
+            engine.handleEvent(event);
+            Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId());
+            assertEquals(1, query.getActions().get(0).getCount());
+            assertEquals(1, query.getActions().get(0).getCount());
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            engine.handleEvent(event);
+            assertEquals(2, query.getActions().get(0).getCount());
+            assertEquals(1, cache.getInvalidations());
+            System.out.println("cache: "+cache);
+        } finally {
+            engine.setQueryCache(null);
+        }
+    }
+
+    /**
+     * Pages the leaderboard with continuation tokens
+     */
+    @Test
+    public void testLeaderboard() throws Exception {
+        System.out.println("leaderboard");
+        engine.setLeaderboard(true);
+        try {
+            StatEvent event = engine.createSampleEvent();
+            String [] targets = {"a", "b", "c", "d", "e"};
+            int [] counts = {3, 5, 1, 3, 2};
+            DateTime date = DateUtil.buildUTCDate(2011, 3, 1);
+            for(int i = 0; i < targets.length; i++) {
+                for(int j = 0; j < counts[i]; j++) {
+                    StatEvent targetEvent = engine.createSampleEvent(date.plusMinutes(i * 10 + j));
+                    targetEvent.setTarget(targets[i]);
+                    engine.handleEvent(targetEvent);
+                }
+            }
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.ACTION, event.getAction())
+                    .limit(2);
+            List<String> names = new ArrayList<String>();
+            int pages = 0;
+            String continuation = null;
+            do {
+                ResultPage<StatCounter> page = (ResultPage<StatCounter>) query.continueAfter(continuation).getTopTargets();
+                for(StatCounter counter : page) {
+                    names.add(counter.getName() + counter.getCount());
+                }
+                continuation = page.getContinuation();
+                pages++;
+            } while(continuation != null);
+            assertEquals(Arrays.asList("b5", "a3", "d3", "e2", "c1"), names);
+            assertEquals(3, pages);
+            //Loaded from counters
+            engine.getLeaderboardCollection().drop();
+            engine.resetCollectionCache();
+            assertEquals(5, engine.buildLeaderboard());
+            List<StatCounter> top = query.continueAfter(null).order(true).getTopTargets();
+            assertEquals("c", top.get(0).getName());
+            assertEquals("e", top.get(1).getName());
+            try {
+                query.continueAfter("invalid").getTopTargets();
+                fail("Invalid continuation token");
+            }catch(QueryException ex) {
+            }
+        } finally {
+            engine.setLeaderboard(false);
+        }
+    }
+
+    /**
+     * Actions of different clients are not merged
+     */
+    @Test
+    public void testActionsByClient() throws Exception {
+        System.out.println("actionsByClient");
+        for(String clientId : new String[] {"client2", "client1"}) {
+            StatEvent event = engine.createSampleEvent();
+            event.setClientId(clientId);
+            engine.handleEvent(event);
+        }
+        Query query = engine.createQuery().limit(1);
+        List<StatAction> page = query.getActions();
+        assertEquals(1, page.size());
+        assertEquals(1, page.get(0).getCount());
+        page = query.continueAfter(((ResultPage<StatAction>) page).getContinuation()).getActions();
+        assertEquals(1, page.size());
+        assertEquals(1, page.get(0).getCount());
+        assertNull(((ResultPage<StatAction>) page).getContinuation());
+        assertEquals(2, engine.createQuery().getActions().size());
+    }
+
+    /**
+     * Streams actions and target stats page by page
+     */
+    @Test
+    public void testVisitResults() throws Exception {
+        System.out.println("visitResults");
+        DateTime date = DateUtil.buildUTCDate(2011, 1, 10);
+        StatEvent event = null;
+        for(int a = 1; a <= 3; a++) {
+            for(int m = 0; m < 4; m++) {
+                event = engine.createSampleEvent(date.plusMonths(m));
+                event.setAction("action" + a);
+                engine.handleEvent(event);
+                engine.handleEvent(event);
+            }
+        }
+        final List<StatCounter> visited = new ArrayList<StatCounter>();
+        Query query = engine.createQuery().filterBy(QueryField.CLIENT_ID,event.getClientId()).limit(2);
+        ResultVisitor<StatAction> actionVisitor = new ResultVisitor<StatAction>() {
+            @Override
+            public boolean visit(StatAction action) {
+                return visited.add(action);
+            }
+        };
+        String continuation = query.visitActions(actionVisitor);
+        assertEquals(2, visited.size());
+        assertNull(query.continueAfter(continuation).visitActions(actionVisitor));
+        assertEquals(3, visited.size());
+        assertEquals("action3", visited.get(2).getName());
+        assertEquals(8, visited.get(2).getCount());
+        List<StatAction> page = query.continueAfter(null).getActions();
+        assertEquals(2, page.size());
+        assertNotNull(((ResultPage<StatAction>) page).getContinuation());
+
+        visited.clear();
+        query = engine.createQuery()
+                .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                .filterBy(QueryField.TARGET, event.getTarget())
+                .filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 1))
+                .limit(5);
+        ResultVisitor<StatCounter> counterVisitor = new ResultVisitor<StatCounter>() {
+            @Override
+            public boolean visit(StatCounter counter) {
+                return visited.add(counter);
+            }
+        };
+        continuation = null;
+        int pages = 0;
+        do {
+            continuation = query.continueAfter(continuation).visitTargetStats(counterVisitor);
+            pages++;
+        } while(continuation != null);
+        assertEquals(2, pages);
+        //3 actions by 3 months from February
+        assertEquals(9, visited.size());
+        assertEquals("action1", visited.get(0).getName());
+        assertEquals(2, new DateTime(visited.get(0).getDate(), DateTimeZone.UTC).getMonthOfYear());
+        assertEquals(2, visited.get(0).getCount());
+        assertEquals("action3", visited.get(8).getName());
+        assertEquals(4, new DateTime(visited.get(8).getDate(), DateTimeZone.UTC).getMonthOfYear());
+    }
+
+    /**
+     * Groups target stats by day, week, hour, year and globally
+     */
+    @Test
+    public void testTargetStatsGroupBy() throws Exception {
+        System.out.println("targetStatsGroupBy");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.HOURLY);
+        try {
+            DateTime [] dates = {
+                DateUtil.buildUTCDate(2011, 2, 27).plusHours(10),
+                DateUtil.buildUTCDate(2011, 2, 28).plusHours(10),
+                DateUtil.buildUTCDate(2011, 2, 28).plusHours(11),
+                DateUtil.buildUTCDate(2011, 3, 1).plusHours(5),
+                DateUtil.buildUTCDate(2011, 3, 9)
+            };
+            StatEvent event = null;
+            for(DateTime date : dates) {
+                engine.handleEvent(event = engine.createSampleEvent(date));
+            }
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, event.getTarget())
+                    .filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 27))
+                    .filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 3, 1).plusHours(23));
+            List<StatCounter> days = query.groupBy(TimeScope.DAILY).getTargetStats().get(0).getTargets();
+            assertEquals(3, days.size());
+            assertEquals(DateUtil.buildUTCDate(2011, 2, 28).getMillis(), days.get(1).getDate().getTime());
+            assertEquals(2, days.get(1).getCount());
+
+            query.filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 1));
+            query.filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 3, 31));
+            StatAction weeks = query.groupBy(TimeScope.WEEKLY).getTargetStats().get(0);
+            assertEquals(5, weeks.getCount());
+            assertEquals(3, weeks.getTargets().size());
+            assertEquals(DateUtil.buildUTCDate(2011, 2, 28).getMillis(), weeks.getTargets().get(1).getDate().getTime());
+            assertEquals(3, weeks.getTargets().get(1).getCount());
+            final List<StatCounter> visited = new ArrayList<StatCounter>();
+            ResultVisitor<StatCounter> visitor = new ResultVisitor<StatCounter>() {
+                @Override
+                public boolean visit(StatCounter counter) {
+                    return visited.add(counter);
+                }
+            };
+            String continuation = query.limit(2).visitTargetStats(visitor);
+            assertNotNull(continuation);
+            assertNull(query.continueAfter(continuation).visitTargetStats(visitor));
+            assertEquals(3, visited.size());
+            assertEquals(1, visited.get(2).getCount());
+            query.continueAfter(null).limit(null);
+
+            List<StatAction> years = query.groupBy(TimeScope.ANNUAL).getTargetStats();
+            assertEquals(1, years.get(0).getTargets().size());
+            assertEquals(5, years.get(0).getTargets().get(0).getCount());
+            List<StatAction> global = query.groupBy(TimeScope.GLOBAL).getTargetStats();
+            assertEquals(5, global.get(0).getTargets().get(0).getCount());
+            assertNull(global.get(0).getTargets().get(0).getDate());
+
+            query.filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2011, 2, 28));
+            query.filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 2, 28).plusHours(23));
+            List<StatCounter> hours = query.groupBy(TimeScope.HOURLY).getTargetStats().get(0).getTargets();
+            assertEquals(2, hours.size());
+            assertEquals(DateUtil.buildUTCDate(2011, 2, 28).plusHours(11).getMillis(), hours.get(1).getDate().getTime());
+        } finally {
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Weekly and annual rollups read for the whole weeks and years of the range
+     */
+    @Test
+    public void testRollups() throws Exception {
+        System.out.println("rollups");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.DAILY);
+        engine.setRollups(true);
+        try {
+            //An event every 10 days for three years
+            DateTime first = DateUtil.buildUTCDate(2009, 1, 1);
+            StatEvent event = null;
+            for(DateTime date = first; date.getYear() < 2012; date = date.plusDays(10)) {
+                engine.handleEvent(event = engine.createSampleEvent(date));
+            }
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, event.getTarget())
+                    .filterBy(QueryField.DATE_FROM, DateUtil.buildUTCDate(2009, 6, 1))
+                    .filterBy(QueryField.DATE_TO, DateUtil.buildUTCDate(2011, 8, 17));
+            List<StatAction> years = query.groupBy(TimeScope.ANNUAL).getTargetStats();
+            QueryProfile profile = query.explain(QueryBatch.Method.TARGET_STATS);
+            List<StatAction> weeks = query.groupBy(TimeScope.WEEKLY).getTargetStats();
+            assertEquals(3, years.get(0).getTargets().size());
+            //One annual rollup, the rest from the edge months
+            assertEquals(16, profile.getReturned());
+            engine.setRollups(false);
+            assertEquals(years.get(0).getCount(), query.groupBy(TimeScope.ANNUAL).getTargetStats().get(0).getCount());
+            List<StatAction> monthWeeks = query.groupBy(TimeScope.WEEKLY).getTargetStats();
+            assertEquals(monthWeeks.get(0).getCount(), weeks.get(0).getCount());
+            assertEquals(monthWeeks.get(0).getTargets().size(), weeks.get(0).getTargets().size());
+            for(int i = 0; i < weeks.get(0).getTargets().size(); i++) {
+                assertEquals(monthWeeks.get(0).getTargets().get(i).getDate(), weeks.get(0).getTargets().get(i).getDate());
+                assertEquals(monthWeeks.get(0).getTargets().get(i).getCount(), weeks.get(0).getTargets().get(i).getCount());
+            }
+            engine.setRollups(true);
+            DBCollection rollups = engine.getRollupCollection();
+            long count = rollups.count();
+            assertEquals(count, engine.buildRollups());
+            assertEquals(3, rollups.count(new BasicDBObject(MongoStatsEngine.FIELD_SCOPE, TimeScope.ANNUAL.getKey())));
+        } finally {
+            engine.setRollups(false);
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
+    /**
+     * Batch queries, target stats sharing a single scan
+     */
+    @Test
+    public void testExecuteBatch() throws Exception {
+        System.out.println("executeBatch");
+        DateTime date = DateUtil.buildUTCDate(2011, 1, 10);
+        StatEvent event = null;
+        for(int t = 1; t <= 3; t++) {
+            for(int m = 0; m < t; m++) {
+                event = engine.createSampleEvent(date.plusMonths(m));
+                event.setTarget("target" + t);
+                engine.handleEvent(event);
+            }
+        }
+        QueryBatch batch = new QueryBatch();
+        List<QueryBatch.Result<List<StatAction>>> stats = new ArrayList<QueryBatch.Result<List<StatAction>>>();
+        for(int t = 1; t <= 3; t++) {
+            stats.add(batch.getTargetStats(engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, "target" + t)
+                    .filterBy(QueryField.DATE_FROM, date.minusMonths(1))
+                    .filterBy(QueryField.DATE_TO, date.plusMonths(3))));
+        }
+        QueryBatch.Result<List<StatAction>> actions = batch.getActions(engine.createQuery()
+                .filterBy(QueryField.CLIENT_ID, event.getClientId()));
+        QueryBatch.Result<List<StatCounter>> top = batch.getTopTargets(engine.createQuery()
+                .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                .filterBy(QueryField.ACTION, event.getAction()));
+        engine.executeBatch(batch);
+        for(int t = 1; t <= 3; t++) {
+            List<StatAction> targetStats = stats.get(t - 1).get();
+            assertEquals(1, targetStats.size());
+            assertEquals(t, targetStats.get(0).getCount());
+            assertEquals(t, targetStats.get(0).getTargets().size());
+            assertEquals(stats.get(t - 1).getQuery().getTargetStats().get(0).getTargets().get(t - 1).getDate(),
+                    targetStats.get(0).getTargets().get(t - 1).getDate());
+        }
+        assertEquals(6, actions.get().get(0).getCount());
+        assertEquals("target3", top.get().get(0).getName());
+    }
+
+    /**
+     * Profiles queries store scans
+     */
+    @Test
+    public void testExplain() throws Exception {
+        System.out.println("explain");
+        StatEvent event = engine.createSampleEvent();
+        engine.handleEvent(event);
+        engine.handleEvent(engine.createSampleEvent(DateUtil.getDateTimeUTC().minusMonths(1)));
+        Query query = engine.createQuery()
+                .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                .filterBy(QueryField.TARGET, event.getTarget())
+                .filterBy(QueryField.ACTION, event.getAction());
+        QueryProfile profile = query.explain(QueryBatch.Method.TARGET_STATS);
+        System.out.println(profile);
+        assertEquals("getTargetStats", profile.getMethod());
+        assertEquals(1, profile.getResults());
+        assertEquals(1, profile.getScans().size());
+        QueryProfile.Scan scan = profile.getScans().get(0);
+        assertEquals(MongoStatsEngine.COLLECTION_TARGETS, scan.getCollection());
+        assertNotNull(scan.getIndex());
+        assertEquals(2, scan.getReturned());
+        assertTrue(scan.getScanned() >= 2);
+        assertTrue(scan.getBytes() > 0);
+        assertTrue(profile.getClientMillis() <= profile.getTotalMillis());
+
+        profile = query.explain(QueryBatch.Method.TOP_TARGETS);
+        assertEquals(1, profile.getResults());
+        assertEquals(1, profile.getReturned());
+        try {
+            engine.createQuery().explain(QueryBatch.Method.TARGET_STATS);
+            fail("Required fields");
+        }catch(QueryException ex) {
+        }
+    }
+
+    /**
+     * Distinct metadata values and targets counted with sketches
+     */
+    @Test
+    public void testDistinctCounts() throws Exception {
+        System.out.println("distinctCounts");
+        engine.setDistinctMode(MongoStatsEngine.DistinctMode.BITMAP);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 4, 1);
+            for(int day = 0; day < 3; day++) {
+                for(int i = 0; i < 100; i++) {
+                    StatEvent event = engine.createSampleEvent(date.plusDays(day));
+                    event.setTarget("target" + (i % 10));
+                    //50 visitors a day, with two events each
+                    event.getMetadata().put("ip", "10.0." + day + "." + (i / 2));
+                    engine.handleEvent(event);
+                }
+            }
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, "client")
+                    .filterBy(QueryField.TARGET_TYPE, "type")
+                    .filterBy(QueryField.ACTION, "action");
+            assertEquals(150, query.getDistinctCount("ip"));
+            assertEquals(10, query.getDistinctCount(MongoStatsEngine.DISTINCT_TARGETS));
+            query.filterBy(QueryField.DATE_FROM, date.plusDays(1)).filterBy(QueryField.DATE_TO, date.plusDays(1));
+            assertEquals(50, query.getDistinctCount("ip"));
+            query.filterBy(QueryField.TARGET, "target0");
+            assertEquals(10, query.getDistinctCount("ip"));
+            //Not counted by value in the raw targets anymore
+            DBObject target = engine.getTargetCollection().findOne(new BasicDBObject(MongoStatsEngine.EVENT_TARGET, "target0"));
+            assertNull(((DBObject) ((DBObject) target.get(MongoStatsEngine.FIELD_DAYS)).get("1")).get(MongoStatsEngine.FIELD_META));
+        } finally {
+            engine.setDistinctMode(MongoStatsEngine.DistinctMode.NONE);
+        }
+    }
+
+    /**
+     * Date ranged top targets from the daily sketches
+     */
+    @Test
+    public void testSketchTopTargets() throws Exception {
+        System.out.println("sketchTopTargets");
+        engine.setTopTargetsSketches(true);
+        try {
+            DateTime date = DateUtil.buildUTCDate(2011, 3, 1);
+            //target1 leads the first week, target2 the second one
+            for(int day = 0; day < 14; day++) {
+                String leader = day < 7 ? "target1" : "target2";
+                for(int i = 0; i < 10; i++) {
+                    StatEvent event = engine.createSampleEvent(date.plusDays(day));
+                    event.setTarget(i < 5 ? leader : "target" + (3 + i));
+                    engine.handleEvent(event);
+                }
+            }
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, "client")
+                    .filterBy(QueryField.TARGET_TYPE, "type")
+                    .filterBy(QueryField.ACTION, "action")
+                    .filterBy(QueryField.DATE_FROM, date)
+                    .filterBy(QueryField.DATE_TO, date.plusDays(6));
+            List<StatCounter> top = query.getTopTargets();
+            assertEquals("target1", top.get(0).getName());
+            assertEquals(35, top.get(0).getCount());
+            query.filterBy(QueryField.DATE_FROM, date.plusDays(7)).filterBy(QueryField.DATE_TO, date.plusDays(13));
+            assertEquals("target2", query.getTopTargets().get(0).getName());
+            query.filterBy(QueryField.DATE_FROM, date).limit(3).filterBy(QueryField.COUNT, QueryOp.GT, 20);
+            top = query.getTopTargets();
+            assertEquals(2, top.size());
+            assertEquals(35, top.get(1).getCount());
+            try {
+                query.filterBy(QueryField.TARGET, "target1").getTopTargets();
+                fail("Target filters are not supported");
+            }catch(QueryException ex) {
+            }
+        } finally {
+            engine.setTopTargetsSketches(false);
+        }
+    }
+
+    /**
+     * Range filters and count thresholds
+     */
+    @Test
+    public void testRangeFilters() throws Exception {
+        System.out.println("rangeFilters");
+        TimeScope precision = engine.getTimeScopePrecision();
+        engine.setTimeScopePrecision(TimeScope.DAILY);
+        try {
+            StatEvent event = engine.createSampleEvent();
+            String [] targets = {"a", "b", "c"};
+            int [] counts = {3, 5, 1};
+            DateTime date = DateUtil.buildUTCDate(2011, 3, 1);
+            for(int i = 0; i < targets.length; i++) {
+                for(int j = 0; j < counts[i]; j++) {
+                    StatEvent targetEvent = engine.createSampleEvent(date.plusDays(i * 10 + j));
+                    targetEvent.setTarget(targets[i]);
+                    engine.handleEvent(targetEvent);
+                }
+            }
+            StatEvent other = engine.createSampleEvent(date);
+            other.setAction("other");
+            engine.handleEvent(other);
+            Query query = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.ACTION, event.getAction())
+                    .filterBy(QueryField.COUNT, QueryOp.GTE, 3);
+            List<StatCounter> top = query.getTopTargets();
+            assertEquals(2, top.size());
+            assertEquals("b", top.get(0).getName());
+            assertEquals("a", top.get(1).getName());
+
+            List<StatAction> actions = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.COUNT, QueryOp.GT, 1)
+                    .getActions();
+            assertEquals(1, actions.size());
+            assertEquals(event.getAction(), actions.get(0).getName());
+
+            Map<String,Long> actionCount = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, QueryOp.GT, "a")
+                    .getTargetActionCount();
+            assertEquals(Long.valueOf(6), actionCount.get(event.getAction()));
+
+            //Exclusive dates: days 11 to 13 of the five of target b
+            List<StatAction> days = engine.createQuery()
+                    .filterBy(QueryField.CLIENT_ID, event.getClientId())
+                    .filterBy(QueryField.TARGET_TYPE, event.getTargetType())
+                    .filterBy(QueryField.TARGET, "b")
+                    .filterBy(QueryField.DATE_FROM, QueryOp.GT, date.plusDays(10))
+                    .filterBy(QueryField.DATE_TO, QueryOp.LT, date.plusDays(14))
+                    .groupBy(TimeScope.DAILY)
+                    .getTargetStats();
+            assertEquals(1, days.size());
+            assertEquals(3, days.get(0).getCount());
+        } finally {
+            engine.setTimeScopePrecision(precision);
+        }
+    }
+
     /**
      * Test of getActions method, of class MongoStatsEngine.
      */
@@ -818,6 +1914,73 @@ public class MongoStatsEngineTest {
         assertEquals(2,stats.count());
     }
 
+    /**
+     * Test of incremental buildStats method, of class MongoStatsEngine.
+     */
+    @Test
+    public void testBuildStatsIncremental() throws Exception {
+        System.out.println("buildStats incremental");
+        engine.setTimeScopePrecision(TimeScope.MONTHLY);
+        engine.handleEvent(engine.createSampleEvent("2011-01-01"));
+        engine.handleEvent(engine.createSampleEvent("2011-02-01"));
+        engine.buildStats(TimeScope.GLOBAL,TimeScope.MONTHLY);
+        //Touched target mapped again: counts are replaced, not added
+        engine.handleEvent(engine.createSampleEvent("2011-02-02"));
+        engine.buildStats(TimeScope.GLOBAL,TimeScope.MONTHLY);
+        DBCollection stats = engine.getStatsCollection();
+        assertEquals(2,stats.count());
+        long total = 0;
+        for(DBObject doc : stats.find()) {
+            total += ((Number)((DBObject)doc.get("value")).get("count")).longValue();
+        }
+        assertEquals(3,total);
+        //Full build gives the same result
+        engine.buildStats(TimeScope.GLOBAL,TimeScope.MONTHLY,false);
+        assertEquals(2,stats.count());
+        //Tags are part of the keys: the next build replaces the old ones
+        StatEvent event = engine.createSampleEvent();
+        engine.setTargetTags(event.getClientId(), event.getTargetType(), event.getTarget(), Arrays.asList("tag3"));
+        engine.buildStats(TimeScope.GLOBAL,TimeScope.MONTHLY);
+        assertEquals(2,stats.count());
+    }
+
+    /**
+     * Compares the parallel and map reduce buildStats of the same targets.
+     */
+    @Test
+    public void testBuildStatsParallel() throws Exception {
+        System.out.println("buildStats parallel");
+        engine.setTimeScopePrecision(TimeScope.HOURLY);
+        DateTime first = DateUtil.buildUTCDate(2011, 1, 1);
+        for(int i = 0; i < 5000; i++) {
+            StatEvent event = engine.createSampleEvent(first.plusHours(i % 2000));
+            event.setTarget("target" + (i % 50));
+            event.getMetadata().put("ip", "10.0.0." + (i % 7));
+            engine.handleEvent(event);
+        }
+        for(TimeScope groupBy : new TimeScope[] {TimeScope.MONTHLY, TimeScope.DAILY, TimeScope.HOURLY}) {
+            engine.setBuildMode(MongoStatsEngine.BuildMode.MAP_REDUCE);
+            long t = System.currentTimeMillis();
+            engine.buildStats(TimeScope.GLOBAL, groupBy, false);
+            long mapReduceTime = System.currentTimeMillis() - t;
+            Map<Object,Object> expected = new HashMap<Object,Object>();
+            for(DBObject doc : engine.getStatsCollection().find()) {
+                expected.put(doc.get("_id"), doc.get("value"));
+            }
+            engine.setBuildMode(MongoStatsEngine.BuildMode.PARALLEL);
+            t = System.currentTimeMillis();
+            engine.buildStats(TimeScope.GLOBAL, groupBy, false);
+            long parallelTime = System.currentTimeMillis() - t;
+            System.out.println(groupBy+" stats: "+expected.size()+" map reduce: "+mapReduceTime+"ms parallel: "+parallelTime+"ms");
+            DBCollection stats = engine.getStatsCollection();
+            assertEquals(expected.size(), stats.count());
+            for(DBObject doc : stats.find()) {
+                assertEquals(expected.get(doc.get("_id")), doc.get("value"));
+            }
+        }
+        engine.setBuildMode(MongoStatsEngine.BuildMode.MAP_REDUCE);
+    }
+
     /**
      * Test of getTargetStats method, of class MongoStatsEngine.
      */
@@ -0,0 +1,149 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.core.impl.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+import org.mongoste.core.TimeScope;
+import org.mongoste.util.DateUtil;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TargetAggregator test
+ * @author mrmx
+ */
+public class TargetAggregatorTest {
+
+    @Test
+    public void testGroupBy() throws Exception {
+        System.out.println("groupBy");
+        List<DBObject> targets = new ArrayList<DBObject>();
+        targets.add(createTarget("t1", 1, 2));
+        targets.add(createTarget("t1", 2, 1));
+        Map<DBObject,DBObject> monthly = aggregate(targets, TimeScope.MONTHLY, 1);
+        assertEquals(2, monthly.size());
+        DBObject january = monthly.get(createKey("t1", 1, 1, 0));
+        assertEquals(4.0, january.get("count"));
+        assertEquals(4.0, january.get("unique"));
+        Map<DBObject,DBObject> daily = aggregate(targets, TimeScope.DAILY, 1);
+        assertEquals(3, daily.size());
+        assertEquals(3.0, daily.get(createKey("t1", 1, 3, 0)).get("count"));
+        Map<DBObject,DBObject> hourly = aggregate(targets, TimeScope.HOURLY, 1);
+        assertEquals(5, hourly.size());
+        assertEquals(2.0, hourly.get(createKey("t1", 1, 3, 5)).get("count"));
+        assertEquals(2.0, hourly.get(createKey("t1", 1, 3, 5)).get("unique"));
+    }
+
+    @Test
+    public void testPreallocated() throws Exception {
+        System.out.println("preallocated");
+        DBObject target = createTarget("t1", 1, 1);
+        //Zeroed buckets like the ones left by preallocation
+        DBObject days = (DBObject) target.get("days");
+        days.put("1", MongoUtil.createDoc("count", 0, "hours", MongoUtil.createDoc("0", MongoUtil.createDoc("count", 0))));
+        ((DBObject) ((DBObject) days.get("3")).get("hours")).put("7", MongoUtil.createDoc("count", 0));
+        List<DBObject> targets = new ArrayList<DBObject>();
+        targets.add(target);
+        Map<DBObject,DBObject> daily = aggregate(targets, TimeScope.DAILY, 1);
+        assertEquals(1, daily.size());
+        assertNull(daily.get(createKey("t1", 1, 1, 0)));
+        Map<DBObject,DBObject> hourly = aggregate(targets, TimeScope.HOURLY, 1);
+        assertEquals(2, hourly.size());
+        assertNull(hourly.get(createKey("t1", 1, 3, 7)));
+    }
+
+    @Test
+    public void testParallelism() throws Exception {
+        System.out.println("parallelism");
+        List<DBObject> targets = new ArrayList<DBObject>();
+        long count = 0;
+        for(int i = 0; i < 2000; i++) {
+            //One document per target month, like the targets collections
+            DBObject target = createTarget("t" + (i / 12), 1 + i % 12, 1 + i % 2);
+            targets.add(target);
+            count += ((Number) target.get("count")).longValue();
+        }
+        Map<DBObject,DBObject> expected = aggregate(targets, TimeScope.HOURLY, 1);
+        assertEquals(expected, aggregate(targets, TimeScope.HOURLY, 4));
+        long total = 0;
+        for(DBObject value : expected.values()) {
+            total += ((Number) value.get("count")).longValue();
+        }
+        assertEquals(count, total);
+    }
+
+    private Map<DBObject,DBObject> aggregate(List<DBObject> targets, TimeScope groupBy, int parallelism) throws Exception {
+        TargetAggregator aggregator = new TargetAggregator(groupBy, parallelism, 7);
+        final List<DBObject> docs = new ArrayList<DBObject>();
+        long written = aggregator.aggregate(targets.iterator(), new TargetAggregator.Output() {
+            @Override
+            public void write(List<DBObject> results) {
+                assertFalse(results.isEmpty());
+                synchronized(docs) {
+                    docs.addAll(results);
+                }
+            }
+        });
+        assertEquals(docs.size(), written);
+        Map<DBObject,DBObject> result = new HashMap<DBObject,DBObject>();
+        for(DBObject doc : docs) {
+            assertNull(result.put((DBObject) doc.get("_id"), (DBObject) doc.get("value")));
+        }
+        return result;
+    }
+
+    /**
+     * Target month with hours 5 and 6 of day 3 and, when days is 2, day 4
+     * without hours
+     */
+    private DBObject createTarget(String target, int month, int days) {
+        DBObject hours = MongoUtil.createDoc(
+                "5", MongoUtil.createDoc("count", 2, "meta", MongoUtil.createDoc("ip", MongoUtil.createDoc("1", 1, "2", 1))),
+                "6", MongoUtil.createDoc("count", 1));
+        DBObject dayDocs = MongoUtil.createDoc("3", MongoUtil.createDoc("count", 3, "hours", hours));
+        if(days > 1) {
+            dayDocs.put("4", MongoUtil.createDoc("count", 1, "meta", MongoUtil.createDoc("ip", MongoUtil.createDoc("3", 1, "4", 1))));
+        }
+        DBObject doc = createIdentity(target);
+        doc.put("y", 2011);
+        doc.put("m", month);
+        doc.put("count", 2 + days);
+        doc.put("days", dayDocs);
+        return doc;
+    }
+
+    private DBObject createKey(String target, int month, int day, int hour) {
+        BasicDBList own = new BasicDBList();
+        own.add("owner");
+        return MongoUtil.createDoc("idc", "client", "ida", "action", "idk", "type", "idt", target,
+                "own", own, "tags", new BasicDBList(),
+                "date", DateUtil.buildUTCDate(2011, month, day).plusHours(hour).toDate());
+    }
+
+    private DBObject createIdentity(String target) {
+        BasicDBList own = new BasicDBList();
+        own.add("owner");
+        return MongoUtil.createDoc("_idc", "client", "_ida", "action", "_idk", "type", "_idt", target, "own", own);
+    }
+}
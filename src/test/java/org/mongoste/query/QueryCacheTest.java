@@ -0,0 +1,175 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import org.mongoste.model.StatEvent;
+import org.mongoste.util.DateUtil;
+
+import org.joda.time.DateTime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryCache test
+ * @author mrmx
+ */
+public class QueryCacheTest {
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+    @Test
+    public void testCreateKey() {
+        System.out.println("createKey");
+        Query a = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client")
+                .filterBy(QueryField.TARGET, QueryOp.IN, Arrays.asList("t1", "t2"));
+        Query b = new DefaultQuery(null).filterBy(QueryField.TARGET, QueryOp.IN, Arrays.asList("t2", "t1"))
+                .filterBy(QueryField.CLIENT_ID, "client");
+        assertEquals(QueryCache.createKey("getActions", a), QueryCache.createKey("getActions", b));
+        assertFalse(QueryCache.createKey("getActions", a).equals(QueryCache.createKey("getTargetStats", a)));
+        b.limit(10);
+        assertFalse(QueryCache.createKey("getActions", a).equals(QueryCache.createKey("getActions", b)));
+    }
+
+    @Test
+    public void testExpiration() {
+        System.out.println("expiration");
+        QueryCache cache = createCache(10);
+        DateTime now = new DateTime(clock.get());
+        Query open = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client");
+        Query closed = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client")
+                .filterBy(QueryField.DATE_TO, now.minusMonths(2));
+        List<String> result = cache.put("getActions", open, new ArrayList<String>(Arrays.asList("a")));
+        cache.put("getActions", closed, new ArrayList<String>(Arrays.asList("b")));
+        assertEquals(result, cache.get("getActions", open));
+        try {
+            result.add("c");
+            fail("Cached results must be unmodifiable");
+        }catch(UnsupportedOperationException ex) {
+        }
+        clock.addAndGet(1001);
+        assertNull(cache.get("getActions", open));
+        assertEquals(Arrays.asList("b"), cache.get("getActions", closed));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidate() {
+        System.out.println("invalidate");
+        QueryCache cache = createCache(10);
+        DateTime closedMonth = DateUtil.buildUTCDate(2011, 2, 1);
+        Query target = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client").filterBy(QueryField.TARGET, "t1");
+        Query otherTarget = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client").filterBy(QueryField.TARGET, "t2");
+        Query otherClient = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "other");
+        Query closed = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client")
+                .filterBy(QueryField.DATE_TO, closedMonth.plusDays(27));
+        cache.put("getTargetStats", target, "t1");
+        cache.put("getTargetStats", otherTarget, "t2");
+        cache.put("getActions", otherClient, "other");
+        cache.put("getActions", closed, "closed");
+        //Current event: closed period is kept
+        cache.invalidate(createSampleEvent("client", "t1", new DateTime(clock.get())));
+        assertNull(cache.get("getTargetStats", target));
+        assertEquals("t2", cache.get("getTargetStats", otherTarget));
+        assertEquals("other", cache.get("getActions", otherClient));
+        assertEquals("closed", cache.get("getActions", closed));
+        //Late event of the closed period
+        cache.invalidate(createSampleEvent("client", "t3", closedMonth.plusDays(3)));
+        assertNull(cache.get("getActions", closed));
+        assertEquals("t2", cache.get("getTargetStats", otherTarget));
+        cache.invalidate("other");
+        assertNull(cache.get("getActions", otherClient));
+        assertEquals(3, cache.getInvalidations());
+    }
+
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        QueryCache cache = createCache(2);
+        Query q1 = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "c1");
+        Query q2 = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "c2");
+        Query q3 = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "c3");
+        cache.put("getActions", q1, "1");
+        cache.put("getActions", q2, "2");
+        assertEquals("1", cache.get("getActions", q1));
+        cache.put("getActions", q3, "3");
+        assertNull(cache.get("getActions", q2));
+        assertEquals("1", cache.get("getActions", q1));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        //Evicted entries are no longer invalidated
+        cache.invalidate("c2");
+        assertEquals(0, cache.getInvalidations());
+    }
+
+    @Test
+    public void testGeneration() {
+        System.out.println("generation");
+        QueryCache cache = createCache(10);
+        Query query = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client").filterBy(QueryField.TARGET, "t1");
+        Query other = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "other");
+        Query anyClient = new DefaultQuery(null).filterBy(QueryField.TARGET, "t1");
+        long generation = cache.getGeneration(query);
+        long otherGeneration = cache.getGeneration(other);
+        long anyGeneration = cache.getGeneration(anyClient);
+        //Invalidated while the queries were running: stale results are not cached
+        cache.invalidate(createSampleEvent("client", "t2", new DateTime(clock.get())));
+        cache.put("getTargetStats", query, "stale", generation);
+        cache.put("getActions", anyClient, "stale", anyGeneration);
+        assertNull(cache.get("getTargetStats", query));
+        assertNull(cache.get("getActions", anyClient));
+        cache.put("getActions", other, "other", otherGeneration);
+        assertEquals("other", cache.get("getActions", other));
+        cache.put("getTargetStats", query, "fresh", cache.getGeneration(query));
+        assertEquals("fresh", cache.get("getTargetStats", query));
+    }
+
+    @Test
+    public void testClosedPeriodsNotKept() {
+        System.out.println("closedPeriodsNotKept");
+        QueryCache cache = createCache(10);
+        cache.setClosedPeriodsKept(false);
+        Query closed = new DefaultQuery(null).filterBy(QueryField.CLIENT_ID, "client")
+                .filterBy(QueryField.DATE_TO, new DateTime(clock.get()).minusMonths(2));
+        cache.put("getActions", closed, "closed");
+        assertEquals("closed", cache.get("getActions", closed));
+        clock.addAndGet(1001);
+        assertNull(cache.get("getActions", closed));
+    }
+
+    private QueryCache createCache(int maxSize) {
+        return new QueryCache(maxSize, 1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+    }
+
+    private StatEvent createSampleEvent(String clientId, String target, DateTime date) {
+        StatEvent event = new StatEvent();
+        event.setClientId(clientId);
+        event.setTarget(target);
+        event.setDateTime(date);
+        return event;
+    }
+}
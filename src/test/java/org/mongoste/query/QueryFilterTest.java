@@ -0,0 +1,42 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.query;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+/**
+ * QueryFilter test
+ * @author mrmx
+ */
+public class QueryFilterTest {
+
+    @Test
+    public void testMatches() {
+        System.out.println("matches");
+        assertTrue(new QueryFilter(QueryOp.GT, 3).matches(4));
+        assertFalse(new QueryFilter(QueryOp.GT, 3).matches(3));
+        assertTrue(new QueryFilter(QueryOp.GTE, 3).matches(3));
+        assertTrue(new QueryFilter(QueryOp.LT, 3).matches(2));
+        assertFalse(new QueryFilter(QueryOp.LTE, 3).matches(4));
+        assertTrue(new QueryFilter(QueryOp.EQ, 3L).matches(3));
+        assertTrue(new QueryFilter(QueryOp.IN, Arrays.asList(1, 5)).matches(5));
+        assertFalse(new QueryFilter(QueryOp.IN, Arrays.asList(1, 5)).matches(3));
+        assertTrue(new QueryFilter(QueryOp.GT, null).matches(0));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+import org.joda.time.DateTime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * DateUtil test
+ * @author mrmx
+ */
+public class DateUtilTest {
+
+    @Test
+    public void testConcurrentFormats() throws Exception {
+        System.out.println("concurrentFormats");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for(int i = 0; i < 8; i++) {
+            final int day = i + 1;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for(int j = 0; j < 1000; j++) {
+                        String text = "2011-3-0" + day + " " + (j % 24);
+                        DateTime parsed = DateUtil.YY_MM_DD_HH_FORMATTER.parseDateTime(text);
+                        if(parsed.getDayOfMonth() != day || parsed.getHourOfDay() != j % 24) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for(Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBuildUTCDate() {
+        System.out.println("buildUTCDate");
+        DateTime date = DateUtil.buildUTCDate(2011, 2, 28);
+        assertEquals("2011-2-28", DateUtil.YY_MM_DD_FORMATTER.print(date));
+        assertEquals(0, date.getHourOfDay());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * DistinctSketch implementations test
+ * @author mrmx
+ */
+public class DistinctSketchTest {
+
+    @Test
+    public void testHyperLogLog() {
+        System.out.println("hyperLogLog");
+        HyperLogLog days = new HyperLogLog(12);
+        HyperLogLog hours = new HyperLogLog(12);
+        int n = 50000;
+        for(int i = 0; i < n; i++) {
+            days.add("10.0." + (i / 256) + "." + (i % 256));
+            //Overlapping half
+            hours.add("10.0." + ((i + n / 2) / 256) + "." + ((i + n / 2) % 256));
+        }
+        assertEquals(n, days.cardinality(), n * 0.05);
+        days.merge(hours);
+        long merged = days.cardinality();
+        System.out.println("merged estimate: " + merged);
+        assertEquals(n * 1.5, merged, n * 1.5 * 0.05);
+        //Idempotent merge
+        days.merge(hours);
+        assertEquals(merged, days.cardinality());
+        DistinctSketch read = DistinctSketch.fromBytes(days.toBytes());
+        assertEquals(merged, read.cardinality());
+        HyperLogLog small = new HyperLogLog(12);
+        for(int i = 0; i < 10; i++) {
+            small.add("value" + i);
+            small.add("value" + i);
+        }
+        assertEquals(10, small.cardinality());
+        try {
+            small.merge(new HyperLogLog(10));
+            fail("Different precision");
+        }catch(IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testRoaringBitmap() {
+        System.out.println("roaringBitmap");
+        RoaringBitmap sparse = new RoaringBitmap();
+        RoaringBitmap dense = new RoaringBitmap();
+        for(int i = 0; i < 10000; i++) {
+            dense.add("192.168." + (i / 256) + "." + (i % 256));
+            sparse.add((i * 7919) << 8);
+        }
+        assertFalse(dense.add("::1"));
+        assertEquals(10000, dense.cardinality());
+        assertEquals(10000, sparse.cardinality());
+        assertTrue(dense.contains(RoaringBitmap.parseIPv4("192.168.1.1")));
+        RoaringBitmap merged = new RoaringBitmap();
+        merged.merge(dense);
+        merged.merge(sparse);
+        merged.merge(dense);
+        assertEquals(20000, merged.cardinality());
+        //Merged containers are copies
+        merged.add("192.168.200.1");
+        assertEquals(10000, dense.cardinality());
+        RoaringBitmap read = (RoaringBitmap) DistinctSketch.fromBytes(merged.toBytes());
+        assertEquals(merged.cardinality(), read.cardinality());
+        assertTrue(read.contains(RoaringBitmap.parseIPv4("192.168.200.1")));
+        assertNull(RoaringBitmap.parseIPv4("300.1.1.1"));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *    Copyright (c) 2010-2011 Manuel Polo (mrmx.org)
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mongoste.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * TopKSketch test
+ * @author mrmx
+ */
+public class TopKSketchTest {
+
+    @Test
+    public void testTop() {
+        System.out.println("top");
+        TopKSketch sketch = new TopKSketch(1024, 4, 20);
+        //Zipf like: target i is seen 1000 / i times, plus a long tail
+        for(int i = 1; i <= 10; i++) {
+            sketch.add("target" + i, 1000 / i);
+        }
+        for(int i = 0; i < 5000; i++) {
+            sketch.add("tail" + i, 1);
+        }
+        Map<String,Long> top = sketch.top(3);
+        assertEquals(3, top.size());
+        assertEquals("target1", top.keySet().iterator().next());
+        assertTrue(top.get("target1") >= 1000);
+        assertTrue(top.get("target1") < 1000 + 5000 * Math.E / 1024 * 4);
+        assertTrue(sketch.estimate("target10") >= 100);
+    }
+
+    @Test
+    public void testMerge() {
+        System.out.println("merge");
+        TopKSketch day1 = new TopKSketch(512, 4, 5);
+        TopKSketch day2 = day1.newEmpty();
+        //Each day leader is only third on the other day
+        day1.add("a", 100);
+        day1.add("b", 60);
+        day1.add("c", 50);
+        day2.add("c", 100);
+        day2.add("b", 60);
+        day2.add("a", 50);
+        TopKSketch read = (TopKSketch) Sketch.fromBytes(day1.toBytes());
+        assertEquals(100, read.estimate("a"));
+        read.merge(day2);
+        Map<String,Long> top = read.top(3);
+        assertEquals(new ArrayList<String>(top.keySet()).toString(), "[a, c, b]");
+        assertEquals(150L, (long) top.get("a"));
+        assertEquals(120L, (long) top.get("b"));
+        try {
+            read.merge(new TopKSketch(256, 4, 5));
+            fail("Different width");
+        }catch(IllegalArgumentException ex) {
+        }
+    }
+}